@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Collections;
+import java.util.Set;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.jca.JCAContext;
+import com.nimbusds.jose.util.Base64URL;
+
+/**
+ * A {@link JWSSigner} for the EdDSA algorithm (Ed25519 and Ed448) that works with a JCA private key. Nimbus requires
+ * EdDSA keys to be given as JWK:s, which does not work for keys read from a key store or a HSM.
+ * <p>
+ * Requires Java 15 or later (or a JCA provider that implements the {@code EdDSA} signature algorithm).
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+class EdDSAJcaSigner implements JWSSigner {
+
+  /** The JCA name for the EdDSA signature algorithm. */
+  static final String JCA_ALGORITHM = "EdDSA";
+
+  /** The private key. */
+  private final PrivateKey privateKey;
+
+  /** The JCA context. */
+  private final JCAContext jcaContext = new JCAContext();
+
+  /**
+   * Constructor.
+   *
+   * @param privateKey
+   *          the EdDSA private key
+   */
+  EdDSAJcaSigner(final PrivateKey privateKey) {
+    this.privateKey = privateKey;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Base64URL sign(final JWSHeader header, final byte[] signingInput) throws JOSEException {
+    if (!JWSAlgorithm.EdDSA.equals(header.getAlgorithm())) {
+      throw new JOSEException("Unsupported JWS algorithm " + header.getAlgorithm() + " - expected " + JWSAlgorithm.EdDSA);
+    }
+    try {
+      final Signature signature = this.jcaContext.getProvider() != null
+          ? Signature.getInstance(JCA_ALGORITHM, this.jcaContext.getProvider())
+          : Signature.getInstance(JCA_ALGORITHM);
+      signature.initSign(this.privateKey);
+      signature.update(signingInput);
+      return Base64URL.encode(signature.sign());
+    }
+    catch (GeneralSecurityException e) {
+      throw new JOSEException("EdDSA signing failed - " + e.getMessage(), e);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Set<JWSAlgorithm> supportedJWSAlgorithms() {
+    return Collections.singleton(JWSAlgorithm.EdDSA);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public JCAContext getJCAContext() {
+    return this.jcaContext;
+  }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Collections;
+import java.util.Set;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.jca.JCAContext;
+import com.nimbusds.jose.util.Base64URL;
+
+/**
+ * A {@link JWSVerifier} for the EdDSA algorithm (Ed25519 and Ed448) that works with a JCA public key, for example a
+ * key read from an IdP certificate.
+ * <p>
+ * Requires Java 15 or later (or a JCA provider that implements the {@code EdDSA} signature algorithm).
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+class EdDSAJcaVerifier implements JWSVerifier {
+
+  /** The public key. */
+  private final PublicKey publicKey;
+
+  /** The JCA context. */
+  private final JCAContext jcaContext = new JCAContext();
+
+  /**
+   * Constructor.
+   *
+   * @param publicKey
+   *          the EdDSA public key
+   */
+  EdDSAJcaVerifier(final PublicKey publicKey) {
+    this.publicKey = publicKey;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean verify(final JWSHeader header, final byte[] signedContent, final Base64URL signature) throws JOSEException {
+    if (!JWSAlgorithm.EdDSA.equals(header.getAlgorithm())) {
+      throw new JOSEException("Unsupported JWS algorithm " + header.getAlgorithm() + " - expected " + JWSAlgorithm.EdDSA);
+    }
+    try {
+      final Signature verifier = this.jcaContext.getProvider() != null
+          ? Signature.getInstance(EdDSAJcaSigner.JCA_ALGORITHM, this.jcaContext.getProvider())
+          : Signature.getInstance(EdDSAJcaSigner.JCA_ALGORITHM);
+      verifier.initVerify(this.publicKey);
+      verifier.update(signedContent);
+      return verifier.verify(signature.decode());
+    }
+    catch (GeneralSecurityException e) {
+      throw new JOSEException("EdDSA signature verification failed - " + e.getMessage(), e);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Set<JWSAlgorithm> supportedJWSAlgorithms() {
+    return Collections.singleton(JWSAlgorithm.EdDSA);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public JCAContext getJCAContext() {
+    return this.jcaContext;
+  }
+
+}
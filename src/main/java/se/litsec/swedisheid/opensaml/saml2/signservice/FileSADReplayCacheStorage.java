@@ -0,0 +1,296 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.ObjLongConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link SADReplayCacheStorage} that stores the replay cache entries in a local file.
+ * <p>
+ * Each entry is appended to the file as a line holding the expiration time and the (base64url-encoded) key. When
+ * entries are evicted from the cache, the file is compacted.
+ * </p>
+ * <p>
+ * The file is written by a background thread, so {@link #store(String, long)} and {@link #evict(long)} never wait for
+ * the disk. Entries stored while the background thread is busy are appended (and flushed) together. Entries that have
+ * not been written when the process dies are lost. Use {@link #close()} to write all pending entries.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class FileSADReplayCacheStorage implements SADReplayCacheStorage {
+
+  /** Logger instance. */
+  private final Logger logger = LoggerFactory.getLogger(FileSADReplayCacheStorage.class);
+
+  /** The file holding the entries. */
+  private final Path file;
+
+  /** The writer used to append entries (only used by the background thread). */
+  private Writer writer;
+
+  /** Lines waiting to be appended to the file. */
+  private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+
+  /** Tells whether a task appending the pending lines has been scheduled. */
+  private final AtomicBoolean appendScheduled = new AtomicBoolean();
+
+  /** The background thread writing to the file. */
+  private final ExecutorService writerThread;
+
+  /** Tells whether the storage has been closed. */
+  private volatile boolean closed = false;
+
+  /**
+   * Constructor.
+   *
+   * @param file
+   *          the file holding the entries (will be created if it does not exist)
+   */
+  public FileSADReplayCacheStorage(final Path file) {
+    if (file == null) {
+      throw new IllegalArgumentException("file must not be null");
+    }
+    this.file = file;
+    this.writerThread = Executors.newSingleThreadExecutor(r -> {
+      final Thread thread = new Thread(r, "sad-replay-cache-storage");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public synchronized void load(final ObjLongConsumer<String> consumer) throws IOException {
+    if (!Files.exists(this.file)) {
+      return;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(this.file, StandardCharsets.US_ASCII)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final int pos = line.indexOf(' ');
+        if (pos <= 0) {
+          continue;
+        }
+        try {
+          final long expiry = Long.parseLong(line.substring(0, pos));
+          final String key = new String(Base64.getUrlDecoder().decode(line.substring(pos + 1)), StandardCharsets.UTF_8);
+          consumer.accept(key, expiry);
+        }
+        catch (IllegalArgumentException e) {
+          logger.warn("Ignoring bad entry in SAD replay cache file {}", this.file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Queues the entry for writing by the background thread.
+   *
+   * @throws IOException
+   *           if the storage has been closed
+   */
+  @Override
+  public void store(final String key, final long expiry) throws IOException {
+    this.checkNotClosed();
+    final String line = toLine(key, expiry);
+    this.pending.add(line);
+
+    // If the storage was closed while the entry was queued, and the entry was not written by close(), reject it ...
+    //
+    if (this.closed && this.pending.remove(line)) {
+      throw new IOException("SAD replay cache storage is closed");
+    }
+    if (this.appendScheduled.compareAndSet(false, true)) {
+      try {
+        this.submit(this::appendPending);
+      }
+      catch (IOException e) {
+        this.appendScheduled.set(false);
+        this.pending.remove(line);
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Schedules compaction of the file by the background thread.
+   *
+   * @throws IOException
+   *           if the storage has been closed
+   */
+  @Override
+  public void evict(final long expiredBefore) throws IOException {
+    this.checkNotClosed();
+    this.submit(() -> {
+      try {
+        this.compact(expiredBefore);
+      }
+      catch (IOException e) {
+        logger.error("Failed to compact SAD replay cache file {}", this.file, e);
+      }
+    });
+  }
+
+  /**
+   * Writes all pending entries and closes the underlying file. After the storage has been closed, {@link #store(String,
+   * long)} and {@link #evict(long)} throw an {@link IOException}.
+   *
+   * @throws IOException
+   *           for errors closing the file
+   */
+  public void close() throws IOException {
+    this.closed = true;
+    this.writerThread.shutdown();
+    try {
+      if (!this.writerThread.awaitTermination(10, TimeUnit.SECONDS)) {
+        logger.warn("Timeout waiting for SAD replay cache file {} to be written", this.file);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      this.appendPending();
+      if (this.writer != null) {
+        this.writer.close();
+        this.writer = null;
+      }
+    }
+  }
+
+  /**
+   * Asserts that the storage has not been closed.
+   *
+   * @throws IOException
+   *           if the storage has been closed
+   */
+  private void checkNotClosed() throws IOException {
+    if (this.closed) {
+      throw new IOException("SAD replay cache storage is closed");
+    }
+  }
+
+  /**
+   * Submits a task to the background thread.
+   *
+   * @param task
+   *          the task
+   * @throws IOException
+   *           if the storage has been closed
+   */
+  private void submit(final Runnable task) throws IOException {
+    try {
+      this.writerThread.execute(task);
+    }
+    catch (RejectedExecutionException e) {
+      throw new IOException("SAD replay cache storage is closed", e);
+    }
+  }
+
+  /**
+   * Appends all pending entries to the file. Invoked by the background thread.
+   */
+  private synchronized void appendPending() {
+    this.appendScheduled.set(false);
+    try {
+      String line;
+      while ((line = this.pending.poll()) != null) {
+        if (this.writer == null) {
+          this.writer = Files.newBufferedWriter(this.file, StandardCharsets.US_ASCII, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        this.writer.write(line);
+      }
+      if (this.writer != null) {
+        this.writer.flush();
+      }
+    }
+    catch (IOException e) {
+      logger.error("Failed to write to SAD replay cache file {}", this.file, e);
+    }
+  }
+
+  /**
+   * Removes all entries that expire before the given time from the file. Invoked by the background thread.
+   *
+   * @param expiredBefore
+   *          the time (seconds since 1970-01-01)
+   * @throws IOException
+   *           for I/O errors
+   */
+  private synchronized void compact(final long expiredBefore) throws IOException {
+    this.appendPending();
+    if (this.writer != null) {
+      this.writer.close();
+      this.writer = null;
+    }
+    if (!Files.exists(this.file)) {
+      return;
+    }
+    final Path tmp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+    try (BufferedReader reader = Files.newBufferedReader(this.file, StandardCharsets.US_ASCII);
+        BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.US_ASCII)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final int pos = line.indexOf(' ');
+        try {
+          if (pos > 0 && Long.parseLong(line.substring(0, pos)) >= expiredBefore) {
+            out.write(line);
+            out.write('\n');
+          }
+        }
+        catch (NumberFormatException e) {
+          // Drop bad entries ...
+        }
+      }
+    }
+    Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Returns the file line for an entry.
+   *
+   * @param key
+   *          the key
+   * @param expiry
+   *          the expiration time
+   * @return the line
+   */
+  private static String toLine(final String key, final long expiry) {
+    return expiry + " " + Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8)) + "\n";
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-memory {@link SADRequestStore} where records are evicted after a configurable time-to-live.
+ * <p>
+ * Each record is held in a compact form (one byte array holding the encoded record).
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class InMemorySADRequestStore implements SADRequestStore {
+
+  /** The default time-to-live for records (10 minutes). */
+  public static final Duration DEFAULT_TTL = Duration.ofMinutes(10);
+
+  /** The time-to-live in millis. */
+  private final long ttl;
+
+  /** The records, indexed by SADRequest ID. */
+  private final Map<String, Entry> records = new ConcurrentHashMap<>();
+
+  /** The time (millis since 1970-01-01) when the store was last checked for expired records. */
+  private volatile long lastEviction = 0;
+
+  /**
+   * Constructor using {@link #DEFAULT_TTL}.
+   */
+  public InMemorySADRequestStore() {
+    this(DEFAULT_TTL);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ttl
+   *          the time-to-live for records
+   */
+  public InMemorySADRequestStore(final Duration ttl) {
+    if (ttl == null || ttl.isNegative() || ttl.isZero()) {
+      throw new IllegalArgumentException("ttl must be positive");
+    }
+    this.ttl = ttl.toMillis();
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void put(final SADRequestRecord record) {
+    final long now = System.currentTimeMillis();
+    if (now - this.lastEviction >= 1000L) {
+      this.evictExpired(now);
+    }
+    this.records.put(record.getSadRequestID(), new Entry(now + this.ttl, record.encode()));
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public SADRequestRecord get(final String sadRequestID) {
+    final Entry entry = sadRequestID != null ? this.records.get(sadRequestID) : null;
+    return entry != null && entry.expires > System.currentTimeMillis() ? SADRequestRecord.decode(entry.record) : null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public SADRequestRecord remove(final String sadRequestID) {
+    final Entry entry = sadRequestID != null ? this.records.remove(sadRequestID) : null;
+    return entry != null && entry.expires > System.currentTimeMillis() ? SADRequestRecord.decode(entry.record) : null;
+  }
+
+  /**
+   * Removes all expired records.
+   *
+   * @param now
+   *          the current time (millis since 1970-01-01)
+   */
+  public void evictExpired(final long now) {
+    this.lastEviction = now;
+    this.records.values().removeIf(e -> e.expires <= now);
+  }
+
+  /**
+   * Returns the number of records held by the store (including expired records not yet evicted).
+   *
+   * @return the number of records
+   */
+  public int size() {
+    return this.records.size();
+  }
+
+  /**
+   * A stored record.
+   */
+  private static class Entry {
+
+    /** Expiration time (millis since 1970-01-01). */
+    private final long expires;
+
+    /** The encoded record. */
+    private final byte[] record;
+
+    /**
+     * Constructor.
+     *
+     * @param expires
+     *          expiration time (millis since 1970-01-01)
+     * @param record
+     *          the encoded record
+     */
+    Entry(final long expires, final byte[] record) {
+      this.expires = expires;
+      this.record = record;
+    }
+  }
+
+}
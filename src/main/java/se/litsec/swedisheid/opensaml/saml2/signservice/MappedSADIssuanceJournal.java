@@ -0,0 +1,783 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SAD;
+
+/**
+ * A {@link SADIssuanceJournal} that appends fixed-size records to memory-mapped segment files.
+ * <p>
+ * Recording a SAD is a copy into a memory-mapped buffer, i.e., it does not wait for the disk. The mapped segments are
+ * written to disk ({@code fsync}) by a background thread at a fixed interval, so all records written during one interval
+ * are committed together (group commit). Records written after the last commit may be lost if the machine crashes (but
+ * not if only the JVM crashes). Use {@link #flush()} to force all records to disk.
+ * </p>
+ * <p>
+ * The journal is split into segment files ({@code sad-journal-NNNNNNNNNN.seg}) holding a fixed number of records. When a
+ * segment is full, writing continues in the next segment. The next segment is created in advance by the background
+ * thread. Full segments are never modified. A full segment is removed (along with its index entries) by the background
+ * thread when all of its SAD:s expired longer ago than the retention period (see {@link #DEFAULT_RETENTION}). Segments
+ * that should be kept longer must be archived before that.
+ * </p>
+ * <p>
+ * Only the current segment and the pre-allocated next segment are memory-mapped. Full segments are read using ordinary
+ * file I/O. Since neither Java 8 nor Java 11 has a public API for unmapping a file, the mapping of a segment that has
+ * become full is released when its buffer is garbage collected. Until then the segment file can not be deleted on
+ * Windows, so a full segment that can not be removed when its retention period has expired is removed by a later
+ * commit.
+ * </p>
+ * <p>
+ * Each record is {@value #RECORD_SIZE} bytes and is laid out as follows:
+ * </p>
+ * <ul>
+ * <li>0: magic (4 bytes)</li>
+ * <li>4: CRC32 over bytes 8 to {@value #RECORD_SIZE} (4 bytes)</li>
+ * <li>8: {@code iat} (8 bytes)</li>
+ * <li>16: {@code exp} (8 bytes)</li>
+ * <li>24: {@code jti}, {@code sub}, {@code aud}, {@code irt} and {@code reqid} - each stored as a 2 byte length
+ * (-1 for null) followed by the UTF-8 bytes.</li>
+ * </ul>
+ * <p>
+ * The magic is written last, and a record is only regarded as valid if the magic and checksum are correct. An index
+ * from JWT ID to record location is kept in memory and is rebuilt from the retained segment files when the journal is
+ * opened.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class MappedSADIssuanceJournal implements SADIssuanceJournal, Closeable {
+
+  /** The size of a journal record (in bytes). */
+  public static final int RECORD_SIZE = 1024;
+
+  /** The default number of records per segment file (65536 records, i.e., 64 MB). */
+  public static final int DEFAULT_RECORDS_PER_SEGMENT = 65536;
+
+  /** The default interval between commits (fsync). */
+  public static final Duration DEFAULT_COMMIT_INTERVAL = Duration.ofMillis(100);
+
+  /** The default retention period for full segments (counted from the expiry of the last SAD in the segment). */
+  public static final Duration DEFAULT_RETENTION = Duration.ofDays(7);
+
+  /** The magic of a valid record ("SAD1"). */
+  private static final int MAGIC = 0x53414431;
+
+  /** The offset of the first string field within a record. */
+  private static final int FIELDS_OFFSET = 24;
+
+  /** The file name prefix for segment files. */
+  private static final String FILE_PREFIX = "sad-journal-";
+
+  /** The file name suffix for segment files. */
+  private static final String FILE_SUFFIX = ".seg";
+
+  /** The number of records read at a time from a full segment. */
+  private static final int READ_BATCH = 64;
+
+  /** Logger instance. */
+  private final Logger logger = LoggerFactory.getLogger(MappedSADIssuanceJournal.class);
+
+  /** The directory holding the segment files. */
+  private final Path directory;
+
+  /** The number of records per segment. */
+  private final int recordsPerSegment;
+
+  /** The retention period for full segments (in seconds). */
+  private final long retention;
+
+  /** Index of all retained records, mapping the JWT ID to the record location (segment sequence number and slot). */
+  private final ConcurrentMap<String, Long> index = new ConcurrentHashMap<>();
+
+  /** Full and committed segments, mapping the segment sequence number to the latest expiry of its records. */
+  private final ConcurrentMap<Long, Long> sealedSegments = new ConcurrentSkipListMap<>();
+
+  /** Full segments that are waiting to be committed and closed. */
+  private final Queue<Segment> pendingSegments = new ConcurrentLinkedQueue<>();
+
+  /** The background thread committing the segments. */
+  private final ScheduledExecutorService committer;
+
+  /** The segment currently written to. */
+  private volatile Segment current;
+
+  /** The next segment (created in advance). */
+  private Segment spare;
+
+  /** Tells whether records have been written to the current segment since the last commit. */
+  private volatile boolean dirty;
+
+  /** Whether the journal has been closed. */
+  private boolean closed;
+
+  /**
+   * Constructor creating a journal with {@link #DEFAULT_RECORDS_PER_SEGMENT}, {@link #DEFAULT_COMMIT_INTERVAL} and
+   * {@link #DEFAULT_RETENTION}.
+   *
+   * @param directory
+   *          the directory holding the segment files (will be created if it does not exist)
+   * @throws IOException
+   *           if the journal can not be opened
+   */
+  public MappedSADIssuanceJournal(final Path directory) throws IOException {
+    this(directory, DEFAULT_RECORDS_PER_SEGMENT, DEFAULT_COMMIT_INTERVAL);
+  }
+
+  /**
+   * Constructor creating a journal with {@link #DEFAULT_RETENTION}.
+   *
+   * @param directory
+   *          the directory holding the segment files (will be created if it does not exist)
+   * @param recordsPerSegment
+   *          the number of records per segment file
+   * @param commitInterval
+   *          the interval between commits (fsync)
+   * @throws IOException
+   *           if the journal can not be opened
+   */
+  public MappedSADIssuanceJournal(final Path directory, final int recordsPerSegment, final Duration commitInterval)
+      throws IOException {
+    this(directory, recordsPerSegment, commitInterval, DEFAULT_RETENTION);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param directory
+   *          the directory holding the segment files (will be created if it does not exist)
+   * @param recordsPerSegment
+   *          the number of records per segment file
+   * @param commitInterval
+   *          the interval between commits (fsync)
+   * @param retention
+   *          how long a full segment is kept after the last SAD in the segment expired
+   * @throws IOException
+   *           if the journal can not be opened
+   */
+  public MappedSADIssuanceJournal(final Path directory, final int recordsPerSegment, final Duration commitInterval,
+      final Duration retention) throws IOException {
+    if (directory == null) {
+      throw new IllegalArgumentException("directory must not be null");
+    }
+    if (recordsPerSegment < 1 || recordsPerSegment > Integer.MAX_VALUE / RECORD_SIZE) {
+      throw new IllegalArgumentException("Invalid recordsPerSegment");
+    }
+    if (commitInterval == null || commitInterval.isNegative() || commitInterval.isZero()) {
+      throw new IllegalArgumentException("commitInterval must be positive");
+    }
+    if (retention == null || retention.isNegative()) {
+      throw new IllegalArgumentException("retention must not be negative");
+    }
+    this.directory = directory;
+    this.recordsPerSegment = recordsPerSegment;
+    this.retention = retention.getSeconds();
+
+    Files.createDirectories(directory);
+    this.current = this.recover();
+
+    this.committer = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread thread = new Thread(r, "sad-journal-commit");
+      thread.setDaemon(true);
+      return thread;
+    });
+    final long interval = commitInterval.toNanos();
+    this.committer.scheduleWithFixedDelay(this::commit, interval, interval, TimeUnit.NANOSECONDS);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void record(final SAD sad) throws IOException {
+    final SADIssuanceRecord record = SADIssuanceRecord.of(sad);
+    final byte[] bytes = encode(record);
+
+    // A segment that we had to create ourselves (outside of the lock) ...
+    Segment created = null;
+    try {
+      while (true) {
+        final long nextSequence;
+        synchronized (this) {
+          if (this.closed) {
+            throw new IOException("SAD issuance journal is closed");
+          }
+          Segment segment = this.current;
+          if (segment.next == this.recordsPerSegment) {
+            if (created != null && this.spare == null && created.sequence == segment.sequence + 1) {
+              this.spare = created;
+              created = null;
+            }
+            segment = this.rotate();
+          }
+          if (segment != null) {
+            final int slot = segment.next++;
+            final int offset = slot * RECORD_SIZE;
+
+            // Write the magic last ...
+            segment.buffer.position(offset + 4);
+            segment.buffer.put(bytes, 4, RECORD_SIZE - 4);
+            segment.buffer.putInt(offset, MAGIC);
+
+            segment.expiry = Math.max(segment.expiry, record.getExpiry().getEpochSecond());
+            this.index.put(record.getJwtId(), location(segment.sequence, slot));
+            this.dirty = true;
+            return;
+          }
+          nextSequence = this.current.sequence + 1;
+        }
+
+        // No pre-allocated segment available. Create it without holding the lock, and try again ...
+        //
+        logger.debug("No pre-allocated SAD journal segment available - creating segment {}", nextSequence);
+        if (created != null) {
+          created.channel.close();
+        }
+        created = this.openSegment(nextSequence);
+      }
+    }
+    finally {
+      if (created != null) {
+        created.channel.close();
+      }
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public SADIssuanceRecord find(final String jwtId) throws IOException {
+    final Long location = jwtId != null ? this.index.get(jwtId) : null;
+    if (location == null) {
+      return null;
+    }
+    final long sequence = location >>> 32;
+    final int offset = (int) (location & 0xffffffffL) * RECORD_SIZE;
+    final byte[] bytes = new byte[RECORD_SIZE];
+
+    final Segment segment = this.current;
+    if (segment.sequence == sequence) {
+      final ByteBuffer buffer = segment.buffer.duplicate();
+      buffer.position(offset);
+      buffer.get(bytes);
+    }
+    else {
+      try (FileChannel channel = FileChannel.open(this.getSegmentFile(sequence), StandardOpenOption.READ)) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, offset + buffer.position()) < 0) {
+            break;
+          }
+        }
+      }
+      catch (NoSuchFileException e) {
+        // The segment was removed after the retention period expired ...
+        return null;
+      }
+    }
+    return decode(bytes);
+  }
+
+  /**
+   * Returns the number of (retained) records in the journal.
+   *
+   * @return the number of records
+   */
+  public int size() {
+    return this.index.size();
+  }
+
+  /**
+   * Forces all records written so far to disk.
+   *
+   * @throws IOException
+   *           for write errors
+   */
+  public void flush() throws IOException {
+    Segment segment;
+    while ((segment = this.pendingSegments.poll()) != null) {
+      this.seal(segment);
+    }
+    this.dirty = false;
+    this.current.buffer.force();
+  }
+
+  /**
+   * Commits all records to disk and closes the journal.
+   *
+   * @throws IOException
+   *           for write errors
+   */
+  @Override
+  public void close() throws IOException {
+    final Segment spareSegment;
+    synchronized (this) {
+      if (this.closed) {
+        return;
+      }
+      this.closed = true;
+      spareSegment = this.spare;
+      this.spare = null;
+    }
+    this.committer.shutdown();
+    try {
+      this.committer.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.flush();
+    this.current.channel.close();
+    if (spareSegment != null) {
+      spareSegment.channel.close();
+    }
+  }
+
+  /**
+   * Commits the journal. Invoked by the background thread.
+   */
+  private void commit() {
+    try {
+      Segment segment;
+      while ((segment = this.pendingSegments.poll()) != null) {
+        this.seal(segment);
+      }
+      if (this.dirty) {
+        this.dirty = false;
+        this.current.buffer.force();
+      }
+      this.prune();
+
+      // Create the next segment, so that the rotation doesn't have to ...
+      //
+      final Segment currentSegment = this.current;
+      synchronized (this) {
+        if (this.closed || (this.spare != null && this.spare.sequence == currentSegment.sequence + 1)) {
+          return;
+        }
+      }
+      final Segment next = this.openSegment(currentSegment.sequence + 1);
+      synchronized (this) {
+        if (!this.closed && this.current == currentSegment && this.spare == null) {
+          this.spare = next;
+          return;
+        }
+      }
+      next.channel.close();
+    }
+    catch (IOException | RuntimeException e) {
+      logger.error("Failed to commit SAD issuance journal - {}", e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Commits and closes a full segment, and makes it subject to removal after the retention period.
+   *
+   * @param segment
+   *          the full segment
+   * @throws IOException
+   *           for write errors
+   */
+  private void seal(final Segment segment) throws IOException {
+    segment.buffer.force();
+    segment.channel.close();
+    // The segment is no longer referenced by the journal, so its mapping is released when the buffer is collected ...
+    this.sealedSegments.put(segment.sequence, segment.expiry);
+  }
+
+  /**
+   * Removes the full segments whose records all expired longer ago than the retention period, along with their index
+   * entries. Invoked by the background thread.
+   *
+   * @throws IOException
+   *           for I/O errors
+   */
+  private void prune() throws IOException {
+    final long limit = System.currentTimeMillis() / 1000 - this.retention;
+    final Iterator<Map.Entry<Long, Long>> segments = this.sealedSegments.entrySet().iterator();
+    while (segments.hasNext()) {
+      final Map.Entry<Long, Long> entry = segments.next();
+      if (entry.getValue() >= limit) {
+        continue;
+      }
+      final long sequence = entry.getKey();
+      final Path file = this.getSegmentFile(sequence);
+      final List<String> jwtIds = new ArrayList<>();
+      try {
+        this.readSegment(sequence, jwtIds);
+      }
+      catch (NoSuchFileException e) {
+        // Already removed ...
+      }
+      for (int slot = 0; slot < jwtIds.size(); slot++) {
+        this.index.remove(jwtIds.get(slot), location(sequence, slot));
+      }
+      try {
+        Files.deleteIfExists(file);
+      }
+      catch (IOException e) {
+        // On Windows, the file can not be deleted while it is still mapped. Try again at the next commit ...
+        logger.debug("Failed to remove SAD issuance journal segment {} - {}", file, e.getMessage());
+        continue;
+      }
+      segments.remove();
+      logger.debug("Removed SAD issuance journal segment {} - retention period expired", file);
+    }
+  }
+
+  /**
+   * Moves on to the pre-allocated next segment. Must be called while holding the lock. No file I/O is performed.
+   *
+   * @return the new current segment, or null if no pre-allocated segment is available
+   */
+  private Segment rotate() {
+    final Segment previous = this.current;
+    final Segment next = this.spare;
+    if (next == null || next.sequence != previous.sequence + 1) {
+      return null;
+    }
+    this.spare = null;
+    this.current = next;
+    this.pendingSegments.add(previous);
+    return next;
+  }
+
+  /**
+   * Reads the retained segments, builds the index and returns the segment to continue writing to. Full segments whose
+   * retention period has expired are removed, and so are pre-allocated segments that were never written to.
+   *
+   * @return the current segment
+   * @throws IOException
+   *           for read errors
+   */
+  private Segment recover() throws IOException {
+    final List<Long> sequences = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+      for (Path file : files) {
+        final String name = file.getFileName().toString();
+        try {
+          sequences.add(Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length())));
+        }
+        catch (NumberFormatException e) {
+          logger.warn("Ignoring file {} in SAD journal directory", file);
+        }
+      }
+    }
+    Collections.sort(sequences);
+
+    // Writing continues in the last segment holding records. Later segments are pre-allocated segments that were never
+    // written to ...
+    //
+    int last = sequences.size() - 1;
+    while (last > 0) {
+      final Path file = this.getSegmentFile(sequences.get(last));
+      final byte[] first = new byte[RECORD_SIZE];
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        final ByteBuffer buffer = ByteBuffer.wrap(first);
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer) < 0) {
+            break;
+          }
+        }
+      }
+      if (decode(first) != null) {
+        break;
+      }
+      Files.delete(file);
+      last--;
+    }
+
+    final long limit = System.currentTimeMillis() / 1000 - this.retention;
+    final List<String> jwtIds = new ArrayList<>();
+    for (int i = 0; i <= last; i++) {
+      final long sequence = sequences.get(i);
+      jwtIds.clear();
+      final long expiry = this.readSegment(sequence, jwtIds);
+      if (i != last && expiry < limit) {
+        Files.delete(this.getSegmentFile(sequence));
+        continue;
+      }
+      for (int slot = 0; slot < jwtIds.size(); slot++) {
+        this.index.put(jwtIds.get(slot), location(sequence, slot));
+      }
+      if (i == last) {
+        final Segment segment = this.openSegment(sequence);
+        segment.next = jwtIds.size();
+        segment.expiry = expiry;
+        logger.info("Opened SAD issuance journal in {} - {} records", this.directory, this.index.size());
+        return segment;
+      }
+      this.sealedSegments.put(sequence, expiry);
+    }
+    return this.openSegment(0);
+  }
+
+  /**
+   * Reads the valid records of a segment file using ordinary file I/O (the file is not mapped).
+   *
+   * @param sequence
+   *          the segment sequence number
+   * @param jwtIds
+   *          list to which the JWT ID of each record is added (in slot order)
+   * @return the latest expiry (in seconds since epoch) of the records, or {@link Long#MIN_VALUE} if the segment holds
+   *         no records
+   * @throws IOException
+   *           for read errors
+   */
+  private long readSegment(final long sequence, final List<String> jwtIds) throws IOException {
+    long expiry = Long.MIN_VALUE;
+    final byte[] batch = new byte[READ_BATCH * RECORD_SIZE];
+    final byte[] bytes = new byte[RECORD_SIZE];
+    try (FileChannel channel = FileChannel.open(this.getSegmentFile(sequence), StandardOpenOption.READ)) {
+      final ByteBuffer buffer = ByteBuffer.wrap(batch);
+      long position = 0;
+      while (true) {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer, position + buffer.position()) < 0) {
+            break;
+          }
+        }
+        final int records = buffer.position() / RECORD_SIZE;
+        for (int i = 0; i < records; i++) {
+          System.arraycopy(batch, i * RECORD_SIZE, bytes, 0, RECORD_SIZE);
+          final SADIssuanceRecord record = decode(bytes);
+          if (record == null) {
+            return expiry;
+          }
+          jwtIds.add(record.getJwtId());
+          expiry = Math.max(expiry, record.getExpiry().getEpochSecond());
+        }
+        if (records < READ_BATCH) {
+          return expiry;
+        }
+        position += batch.length;
+      }
+    }
+  }
+
+  /**
+   * Opens (and creates, if needed) a segment file and maps it into memory.
+   *
+   * @param sequence
+   *          the segment sequence number
+   * @return the segment
+   * @throws IOException
+   *           for I/O errors
+   */
+  private Segment openSegment(final long sequence) throws IOException {
+    final FileChannel channel = FileChannel.open(this.getSegmentFile(sequence),
+      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      return new Segment(sequence, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, this.getSegmentSize()));
+    }
+    catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the path to the given segment file.
+   *
+   * @param sequence
+   *          the segment sequence number
+   * @return the path
+   */
+  private Path getSegmentFile(final long sequence) {
+    return this.directory.resolve(String.format("%s%010d%s", FILE_PREFIX, sequence, FILE_SUFFIX));
+  }
+
+  /**
+   * Returns the size of a segment file.
+   *
+   * @return the segment size (in bytes)
+   */
+  private long getSegmentSize() {
+    return (long) this.recordsPerSegment * RECORD_SIZE;
+  }
+
+  /**
+   * Returns the location of a record.
+   *
+   * @param sequence
+   *          the segment sequence number
+   * @param slot
+   *          the slot within the segment
+   * @return the location
+   */
+  private static long location(final long sequence, final int slot) {
+    return (sequence << 32) | slot;
+  }
+
+  /**
+   * Encodes a record.
+   *
+   * @param record
+   *          the record
+   * @return the encoding ({@value #RECORD_SIZE} bytes)
+   * @throws IOException
+   *           if the record does not fit
+   */
+  private static byte[] encode(final SADIssuanceRecord record) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+    buffer.putInt(MAGIC);
+    buffer.putInt(0);
+    buffer.putLong(record.getIssuedAt().getEpochSecond());
+    buffer.putLong(record.getExpiry().getEpochSecond());
+    try {
+      putString(buffer, record.getJwtId());
+      putString(buffer, record.getSubject());
+      putString(buffer, record.getAudience());
+      putString(buffer, record.getInResponseTo());
+      putString(buffer, record.getRequestID());
+    }
+    catch (BufferOverflowException e) {
+      throw new IOException("SAD claims too large for SAD issuance journal record");
+    }
+    final byte[] bytes = buffer.array();
+    final CRC32 crc = new CRC32();
+    crc.update(bytes, 8, RECORD_SIZE - 8);
+    buffer.putInt(4, (int) crc.getValue());
+    return bytes;
+  }
+
+  /**
+   * Decodes a record.
+   *
+   * @param bytes
+   *          the record bytes
+   * @return the record, or null if the bytes do not hold a valid record
+   */
+  private static SADIssuanceRecord decode(final byte[] bytes) {
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    if (buffer.getInt() != MAGIC) {
+      return null;
+    }
+    final CRC32 crc = new CRC32();
+    crc.update(bytes, 8, RECORD_SIZE - 8);
+    if (buffer.getInt() != (int) crc.getValue()) {
+      return null;
+    }
+    final long issuedAt = buffer.getLong();
+    final long expiry = buffer.getLong();
+    final String jwtId = getString(buffer);
+    if (jwtId == null) {
+      return null;
+    }
+    return new SADIssuanceRecord(jwtId, getString(buffer), getString(buffer), getString(buffer), getString(buffer), issuedAt, expiry);
+  }
+
+  /**
+   * Writes a string field.
+   *
+   * @param buffer
+   *          the buffer
+   * @param value
+   *          the value (may be null)
+   */
+  private static void putString(final ByteBuffer buffer, final String value) {
+    if (value == null) {
+      buffer.putShort((short) -1);
+      return;
+    }
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    buffer.putShort((short) bytes.length);
+    buffer.put(bytes);
+  }
+
+  /**
+   * Reads a string field.
+   *
+   * @param buffer
+   *          the buffer
+   * @return the value (may be null)
+   */
+  private static String getString(final ByteBuffer buffer) {
+    final int length = buffer.getShort();
+    if (length < 0) {
+      return null;
+    }
+    final String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  /**
+   * A memory-mapped segment file.
+   */
+  private static class Segment {
+
+    /** The segment sequence number. */
+    private final long sequence;
+
+    /** The file channel. */
+    private final FileChannel channel;
+
+    /** The mapped file. */
+    private final MappedByteBuffer buffer;
+
+    /** The next free slot (guarded by the journal lock). */
+    private int next;
+
+    /** The latest expiry (in seconds since epoch) of the records in the segment (guarded by the journal lock). */
+    private long expiry = Long.MIN_VALUE;
+
+    /**
+     * Constructor.
+     *
+     * @param sequence
+     *          the segment sequence number
+     * @param channel
+     *          the file channel
+     * @param buffer
+     *          the mapped file
+     */
+    Segment(final long sequence, final FileChannel channel, final MappedByteBuffer buffer) {
+      this.sequence = sequence;
+      this.channel = channel;
+      this.buffer = buffer;
+    }
+  }
+
+}
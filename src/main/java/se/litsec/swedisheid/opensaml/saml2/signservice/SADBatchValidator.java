@@ -0,0 +1,320 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.litsec.swedisheid.opensaml.saml2.signservice.SADParser.SADValidator;
+import se.litsec.swedisheid.opensaml.saml2.signservice.SADValidationException.ErrorCode;
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SAD;
+
+/**
+ * Validates a batch of SAD JWT:s in parallel using a {@link SADValidator}.
+ * <p>
+ * Each item is validated on its own and the result for each item is reported separately, so an invalid SAD does not
+ * affect the validation of the other items in the batch.
+ * </p>
+ * <p>
+ * By default the validation is performed using {@link ForkJoinPool#commonPool()}. Another executor, for example an
+ * executor using virtual threads (Java 21 and later), may be assigned using {@link #setExecutor(Executor)}. If the
+ * executor rejects an item, that item is validated on the calling thread.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SADBatchValidator {
+
+  /** Logger instance. */
+  private final Logger logger = LoggerFactory.getLogger(SADBatchValidator.class);
+
+  /** The validator to use. */
+  private final SADValidator validator;
+
+  /** The executor that performs the validation. */
+  private Executor executor = ForkJoinPool.commonPool();
+
+  /**
+   * Constructor.
+   *
+   * @param validator
+   *          the SAD validator to use
+   */
+  public SADBatchValidator(final SADValidator validator) {
+    if (validator == null) {
+      throw new IllegalArgumentException("validator must not be null");
+    }
+    this.validator = validator;
+  }
+
+  /**
+   * Validates the supplied items in parallel and waits for all of them to complete.
+   *
+   * @param items
+   *          the items to validate
+   * @return a list of results (in the same order as the supplied items); an item whose validation failed with an
+   *         unexpected error (i.e., not a {@link SADValidationException}) gets a result holding that error, see
+   *         {@link Result#getUnexpectedError()}
+   */
+  public List<Result> validate(final Collection<Item> items) {
+    final List<Item> itemList = new ArrayList<>(items);
+    final List<CompletableFuture<Result>> futures = new ArrayList<>(itemList.size());
+    for (Item item : itemList) {
+      CompletableFuture<Result> future;
+      try {
+        future = CompletableFuture.supplyAsync(() -> this.validate(item), this.executor);
+      }
+      catch (RejectedExecutionException e) {
+        logger.debug("Executor rejected SAD validation - validating on calling thread");
+        future = CompletableFuture.completedFuture(this.validate(item));
+      }
+      futures.add(future);
+    }
+    final List<Result> results = new ArrayList<>(futures.size());
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        results.add(futures.get(i).join());
+      }
+      catch (CompletionException e) {
+        // Errors that are not runtime exceptions (for example OutOfMemoryError) ...
+        final Throwable cause = e.getCause() != null ? e.getCause() : e;
+        logger.error("Unexpected error during SAD validation - {}", cause.getMessage(), cause);
+        results.add(new Result(itemList.get(i), null, null, cause));
+      }
+    }
+    logger.debug("Validated batch of {} SAD(s)", results.size());
+    return results;
+  }
+
+  /**
+   * Validates one item.
+   *
+   * @param item
+   *          the item to validate
+   * @return the result
+   */
+  private Result validate(final Item item) {
+    try {
+      return new Result(item, this.validator.validate(item.sadJwt, item.idpEntityID, item.expectedRecipientEntityID,
+        item.expectedSubject, item.expectedLoa, item.sadRequestID, item.expectedNoDocs, item.signRequestID), null, null);
+    }
+    catch (SADValidationException e) {
+      return new Result(item, null, e, null);
+    }
+    catch (RuntimeException e) {
+      logger.error("Unexpected error during SAD validation - {}", e.getMessage(), e);
+      return new Result(item, null, null, e);
+    }
+  }
+
+  /**
+   * Assigns the executor that performs the validation. The default is {@link ForkJoinPool#commonPool()}.
+   *
+   * @param executor
+   *          the executor
+   */
+  public void setExecutor(final Executor executor) {
+    if (executor == null) {
+      throw new IllegalArgumentException("executor must not be null");
+    }
+    this.executor = executor;
+  }
+
+  /**
+   * A SAD JWT along with the expected values to validate it against. See
+   * {@link SADValidator#validate(String, String, String, String, String, String, int, String)}.
+   */
+  public static class Item {
+
+    /** The encoded SAD JWT. */
+    private final String sadJwt;
+
+    /** The entityID of the issuing IdP. */
+    private final String idpEntityID;
+
+    /** The entityID of the recipient. */
+    private final String expectedRecipientEntityID;
+
+    /** The expected subject name. */
+    private final String expectedSubject;
+
+    /** The expected LoA. */
+    private final String expectedLoa;
+
+    /** The ID of the SADRequest. */
+    private final String sadRequestID;
+
+    /** The expected number of documents. */
+    private final int expectedNoDocs;
+
+    /** The ID of the SignRequest. */
+    private final String signRequestID;
+
+    /**
+     * Constructor.
+     *
+     * @param sadJwt
+     *          the encoded SAD JWT
+     * @param idpEntityID
+     *          the entityID of the issuing IdP
+     * @param expectedRecipientEntityID
+     *          the entityID of the recipient (the signature service SP that issued the SADRequest)
+     * @param expectedSubject
+     *          the expected subject name (user ID)
+     * @param expectedLoa
+     *          the expected level of assurance to be found in the SAD
+     * @param sadRequestID
+     *          the ID of the {@code SADRequest} extension that was sent to the IdP
+     * @param expectedNoDocs
+     *          expected number of documents
+     * @param signRequestID
+     *          ID for the {@code SignRequest} that was included in the {@code SADRequest}
+     */
+    public Item(final String sadJwt, final String idpEntityID, final String expectedRecipientEntityID, final String expectedSubject,
+        final String expectedLoa, final String sadRequestID, final int expectedNoDocs, final String signRequestID) {
+      this.sadJwt = sadJwt;
+      this.idpEntityID = idpEntityID;
+      this.expectedRecipientEntityID = expectedRecipientEntityID;
+      this.expectedSubject = expectedSubject;
+      this.expectedLoa = expectedLoa;
+      this.sadRequestID = sadRequestID;
+      this.expectedNoDocs = expectedNoDocs;
+      this.signRequestID = signRequestID;
+    }
+
+    /**
+     * Returns the encoded SAD JWT.
+     *
+     * @return the SAD JWT
+     */
+    public String getSadJwt() {
+      return this.sadJwt;
+    }
+
+    /**
+     * Returns the ID of the {@code SADRequest}.
+     *
+     * @return the SADRequest ID
+     */
+    public String getSadRequestID() {
+      return this.sadRequestID;
+    }
+
+  }
+
+  /**
+   * The result of validating an {@link Item}.
+   */
+  public static class Result {
+
+    /** The item that was validated. */
+    private final Item item;
+
+    /** The SAD (if the validation was successful). */
+    private final SAD sad;
+
+    /** The validation error (if the validation failed). */
+    private final SADValidationException error;
+
+    /** The unexpected error (if the validation could not be performed). */
+    private final Throwable unexpectedError;
+
+    /**
+     * Constructor.
+     *
+     * @param item
+     *          the item that was validated
+     * @param sad
+     *          the SAD
+     * @param error
+     *          the validation error
+     * @param unexpectedError
+     *          the unexpected error
+     */
+    private Result(final Item item, final SAD sad, final SADValidationException error, final Throwable unexpectedError) {
+      this.item = item;
+      this.sad = sad;
+      this.error = error;
+      this.unexpectedError = unexpectedError;
+    }
+
+    /**
+     * Returns the item that was validated.
+     *
+     * @return the item
+     */
+    public Item getItem() {
+      return this.item;
+    }
+
+    /**
+     * Tells whether the validation was successful.
+     *
+     * @return true if the SAD was successfully validated
+     */
+    public boolean isValid() {
+      return this.error == null && this.unexpectedError == null;
+    }
+
+    /**
+     * Returns the validated SAD.
+     *
+     * @return the SAD, or null if the validation failed
+     */
+    public SAD getSad() {
+      return this.sad;
+    }
+
+    /**
+     * Returns the validation error.
+     *
+     * @return the error, or null if the validation was successful
+     */
+    public SADValidationException getError() {
+      return this.error;
+    }
+
+    /**
+     * Returns the unexpected error that prevented the item from being validated, for example a bug in a component used
+     * during validation. Such errors are not mapped to an {@link ErrorCode}.
+     *
+     * @return the unexpected error, or null if the item was validated (successfully or not)
+     */
+    public Throwable getUnexpectedError() {
+      return this.unexpectedError;
+    }
+
+    /**
+     * Returns the error code of the validation error.
+     *
+     * @return the error code, or null if the validation was successful or failed with an unexpected error
+     */
+    public ErrorCode getErrorCode() {
+      return this.error != null ? this.error.getErrorCode() : null;
+    }
+
+  }
+
+}
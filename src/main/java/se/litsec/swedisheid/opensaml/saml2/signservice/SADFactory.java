@@ -16,10 +16,18 @@
 package se.litsec.swedisheid.opensaml.saml2.signservice;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.Provider;
 import java.security.SignatureException;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.ECPrivateKey;
 import java.util.Base64;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
-import org.apache.commons.lang3.RandomStringUtils;
 import org.opensaml.security.x509.X509Credential;
 
 import com.nimbusds.jose.JOSEException;
@@ -27,9 +35,15 @@ import com.nimbusds.jose.JOSEObjectType;
 import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.JWSHeader;
 import com.nimbusds.jose.JWSObject;
+import com.nimbusds.jose.JWSSigner;
 import com.nimbusds.jose.Payload;
+import com.nimbusds.jose.crypto.ECDSASigner;
 import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.crypto.impl.ECDSA;
+import com.nimbusds.jose.jca.JCAContext;
+import com.nimbusds.jose.jwk.Curve;
 import com.nimbusds.jose.util.Base64URL;
+import com.nimbusds.jose.util.X509CertUtils;
 
 import se.litsec.swedisheid.opensaml.saml2.attribute.AttributeConstants;
 import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SAD;
@@ -37,6 +51,14 @@ import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SADVersion;
 
 /**
  * A bean for building a {@code SAD} object and a signed JWT holding the SAD.
+ * <p>
+ * The factory is thread-safe. The signing configuration (credential, algorithm, key identifier and JCA provider) and
+ * the issuance settings (validity time, user ID attribute name and JWT ID generation) are held in immutable objects that
+ * are replaced atomically, which means that the signing key may be rotated (see
+ * {@link #rotateSigningCredential(X509Credential, String)}) while SAD:s are being issued. A signing configuration is
+ * checked before it is installed, so a setter that is given an unusable algorithm, provider or credential fails and the
+ * current configuration is kept.
+ * </p>
  * 
  * @author Martin Lindström (martin.lindstrom@litsec.se)
  */
@@ -53,26 +75,45 @@ public class SADFactory {
   /** The default size for generated JWT identifiers (24) */
   public static final int DEFAULT_JWT_ID_SIZE = 24;
 
-  /** The name of the default JWT signature algorithm to be used (RS256). */
+  /** The name of the default JWT signature algorithm to be used for RSA keys (RS256). */
   public static final String DEFAULT_JWT_SIGNING_ALGORITHM = JWSAlgorithm.RS256.getName();
 
-  /** The entityID of the issuing IdP. */
-  private String idpEntityID;
+  /**
+   * Tells how the signing key is identified in the JWS header of the SAD JWT. Including a key identifier makes it
+   * possible for the validator to pick the correct IdP key directly instead of trying all keys found in the IdP
+   * metadata.
+   */
+  public enum KeyIdentifierType {
 
-  /** The IdP signature credential. */
-  private X509Credential signingCredential;
+    /** No key identifier is included in the JWS header. */
+    NONE,
 
-  /** The validity time for a SAD. Defaults to {@link #DEFAULT_VALIDITY_TIME}. */
-  private int validityTime = DEFAULT_VALIDITY_TIME;
+    /** The {@code kid} header parameter is assigned the base64url-encoded SHA-256 thumbprint of the signing certificate. */
+    KEY_ID,
 
-  /** The attribute name for the attribute holding the user ID. Defaults to {@link #DEFAULT_USER_ID_ATTRIBUTE_NAME}. */
-  private String userIdAttributeName = DEFAULT_USER_ID_ATTRIBUTE_NAME;
+    /** The {@code x5t#S256} header parameter is assigned the SHA-256 thumbprint of the signing certificate. */
+    X509_SHA256_THUMBPRINT
+  }
 
-  /** The size of generated JWT identifiers. The default is {@link #DEFAULT_JWT_ID_SIZE}. */
-  private int jwtIdSize = DEFAULT_JWT_ID_SIZE;
+  /** The entityID of the issuing IdP. */
+  private final String idpEntityID;
 
-  /** The JWT signature algorithm. The default is {@link #DEFAULT_JWT_SIGNING_ALGORITHM}. */
-  private String jwtSigningAlgorithm = DEFAULT_JWT_SIGNING_ALGORITHM;
+  /** The issuance settings (validity time, user ID attribute name and JWT ID generation). */
+  private final AtomicReference<IssuanceConfiguration> issuanceConfiguration = new AtomicReference<>(
+    new IssuanceConfiguration(DEFAULT_VALIDITY_TIME, DEFAULT_USER_ID_ATTRIBUTE_NAME, DEFAULT_JWT_ID_SIZE,
+      new SecureRandomSADJwtIdGenerator()));
+
+  /**
+   * The signing configuration (credential, algorithm, key identifier and JCA context). The configuration is immutable
+   * and is replaced atomically when changed, see {@link #rotateSigningCredential(X509Credential, String)}.
+   */
+  private final AtomicReference<SigningConfiguration> signingConfiguration;
+
+  /** The executor used for asynchronous signing. */
+  private volatile SADSigningExecutor signingExecutor;
+
+  /** The optional journal that records all issued SAD:s. */
+  private volatile SADIssuanceJournal issuanceJournal;
 
   /**
    * Constructor.
@@ -81,10 +122,16 @@ public class SADFactory {
    *          the entityID of the issuing IdP
    * @param signingCredential
    *          the IdP signature credential
+   * @throws IllegalArgumentException
+   *           if signingCredential is null
    */
-  public SADFactory(String idpEntityID, X509Credential signingCredential) {
+  public SADFactory(String idpEntityID, X509Credential signingCredential) throws IllegalArgumentException {
+    if (signingCredential == null) {
+      throw new IllegalArgumentException("signingCredential must not be null");
+    }
     this.idpEntityID = idpEntityID;
-    this.signingCredential = signingCredential;
+    this.signingConfiguration = new AtomicReference<>(
+      new SigningConfiguration(signingCredential, null, KeyIdentifierType.NONE, null));
   }
 
   /**
@@ -99,36 +146,127 @@ public class SADFactory {
   /**
    * Given a SAD, the method builds a JWT and signs it using the configured key.
    * <p>
-   * Note: Only RSA keys are supported.
+   * RSA (RS256, RS384, RS512, PS256, PS384, PS512), EC (ES256, ES384, ES512) and EdDSA (Ed25519 and Ed448) keys are
+   * supported. Note that EdDSA requires Java 15 or later (or a JCA provider supporting EdDSA).
    * </p>
    * 
    * @param sad
    *          the SAD to include in the JWT
    * @return a signed JWT (encoded)
    * @throws IOException
-   *           for JSON processing errors
+   *           for JSON processing errors, or if the SAD can not be recorded in the issuance journal
    * @throws SignatureException
    *           for JWT signature errors
+   * @throws IllegalArgumentException
+   *           if an issuance journal is assigned and the SAD has no JWT ID
    * @see SADBuilder#buildJwt()
    */
-  public String createJwt(SAD sad) throws IOException, SignatureException {
+  public String createJwt(SAD sad) throws IOException, SignatureException, IllegalArgumentException {
+
+    // Check that the SAD can be recorded before we sign it ...
+    //
+    final SADIssuanceJournal journal = this.issuanceJournal;
+    if (journal != null && sad.getJwtId() == null) {
+      throw new IllegalArgumentException("SAD has no JWT ID (jti) - can not be recorded in issuance journal");
+    }
 
     String encodedSad = Base64.getUrlEncoder().withoutPadding().encodeToString(sad.toJsonBytes());
 
     // Create JWT and sign ...
     //
     try {
-      JWSHeader header = new JWSHeader.Builder(new JWSAlgorithm(this.jwtSigningAlgorithm)).type(JOSEObjectType.JWT).build();
-      JWSObject signedJwt = new JWSObject(header, new Payload(new Base64URL(encodedSad)));
-      signedJwt.sign(new RSASSASigner(this.signingCredential.getPrivateKey()));
-
-      return signedJwt.serialize();
+      // A single read of the configuration gives a header and signer for the same key, also during a key rotation.
+      //
+      JwtSigning signing = this.signingConfiguration.get().getJwtSigning();
+      JWSObject signedJwt = new JWSObject(signing.header, new Payload(new Base64URL(encodedSad)));
+      signedJwt.sign(signing.signer);
+      final String jwt = signedJwt.serialize();
+
+      if (journal != null) {
+        journal.record(sad);
+      }
+      return jwt;
     }
     catch (JOSEException e) {
       throw new SignatureException("Failed to sign JWT", e);
     }
   }
 
+  /**
+   * Asynchronous version of {@link #createJwt(SAD)}. The JWT is signed using the assigned signing executor (see
+   * {@link #setSigningExecutor(SADSigningExecutor)}), and the calling thread never blocks.
+   * <p>
+   * The returned stage is completed exceptionally with a {@link java.util.concurrent.RejectedExecutionException} if the
+   * signing queue is full, with a {@link java.util.concurrent.TimeoutException} if the operation times out, and with an
+   * {@code IOException} or {@code SignatureException} for the same errors as {@link #createJwt(SAD)}. The stage is not
+   * completed on the signing threads (see {@link SADSigningExecutor}).
+   * </p>
+   * 
+   * @param sad
+   *          the SAD to include in the JWT
+   * @return a completion stage for the signed JWT (encoded)
+   * @throws IllegalStateException
+   *           if no signing executor has been assigned
+   * @see SADBuilder#buildJwtAsync()
+   */
+  public CompletionStage<String> createJwtAsync(SAD sad) throws IllegalStateException {
+    if (this.signingExecutor == null) {
+      throw new IllegalStateException("No signing executor has been assigned");
+    }
+    return this.signingExecutor.submit(() -> this.createJwt(sad));
+  }
+
+  /**
+   * Creates a signer for the given key and algorithm.
+   * 
+   * @param privateKey
+   *          the signing key
+   * @param algorithm
+   *          the JWS algorithm
+   * @return a signer
+   * @throws JOSEException
+   *           if the key and algorithm is not supported
+   */
+  private static JWSSigner createSigner(final PrivateKey privateKey, final JWSAlgorithm algorithm) throws JOSEException {
+    if (JWSAlgorithm.Family.RSA.contains(algorithm)) {
+      return new RSASSASigner(privateKey);
+    }
+    else if (JWSAlgorithm.Family.EC.contains(algorithm)) {
+      if (privateKey instanceof ECPrivateKey) {
+        return new ECDSASigner((ECPrivateKey) privateKey);
+      }
+      return new ECDSASigner(privateKey, Curve.forJWSAlgorithm(algorithm).iterator().next());
+    }
+    else if (JWSAlgorithm.EdDSA.equals(algorithm)) {
+      return new EdDSAJcaSigner(privateKey);
+    }
+    throw new JOSEException("Unsupported JWS algorithm: " + algorithm);
+  }
+
+  /**
+   * Returns the default JWS algorithm for the supplied credential. RS256 is used for RSA keys, ES256, ES384 or ES512 for
+   * EC keys (depending on the curve) and EdDSA for EdDSA keys.
+   * 
+   * @param credential
+   *          the signing credential
+   * @return the JWS algorithm
+   * @throws JOSEException
+   *           if the key is not supported
+   */
+  private static JWSAlgorithm getDefaultAlgorithm(final X509Credential credential) throws JOSEException {
+    Key key = credential.getPublicKey() != null ? credential.getPublicKey() : credential.getPrivateKey();
+    if (key instanceof ECKey) {
+      return ECDSA.resolveAlgorithm((ECKey) key);
+    }
+    else if ("EC".equals(key.getAlgorithm())) {
+      return JWSAlgorithm.ES256;
+    }
+    else if ("EdDSA".equals(key.getAlgorithm()) || "Ed25519".equals(key.getAlgorithm()) || "Ed448".equals(key.getAlgorithm())) {
+      return JWSAlgorithm.EdDSA;
+    }
+    return JWSAlgorithm.parse(DEFAULT_JWT_SIGNING_ALGORITHM);
+  }
+
   /**
    * Assigns the validity time for a SAD object (in seconds). The default is {@link #DEFAULT_VALIDITY_TIME}.
    * 
@@ -139,7 +277,8 @@ public class SADFactory {
     if (seconds < 1) {
       throw new IllegalArgumentException("seconds must be a positive integer");
     }
-    this.validityTime = seconds;
+    this.issuanceConfiguration.updateAndGet(c -> new IssuanceConfiguration(
+      seconds, c.userIdAttributeName, c.jwtIdSize, c.jwtIdGenerator));
   }
 
   /**
@@ -153,7 +292,8 @@ public class SADFactory {
     if (userIdAttributeName == null || userIdAttributeName.isEmpty()) {
       throw new IllegalArgumentException("userIdAttributeName must not be null or empty");
     }
-    this.userIdAttributeName = userIdAttributeName;
+    this.issuanceConfiguration.updateAndGet(c -> new IssuanceConfiguration(
+      c.validityTime, userIdAttributeName, c.jwtIdSize, c.jwtIdGenerator));
   }
 
   /**
@@ -166,17 +306,335 @@ public class SADFactory {
     if (jwtIdSize < 12) {
       throw new IllegalArgumentException("The jwtIdSize must be at least 12 characters");
     }
-    this.jwtIdSize = jwtIdSize;
+    this.issuanceConfiguration.updateAndGet(c -> new IssuanceConfiguration(
+      c.validityTime, c.userIdAttributeName, jwtIdSize, c.jwtIdGenerator));
+  }
+
+  /**
+   * Assigns the generator for JWT identifiers. The default is {@link SecureRandomSADJwtIdGenerator}.
+   * 
+   * @param jwtIdGenerator
+   *          the generator
+   */
+  public void setJwtIdGenerator(SADJwtIdGenerator jwtIdGenerator) {
+    if (jwtIdGenerator == null) {
+      throw new IllegalArgumentException("jwtIdGenerator must not be null");
+    }
+    this.issuanceConfiguration.updateAndGet(c -> new IssuanceConfiguration(
+      c.validityTime, c.userIdAttributeName, c.jwtIdSize, jwtIdGenerator));
+  }
+
+  /**
+   * Assigns the executor that is used for asynchronous signing ({@link #createJwtAsync(SAD)}). The same executor may be
+   * shared by several factories using the same HSM.
+   * 
+   * @param signingExecutor
+   *          the signing executor
+   */
+  public void setSigningExecutor(SADSigningExecutor signingExecutor) {
+    this.signingExecutor = signingExecutor;
+  }
+
+  /**
+   * Assigns a journal that records every issued SAD (after it has been signed). By default, no journal is used.
+   * 
+   * @param issuanceJournal
+   *          the issuance journal (null disables the journal)
+   * @see MappedSADIssuanceJournal
+   */
+  public void setIssuanceJournal(final SADIssuanceJournal issuanceJournal) {
+    this.issuanceJournal = issuanceJournal;
   }
 
   /**
-   * Assigns the JWT signature algorithm. The default is {@link #DEFAULT_JWT_SIGNING_ALGORITHM}.
+   * Assigns the JWT signature algorithm. If not assigned, the algorithm is given by the type of signing key;
+   * {@link #DEFAULT_JWT_SIGNING_ALGORITHM} for RSA keys, ES256, ES384 or ES512 for EC keys (depending on the curve) and
+   * EdDSA for EdDSA keys.
    * 
    * @param jwtSigningAlgorithm
    *          JWT algorithm name
+   * @throws IllegalArgumentException
+   *           if the algorithm can not be used with the signing credential
+   */
+  public void setJwtSigningAlgorithm(String jwtSigningAlgorithm) throws IllegalArgumentException {
+    this.updateSigningConfiguration(c -> new SigningConfiguration(
+      c.credential, jwtSigningAlgorithm, c.keyIdentifierType, c.jcaContext));
+  }
+
+  /**
+   * Assigns the JCA provider to use when signing SAD JWT:s. This makes it possible to use a specific provider, for
+   * example a PKCS#11 provider holding the IdP key or a faster native provider, without changing the JVM provider
+   * configuration. If not assigned, the JVM default provider for the signature algorithm is used.
+   * 
+   * @param provider
+   *          the JCA provider (null resets to the default)
+   * @throws IllegalArgumentException
+   *           if the provider can not sign using the configured credential and algorithm
+   */
+  public void setSigningProvider(final Provider provider) throws IllegalArgumentException {
+    this.setSigningJCAContext(provider != null ? new JCAContext(provider, null) : null);
+  }
+
+  /**
+   * Assigns the JCA context (provider and secure random) to use when signing SAD JWT:s. See
+   * {@link #setSigningProvider(Provider)}.
+   * 
+   * @param signingJCAContext
+   *          the JCA context (null resets to the default)
+   * @throws IllegalArgumentException
+   *           if the provider can not sign using the configured credential and algorithm
+   */
+  public void setSigningJCAContext(final JCAContext signingJCAContext) throws IllegalArgumentException {
+    this.updateSigningConfiguration(c -> new SigningConfiguration(
+      c.credential, c.jwtSigningAlgorithm, c.keyIdentifierType, signingJCAContext));
+  }
+
+  /**
+   * Assigns how the signing key is identified in the JWS header of the SAD JWT. The default is
+   * {@link KeyIdentifierType#NONE}.
+   * 
+   * @param keyIdentifierType
+   *          the key identifier type
+   * @throws IllegalArgumentException
+   *           if a key identifier is requested and the signing credential has no certificate
    */
-  public void setJwtSigningAlgorithm(String jwtSigningAlgorithm) {
-    this.jwtSigningAlgorithm = jwtSigningAlgorithm;
+  public void setKeyIdentifierType(final KeyIdentifierType keyIdentifierType) throws IllegalArgumentException {
+    if (keyIdentifierType == null) {
+      throw new IllegalArgumentException("keyIdentifierType must not be null");
+    }
+    this.updateSigningConfiguration(c -> new SigningConfiguration(
+      c.credential, c.jwtSigningAlgorithm, keyIdentifierType, c.jcaContext));
+  }
+
+  /**
+   * Replaces the signing credential and algorithm. This is how the IdP SAD signing key is rotated without re-creating
+   * the factory.
+   * <p>
+   * The new configuration is set up (and checked) before it is installed, and it is then installed using an atomic swap,
+   * i.e., ongoing and concurrent SAD issuance never blocks. Each SAD JWT is signed using one configuration and its JWS
+   * header is created from the same configuration, so if a key identifier is used (see
+   * {@link #setKeyIdentifierType(KeyIdentifierType)}) a JWT issued during the rotation is always tagged with the key
+   * that actually signed it. The key identifier type and JCA context are kept, also if they are changed concurrently.
+   * </p>
+   * 
+   * @param signingCredential
+   *          the new signing credential
+   * @param jwtSigningAlgorithm
+   *          the JWT algorithm name (null means that the algorithm is given by the type of signing key)
+   * @throws IllegalArgumentException
+   *           if the credential can not be used for signing SAD JWT:s
+   */
+  public void rotateSigningCredential(final X509Credential signingCredential, final String jwtSigningAlgorithm)
+      throws IllegalArgumentException {
+    if (signingCredential == null) {
+      throw new IllegalArgumentException("signingCredential must not be null");
+    }
+    this.updateSigningConfiguration(c -> new SigningConfiguration(
+      signingCredential, jwtSigningAlgorithm, c.keyIdentifierType, c.jcaContext));
+  }
+
+  /**
+   * Creates a new signing configuration from the current one, checks it and installs it. The configuration is created
+   * and checked outside of the atomic swap, and if another thread installed a configuration in the meantime, the new
+   * configuration is created again from that one, so no concurrent change is lost.
+   * 
+   * @param update
+   *          function creating the new configuration from the current configuration
+   * @throws IllegalArgumentException
+   *           if the new configuration can not be used for signing SAD JWT:s
+   */
+  private void updateSigningConfiguration(final UnaryOperator<SigningConfiguration> update)
+      throws IllegalArgumentException {
+    while (true) {
+      final SigningConfiguration current = this.signingConfiguration.get();
+      final SigningConfiguration updated = update.apply(current);
+      updated.check();
+      if (this.signingConfiguration.compareAndSet(current, updated)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the credential that is currently used to sign SAD JWT:s.
+   * 
+   * @return the signing credential
+   */
+  public X509Credential getSigningCredential() {
+    return this.signingConfiguration.get().credential;
+  }
+
+  /**
+   * An immutable signing configuration. The JWS header and signer are created from the configuration on first use.
+   */
+  private static final class SigningConfiguration {
+
+    /** The data signed when a configuration is checked. */
+    private static final byte[] CHECK_SIGNING_INPUT = "check".getBytes(StandardCharsets.US_ASCII);
+
+    /** The signing credential. */
+    private final X509Credential credential;
+
+    /** The JWT signature algorithm. If null, the algorithm is given by the type of signing key. */
+    private final String jwtSigningAlgorithm;
+
+    /** How the signing key is identified in the JWS header. */
+    private final KeyIdentifierType keyIdentifierType;
+
+    /** The JCA context (provider and secure random) used when signing. If null, the JVM defaults are used. */
+    private final JCAContext jcaContext;
+
+    /** The SHA-256 thumbprint of the signing certificate (only calculated if a key identifier is used). */
+    private final Base64URL signingCertificateThumbprint;
+
+    /** The JWS header and signer. */
+    private volatile JwtSigning jwtSigning;
+
+    /**
+     * Constructor.
+     * 
+     * @param credential
+     *          the signing credential
+     * @param jwtSigningAlgorithm
+     *          the JWT algorithm name (may be null)
+     * @param keyIdentifierType
+     *          the key identifier type
+     * @param jcaContext
+     *          the JCA context (may be null)
+     * @throws IllegalArgumentException
+     *           if a key identifier is requested and the credential has no certificate
+     */
+    SigningConfiguration(final X509Credential credential, final String jwtSigningAlgorithm,
+        final KeyIdentifierType keyIdentifierType, final JCAContext jcaContext) throws IllegalArgumentException {
+      this.credential = credential;
+      this.jwtSigningAlgorithm = jwtSigningAlgorithm;
+      this.keyIdentifierType = keyIdentifierType;
+      this.jcaContext = jcaContext;
+      if (keyIdentifierType != KeyIdentifierType.NONE) {
+        if (credential.getEntityCertificate() == null) {
+          throw new IllegalArgumentException("The signing credential has no certificate - can not use a key identifier");
+        }
+        this.signingCertificateThumbprint = X509CertUtils.computeSHA256Thumbprint(credential.getEntityCertificate());
+      }
+      else {
+        this.signingCertificateThumbprint = null;
+      }
+    }
+
+    /**
+     * Returns the JWS header and signer to use. The signer and header are created once and then re-used for all SAD:s
+     * signed using this configuration.
+     * 
+     * @return the JWS header and signer
+     * @throws JOSEException
+     *           if the signer can not be created
+     */
+    JwtSigning getJwtSigning() throws JOSEException {
+      JwtSigning signing = this.jwtSigning;
+      if (signing == null) {
+        final JWSAlgorithm algorithm = this.jwtSigningAlgorithm != null
+            ? JWSAlgorithm.parse(this.jwtSigningAlgorithm)
+            : getDefaultAlgorithm(this.credential);
+
+        final JWSHeader.Builder headerBuilder = new JWSHeader.Builder(algorithm).type(JOSEObjectType.JWT);
+        if (this.keyIdentifierType == KeyIdentifierType.KEY_ID) {
+          headerBuilder.keyID(this.signingCertificateThumbprint.toString());
+        }
+        else if (this.keyIdentifierType == KeyIdentifierType.X509_SHA256_THUMBPRINT) {
+          headerBuilder.x509CertSHA256Thumbprint(this.signingCertificateThumbprint);
+        }
+        final JWSSigner signer = createSigner(this.credential.getPrivateKey(), algorithm);
+        if (this.jcaContext != null) {
+          signer.getJCAContext().setProvider(this.jcaContext.getProvider());
+          signer.getJCAContext().setSecureRandom(this.jcaContext.getSecureRandom());
+        }
+        // Concurrent first calls may create the signer more than once, but they all create the same thing
+        signing = new JwtSigning(headerBuilder.build(), signer);
+        this.jwtSigning = signing;
+      }
+      return signing;
+    }
+
+    /**
+     * Checks that the configuration can be used by setting up the signer and making a test signature. This is done
+     * before the configuration is installed, so that no SAD issuance pays for setting up the signer (or fails because
+     * the algorithm, provider or credential can not be used).
+     * 
+     * @throws IllegalArgumentException
+     *           if the configuration can not be used for signing SAD JWT:s
+     */
+    void check() throws IllegalArgumentException {
+      try {
+        final JwtSigning signing = this.getJwtSigning();
+        signing.signer.sign(signing.header, CHECK_SIGNING_INPUT);
+      }
+      catch (JOSEException e) {
+        throw new IllegalArgumentException("The signing configuration can not be used - " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * The immutable issuance settings.
+   */
+  private static final class IssuanceConfiguration {
+
+    /** The validity time for a SAD (in seconds). */
+    private final int validityTime;
+
+    /** The attribute name for the attribute holding the user ID. */
+    private final String userIdAttributeName;
+
+    /** The size of generated JWT identifiers. */
+    private final int jwtIdSize;
+
+    /** The generator for JWT identifiers. */
+    private final SADJwtIdGenerator jwtIdGenerator;
+
+    /**
+     * Constructor.
+     * 
+     * @param validityTime
+     *          the validity time for a SAD (in seconds)
+     * @param userIdAttributeName
+     *          the attribute name for the attribute holding the user ID
+     * @param jwtIdSize
+     *          the size of generated JWT identifiers
+     * @param jwtIdGenerator
+     *          the generator for JWT identifiers
+     */
+    IssuanceConfiguration(final int validityTime, final String userIdAttributeName, final int jwtIdSize,
+        final SADJwtIdGenerator jwtIdGenerator) {
+      this.validityTime = validityTime;
+      this.userIdAttributeName = userIdAttributeName;
+      this.jwtIdSize = jwtIdSize;
+      this.jwtIdGenerator = jwtIdGenerator;
+    }
+  }
+
+  /**
+   * Holds the JWS header and signer that are used when signing SAD JWT:s.
+   */
+  private static class JwtSigning {
+
+    /** The JWS header. */
+    private final JWSHeader header;
+
+    /** The signer. */
+    private final JWSSigner signer;
+
+    /**
+     * Constructor.
+     * 
+     * @param header
+     *          the JWS header
+     * @param signer
+     *          the signer
+     */
+    JwtSigning(final JWSHeader header, final JWSSigner signer) {
+      this.header = header;
+      this.signer = signer;
+    }
   }
 
   /**
@@ -189,6 +647,9 @@ public class SADFactory {
     /** Reference to the actual factory. */
     private final SADFactory sadFactory;
 
+    /** The issuance settings in use when the builder was created. */
+    private final IssuanceConfiguration configuration;
+
     /** The SAD object being built. */
     private SAD sad;
 
@@ -200,10 +661,11 @@ public class SADFactory {
      */
     SADBuilder(SADFactory sadFactory) {
       this.sadFactory = sadFactory;
+      this.configuration = sadFactory.issuanceConfiguration.get();
       this.sad = new SAD();
       this.sad.setIssuer(sadFactory.idpEntityID);
       this.sad.setSeElnSadext(new SAD.Extension());
-      this.sad.getSeElnSadext().setAttributeName(sadFactory.userIdAttributeName);
+      this.sad.getSeElnSadext().setAttributeName(this.configuration.userIdAttributeName);
     }
 
     /**
@@ -214,11 +676,11 @@ public class SADFactory {
     public SAD buildSAD() {
 
       if (this.sad.getJwtId() == null) {
-        this.sad.setJwtId(RandomStringUtils.random(this.sadFactory.jwtIdSize, true, true));
+        this.sad.setJwtId(this.configuration.jwtIdGenerator.generateJwtId(this.configuration.jwtIdSize));
       }
 
       this.sad.setIssuedAt((int) (System.currentTimeMillis() / 1000));
-      this.sad.setExpiry(this.sad.getIssuedAt() + this.sadFactory.validityTime);
+      this.sad.setExpiry(this.sad.getIssuedAt() + this.configuration.validityTime);
 
       if (this.sad.getSeElnSadext().getVersion() == null) {
         this.sad.getSeElnSadext().setVersion(SADVersion.VERSION_10.toString());
@@ -240,6 +702,17 @@ public class SADFactory {
       return this.sadFactory.createJwt(this.buildSAD());
     }
 
+    /**
+     * Builds a SAD and creates a signed JWT asynchronously. See {@link SADFactory#createJwtAsync(SAD)}.
+     * 
+     * @return a completion stage for the serialized JWT
+     * @throws IllegalStateException
+     *           if no signing executor has been assigned to the factory
+     */
+    public CompletionStage<String> buildJwtAsync() throws IllegalStateException {
+      return this.sadFactory.createJwtAsync(this.buildSAD());
+    }
+
     /**
      * Assigns the attribute value of the signer's unique identifier attribute.
      * 
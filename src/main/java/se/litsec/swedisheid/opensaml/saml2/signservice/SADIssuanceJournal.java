@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.io.IOException;
+
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SAD;
+
+/**
+ * A journal recording every SAD issued by a {@link SADFactory}. The journal makes it possible for an IdP to prove which
+ * SAD:s it has issued.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ * @see SADFactory#setIssuanceJournal(SADIssuanceJournal)
+ */
+public interface SADIssuanceJournal {
+
+  /**
+   * Records an issued SAD. Invoked by the {@link SADFactory} after the SAD JWT has been signed. Implementations should
+   * not block on disk I/O.
+   *
+   * @param sad
+   *          the issued SAD
+   * @throws IOException
+   *           if the SAD can not be recorded
+   */
+  void record(SAD sad) throws IOException;
+
+  /**
+   * Finds the journal record for a SAD given its JWT ID ({@code jti}).
+   *
+   * @param jwtId
+   *          the JWT ID
+   * @return the record, or null if no SAD with the given JWT ID has been recorded
+   * @throws IOException
+   *           for read errors
+   */
+  SADIssuanceRecord find(String jwtId) throws IOException;
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.time.Instant;
+import java.util.Objects;
+
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SAD;
+
+/**
+ * A record in a {@link SADIssuanceJournal}. The record holds the SAD claims that identify an issued SAD.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public final class SADIssuanceRecord {
+
+  /** The JWT ID ({@code jti}). */
+  private final String jwtId;
+
+  /** The subject ({@code sub}). */
+  private final String subject;
+
+  /** The audience ({@code aud}). */
+  private final String audience;
+
+  /** The ID of the authentication request ({@code irt}). */
+  private final String inResponseTo;
+
+  /** The ID of the sign request ({@code reqid}). */
+  private final String requestID;
+
+  /** The issuance time ({@code iat}), in seconds since 1970-01-01. */
+  private final long issuedAt;
+
+  /** The expiration time ({@code exp}), in seconds since 1970-01-01. */
+  private final long expiry;
+
+  /**
+   * Constructor.
+   *
+   * @param jwtId
+   *          the JWT ID
+   * @param subject
+   *          the subject
+   * @param audience
+   *          the audience
+   * @param inResponseTo
+   *          the ID of the authentication request
+   * @param requestID
+   *          the ID of the sign request
+   * @param issuedAt
+   *          the issuance time (seconds since 1970-01-01)
+   * @param expiry
+   *          the expiration time (seconds since 1970-01-01)
+   */
+  public SADIssuanceRecord(final String jwtId, final String subject, final String audience, final String inResponseTo,
+      final String requestID, final long issuedAt, final long expiry) {
+    if (jwtId == null) {
+      throw new IllegalArgumentException("jwtId must not be null");
+    }
+    this.jwtId = jwtId;
+    this.subject = subject;
+    this.audience = audience;
+    this.inResponseTo = inResponseTo;
+    this.requestID = requestID;
+    this.issuedAt = issuedAt;
+    this.expiry = expiry;
+  }
+
+  /**
+   * Creates a record for the supplied SAD.
+   *
+   * @param sad
+   *          the SAD
+   * @return a record
+   * @throws IllegalArgumentException
+   *           if the SAD has no JWT ID
+   */
+  public static SADIssuanceRecord of(final SAD sad) throws IllegalArgumentException {
+    final SAD.Extension ext = sad.getSeElnSadext();
+    return new SADIssuanceRecord(sad.getJwtId(), sad.getSubject(), sad.getAudience(),
+      ext != null ? ext.getInResponseTo() : null,
+      ext != null ? ext.getRequestID() : null,
+      sad.getIssuedAt() != null ? sad.getIssuedAt().longValue() : 0L,
+      sad.getExpiry() != null ? sad.getExpiry().longValue() : 0L);
+  }
+
+  /**
+   * Returns the JWT ID ({@code jti}).
+   *
+   * @return the JWT ID
+   */
+  public String getJwtId() {
+    return this.jwtId;
+  }
+
+  /**
+   * Returns the subject ({@code sub}).
+   *
+   * @return the subject
+   */
+  public String getSubject() {
+    return this.subject;
+  }
+
+  /**
+   * Returns the audience ({@code aud}).
+   *
+   * @return the audience
+   */
+  public String getAudience() {
+    return this.audience;
+  }
+
+  /**
+   * Returns the ID of the authentication request ({@code irt}).
+   *
+   * @return the in response to ID
+   */
+  public String getInResponseTo() {
+    return this.inResponseTo;
+  }
+
+  /**
+   * Returns the ID of the sign request ({@code reqid}).
+   *
+   * @return the request ID
+   */
+  public String getRequestID() {
+    return this.requestID;
+  }
+
+  /**
+   * Returns the issuance time ({@code iat}).
+   *
+   * @return the issuance time
+   */
+  public Instant getIssuedAt() {
+    return Instant.ofEpochSecond(this.issuedAt);
+  }
+
+  /**
+   * Returns the expiration time ({@code exp}).
+   *
+   * @return the expiration time
+   */
+  public Instant getExpiry() {
+    return Instant.ofEpochSecond(this.expiry);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int hashCode() {
+    return Objects.hash(this.jwtId, this.subject, this.audience, this.inResponseTo, this.requestID, this.issuedAt, this.expiry);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof SADIssuanceRecord)) {
+      return false;
+    }
+    final SADIssuanceRecord other = (SADIssuanceRecord) obj;
+    return this.jwtId.equals(other.jwtId) && Objects.equals(this.subject, other.subject)
+        && Objects.equals(this.audience, other.audience) && Objects.equals(this.inResponseTo, other.inResponseTo)
+        && Objects.equals(this.requestID, other.requestID) && this.issuedAt == other.issuedAt && this.expiry == other.expiry;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return String.format("jti='%s', sub='%s', aud='%s', irt='%s', reqid='%s', iat=%d, exp=%d",
+      this.jwtId, this.subject, this.audience, this.inResponseTo, this.requestID, this.issuedAt, this.expiry);
+  }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.security.Key;
+import java.security.PublicKey;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.factories.DefaultJWSVerifierFactory;
+
+/**
+ * A JWS verifier factory that extends {@link DefaultJWSVerifierFactory} with support for EdDSA using JCA public keys.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+class SADJWSVerifierFactory extends DefaultJWSVerifierFactory {
+
+  /** {@inheritDoc} */
+  @Override
+  public Set<JWSAlgorithm> supportedJWSAlgorithms() {
+    final Set<JWSAlgorithm> algorithms = new HashSet<>(super.supportedJWSAlgorithms());
+    algorithms.add(JWSAlgorithm.EdDSA);
+    return algorithms;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public JWSVerifier createJWSVerifier(final JWSHeader header, final Key key) throws JOSEException {
+    if (JWSAlgorithm.EdDSA.equals(header.getAlgorithm())) {
+      if (!(key instanceof PublicKey)) {
+        throw new JOSEException("EdDSA verification requires a public key");
+      }
+      final EdDSAJcaVerifier verifier = new EdDSAJcaVerifier((PublicKey) key);
+      verifier.getJCAContext().setProvider(this.getJCAContext().getProvider());
+      return verifier;
+    }
+    return super.createJWSVerifier(header, key);
+  }
+
+}
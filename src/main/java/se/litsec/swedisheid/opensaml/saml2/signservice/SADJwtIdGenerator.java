@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+/**
+ * Generates the JWT identifiers ({@code jti}) for SAD:s issued by {@link SADFactory}.
+ * <p>
+ * Implementations must be thread-safe, and the generated identifiers must be unpredictable (and unique with
+ * overwhelming probability).
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public interface SADJwtIdGenerator {
+
+  /**
+   * Generates a JWT identifier.
+   *
+   * @param size
+   *          the number of characters of the identifier
+   * @return a JWT identifier
+   */
+  String generateJwtId(int size);
+
+}
@@ -16,18 +16,17 @@
 package se.litsec.swedisheid.opensaml.saml2.signservice;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.security.cert.X509Certificate;
 import java.text.ParseException;
 import java.time.Instant;
 import java.util.Arrays;
-import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 
-import org.opensaml.core.xml.io.MarshallingException;
 import org.opensaml.saml.saml2.core.Assertion;
 import org.opensaml.saml.saml2.core.Attribute;
 import org.opensaml.saml.saml2.core.AuthnRequest;
@@ -38,20 +37,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
 import com.nimbusds.jose.JWSVerifier;
-import com.nimbusds.jose.crypto.factories.DefaultJWSVerifierFactory;
-import com.nimbusds.jose.proc.JWSVerifierFactory;
 import com.nimbusds.jwt.SignedJWT;
 
 import net.shibboleth.utilities.java.support.resolver.ResolverException;
 import se.litsec.opensaml.saml2.attribute.AttributeUtils;
 import se.litsec.opensaml.saml2.metadata.MetadataUtils;
 import se.litsec.opensaml.saml2.metadata.provider.MetadataProvider;
-import se.litsec.opensaml.saml2.metadata.provider.StaticMetadataProvider;
 import se.litsec.swedisheid.opensaml.saml2.attribute.AttributeConstants;
 import se.litsec.swedisheid.opensaml.saml2.signservice.SADValidationException.ErrorCode;
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.DuplicateClaimException;
 import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SAD;
-import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SADRequest;
 
 /**
  * Class for parsing and validation of SAD JWT:s.
@@ -60,6 +58,17 @@ import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SADRequest;
  */
 public class SADParser {
 
+  /** Lookup table for base64url characters. */
+  private static final byte[] BASE64URL_VALUES = new byte[128];
+
+  static {
+    Arrays.fill(BASE64URL_VALUES, (byte) -1);
+    final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+    for (int i = 0; i < alphabet.length(); i++) {
+      BASE64URL_VALUES[alphabet.charAt(i)] = (byte) i;
+    }
+  }
+
   // Hidden constructor
   private SADParser() {
   }
@@ -77,14 +86,95 @@ public class SADParser {
    *           for parsing errors
    */
   public static SAD parse(final String sadJwt) throws IOException {
-    try {
-      SignedJWT signedJwt = SignedJWT.parse(sadJwt);
-      String payload = signedJwt.getPayload().toBase64URL().toString();
-      return SAD.fromJson(new String(Base64.getUrlDecoder().decode(payload), Charset.forName("UTF-8")));
+    return SAD.fromJson(decodePayload(sadJwt));
+  }
+
+  /**
+   * Returns a lazy view of the claims of the supplied (encoded) JWT. Claim values are only decoded when asked for,
+   * which makes the view a cheap way to, for example, read the {@code iss} and {@code aud} claims in order to route the
+   * SAD to the correct validator.
+   * <p>
+   * <b>Note:</b> The view method does not peform any validation. A view may be validated using
+   * {@link SADValidator#validate(SADView, String, String, String, String, String, int, String)}.
+   * </p>
+   * <p>
+   * JWT:s larger than {@link SADValidator#DEFAULT_MAX_JWT_SIZE} are rejected before they are scanned. Use
+   * {@link SADValidator#view(String)} to apply the size limit of a particular validator.
+   * </p>
+   * 
+   * @param sadJwt
+   *          the signed JWT holding the SAD
+   * @return a SAD view
+   * @throws IOException
+   *           for parsing errors (including a too large JWT and duplicate claims)
+   */
+  public static SADView view(final String sadJwt) throws IOException {
+    return view(sadJwt, SADValidator.DEFAULT_MAX_JWT_SIZE);
+  }
+
+  /**
+   * Returns a lazy view of the claims of the supplied (encoded) JWT. See {@link #view(String)}.
+   * 
+   * @param sadJwt
+   *          the signed JWT holding the SAD
+   * @param maxJwtSize
+   *          the maximum size (in characters) of the JWT
+   * @return a SAD view
+   * @throws IOException
+   *           for parsing errors (including a too large JWT and duplicate claims)
+   */
+  private static SADView view(final String sadJwt, final int maxJwtSize) throws IOException {
+    if (sadJwt != null && sadJwt.length() > maxJwtSize) {
+      throw new IOException(String.format("SAD JWT is too large (%d characters) - max size is %d", sadJwt.length(), maxJwtSize));
+    }
+    return new SADView(sadJwt, decodePayload(sadJwt));
+  }
+
+  /**
+   * Decodes the payload part of a compact serialized JWT directly into a byte array (without creating any intermediate
+   * strings or buffers).
+   * 
+   * @param jwt
+   *          the compact serialized JWT
+   * @return the decoded payload
+   * @throws IOException
+   *           if the JWT is not correctly formatted
+   */
+  private static byte[] decodePayload(final String jwt) throws IOException {
+    if (jwt == null) {
+      throw new IOException("Invalid JWT - null");
+    }
+    final int first = jwt.indexOf('.');
+    final int second = first < 0 ? -1 : jwt.indexOf('.', first + 1);
+    if (second < 0 || jwt.indexOf('.', second + 1) >= 0) {
+      throw new IOException("Invalid JWT - expected three dot-separated parts");
     }
-    catch (ParseException e) {
-      throw new IOException(e);
+    final int start = first + 1;
+    int end = second;
+    while (end > start && jwt.charAt(end - 1) == '=') {
+      end--;
+    }
+    if ((end - start) % 4 == 1) {
+      throw new IOException("Invalid JWT - bad base64url encoding of payload");
+    }
+    final byte[] payload = new byte[(end - start) * 3 / 4];
+    int bits = 0;
+    int bitCount = 0;
+    int pos = 0;
+    for (int i = start; i < end; i++) {
+      final char c = jwt.charAt(i);
+      final int value = c < BASE64URL_VALUES.length ? BASE64URL_VALUES[c] : -1;
+      if (value < 0) {
+        throw new IOException("Invalid JWT - bad base64url encoding of payload");
+      }
+      bits = (bits << 6) | value;
+      bitCount += 6;
+      if (bitCount >= 8) {
+        bitCount -= 8;
+        payload[pos++] = (byte) (bits >> bitCount);
+      }
     }
+    return payload;
   }
 
   /**
@@ -130,6 +220,16 @@ public class SADParser {
    */
   public static class SADValidator {
 
+    /** The default maximum size (in characters) of a SAD JWT. */
+    public static final int DEFAULT_MAX_JWT_SIZE = 8192;
+
+    /** The JWS algorithms that are accepted by default. */
+    public static final List<String> DEFAULT_ALLOWED_ALGORITHMS = Collections.unmodifiableList(Arrays.asList(
+      JWSAlgorithm.RS256.getName(), JWSAlgorithm.RS384.getName(), JWSAlgorithm.RS512.getName(),
+      JWSAlgorithm.PS256.getName(), JWSAlgorithm.PS384.getName(), JWSAlgorithm.PS512.getName(),
+      JWSAlgorithm.ES256.getName(), JWSAlgorithm.ES384.getName(), JWSAlgorithm.ES512.getName(),
+      JWSAlgorithm.EdDSA.getName()));
+
     /** Logger instance. */
     private Logger logger = LoggerFactory.getLogger(SADValidator.class);
 
@@ -139,7 +239,20 @@ public class SADParser {
     /** A provider for federation metadata (in which we later will locate the IdP signing keys). */
     private MetadataProvider metadataProvider;
 
-    private static final JWSVerifierFactory verifierFactory = new DefaultJWSVerifierFactory();
+    /** The IdP metadata (in which we find the IdP signing keys). */
+    private EntityDescriptor idpMetadata;
+
+    /** Cache for the JWS verifiers used when verifying SAD JWT signatures. */
+    private SADVerifierCache verifierCache = new SADVerifierCache();
+
+    /** Optional replay cache. */
+    private SADReplayCache replayCache;
+
+    /** The maximum size (in characters) of a SAD JWT. */
+    private int maxJwtSize = DEFAULT_MAX_JWT_SIZE;
+
+    /** The JWS algorithms that are accepted. */
+    private Set<JWSAlgorithm> allowedAlgorithms = toAlgorithms(DEFAULT_ALLOWED_ALGORITHMS);
 
     /**
      * Constructor initializing the validator with a set of certificates that are to be used for JWT signature
@@ -172,12 +285,72 @@ public class SADParser {
      *          the IdP metadata
      */
     public SADValidator(final EntityDescriptor idpMetadata) {
-      try {
-        this.metadataProvider = new StaticMetadataProvider(idpMetadata);
+      if (idpMetadata == null) {
+        throw new IllegalArgumentException("idpMetadata must not be null");
       }
-      catch (MarshallingException e) {
-        throw new SecurityException("Invalid IdP metadata", e);
+      this.idpMetadata = idpMetadata;
+    }
+
+    /**
+     * Assigns the cache for JWS verifiers. This makes it possible to share a cache between several validators. By
+     * default, each validator has its own cache.
+     * 
+     * @param verifierCache
+     *          the verifier cache
+     */
+    public void setVerifierCache(final SADVerifierCache verifierCache) {
+      if (verifierCache == null) {
+        throw new IllegalArgumentException("verifierCache must not be null");
       }
+      this.verifierCache = verifierCache;
+    }
+
+    /**
+     * Returns the cache for JWS verifiers. The hit and miss counters of the cache may be used for monitoring.
+     * 
+     * @return the verifier cache
+     */
+    public SADVerifierCache getVerifierCache() {
+      return this.verifierCache;
+    }
+
+    /**
+     * Assigns a replay cache. If assigned, the validator will reject a SAD that has already been used. By default, no
+     * replay checking is performed.
+     * 
+     * @param replayCache
+     *          the replay cache
+     */
+    public void setReplayCache(final SADReplayCache replayCache) {
+      this.replayCache = replayCache;
+    }
+
+    /**
+     * Assigns the maximum size (in characters) of a SAD JWT. Larger JWT:s are rejected before they are parsed. The
+     * default is {@link #DEFAULT_MAX_JWT_SIZE}.
+     * 
+     * @param maxJwtSize
+     *          the maximum size
+     */
+    public void setMaxJwtSize(final int maxJwtSize) {
+      if (maxJwtSize < 1) {
+        throw new IllegalArgumentException("maxJwtSize must be a positive integer");
+      }
+      this.maxJwtSize = maxJwtSize;
+    }
+
+    /**
+     * Assigns the JWS algorithms that are accepted. A SAD JWT signed using any other algorithm is rejected before its
+     * claims are parsed. The default is {@link #DEFAULT_ALLOWED_ALGORITHMS}.
+     * 
+     * @param allowedAlgorithms
+     *          the allowed algorithms
+     */
+    public void setAllowedAlgorithms(final Collection<String> allowedAlgorithms) {
+      if (allowedAlgorithms == null || allowedAlgorithms.isEmpty()) {
+        throw new IllegalArgumentException("allowedAlgorithms must not be null or empty");
+      }
+      this.allowedAlgorithms = toAlgorithms(allowedAlgorithms);
     }
 
     /**
@@ -198,36 +371,76 @@ public class SADParser {
      */
     public SAD validate(final AuthnRequest authnRequest, final Assertion assertion) throws SADValidationException,
         IllegalArgumentException {
+      return this.validate(SADRequestRecord.of(authnRequest), assertion);
+    }
 
-      long now = System.currentTimeMillis() / 1000;
-
-      // First locate the SADRequest extension.
-      //
-      SADRequest sadRequest = null;
+    /**
+     * A method that validates the SAD issued in an {@code Assertion} based on the {@link SADRequestRecord} saved when
+     * the {@code AuthnRequest} containing the {@code SADRequest} was sent.
+     * <p>
+     * Using this method, the signature service does not have to keep the {@code AuthnRequest} object until the
+     * response is received. See {@link SADRequestStore}.
+     * </p>
+     * 
+     * @param sadRequest
+     *          the record for the {@code SADRequest}
+     * @param assertion
+     *          the {@code Assertion} holding the {@code sad} attribute (as a encoded JWT)
+     * @return a {@code SAD} object
+     * @throws SADValidationException
+     *           for SAD validation errors
+     * @throws IllegalArgumentException
+     *           if {@code sadRequest} or {@code assertion} is {@code null}, or if the supplied {@code Assertion} is
+     *           invalid (e.g., missing LoA)
+     * @see #validate(String, String, String, String, String, String, int, String)
+     */
+    public SAD validate(final SADRequestRecord sadRequest, final Assertion assertion) throws SADValidationException,
+        IllegalArgumentException {
 
-      if (authnRequest.getExtensions() != null) {
-        sadRequest = authnRequest.getExtensions()
-          .getUnknownXMLObjects()
-          .stream()
-          .filter(SADRequest.class::isInstance)
-          .map(SADRequest.class::cast)
-          .findFirst()
-          .orElse(null);
+      if (assertion == null) {
+        throw new IllegalArgumentException("assertion must not be null");
       }
-      if (sadRequest == null) {
-        String msg = String.format("AuthnRequest '%s' does not contain a SADRequest", authnRequest.getID());
-        logger.info(msg);
-        throw new IllegalArgumentException(msg);
-      }
-
-      // Next, locate the SAD attribute.
-      //
       if (assertion.getAttributeStatements().isEmpty()) {
         String msg = String.format("Assertion '%s' does not contain any attributes (and thus no SAD)", assertion.getID());
         logger.info(msg);
         throw new SADValidationException(ErrorCode.NO_SAD_ATTRIBUTE, msg);
       }
-      List<Attribute> attributes = assertion.getAttributeStatements().get(0).getAttributes();
+      return this.validate(sadRequest, assertion, assertion.getAttributeStatements().get(0).getAttributes());
+    }
+
+    /**
+     * Validates the SAD issued in an {@code Assertion} where the caller already has located the attributes of the
+     * assertion. This is the method used when the SAD is validated as part of the assertion validation (see
+     * {@code SADAttributeStatementValidator}), where the attribute statement is being processed.
+     * 
+     * @param sadRequest
+     *          the record for the {@code SADRequest}
+     * @param assertion
+     *          the {@code Assertion} holding the attributes
+     * @param attributes
+     *          the attributes of the assertion (holding the {@code sad} attribute and the subject attribute)
+     * @return a {@code SAD} object
+     * @throws SADValidationException
+     *           for SAD validation errors
+     * @throws IllegalArgumentException
+     *           if {@code sadRequest} or {@code assertion} is {@code null}, or if the supplied {@code Assertion} is
+     *           invalid (e.g., missing LoA)
+     * @see #validate(SADRequestRecord, Assertion)
+     */
+    public SAD validate(final SADRequestRecord sadRequest, final Assertion assertion, final List<Attribute> attributes)
+        throws SADValidationException, IllegalArgumentException {
+
+      if (sadRequest == null) {
+        throw new IllegalArgumentException("sadRequest must not be null");
+      }
+      if (assertion == null) {
+        throw new IllegalArgumentException("assertion must not be null");
+      }
+
+      long now = System.currentTimeMillis() / 1000;
+
+      // Next, locate the SAD attribute.
+      //
       Attribute sadAttribute = AttributeUtils.getAttribute(AttributeConstants.ATTRIBUTE_NAME_SAD, attributes).orElse(null);
       if (sadAttribute == null) {
         String msg = String.format("Assertion '%s' does not contain a SAD attribute", assertion.getID());
@@ -240,11 +453,15 @@ public class SADParser {
       SignedJWT signedJwt;
       SAD sad;
       try {
-        signedJwt = SignedJWT.parse(AttributeUtils.getAttributeStringValue(sadAttribute));
-        String payload = signedJwt.getPayload().toBase64URL().toString();
-        sad = SAD.fromJson(new String(Base64.getUrlDecoder().decode(payload), Charset.forName("UTF-8")));
+        String sadJwt = AttributeUtils.getAttributeStringValue(sadAttribute);
+        signedJwt = this.parseJwt(sadJwt);
+        sad = SAD.fromJson(decodePayload(sadJwt));
+      }
+      catch (DuplicateClaimException e) {
+        logger.info(e.getMessage());
+        throw new SADValidationException(ErrorCode.BAD_SAD_FORMAT, e.getMessage(), e);
       }
-      catch (ParseException | IOException e) {
+      catch (IOException e) {
         throw new SADValidationException(ErrorCode.JWT_PARSE_ERROR, "Failed to parse SAD JWT", e);
       }
 
@@ -279,10 +496,6 @@ public class SADParser {
         throw new IllegalArgumentException(msg);
       }
 
-      if (sadRequest.getDocCount() == null) {
-        throw new IllegalArgumentException("Bad SADRequest - missing DocCount");
-      }
-
       // Now, validate!
       //
       return this.validate(signedJwt, sad, now,
@@ -290,8 +503,8 @@ public class SADParser {
         sadRequest.getRequesterID(), /* The requester ID = expected recipient ID of the SAD. */
         AttributeUtils.getAttributeStringValue(subjectAttribute), /* The expected subject name. */
         loa, /* The expected LoA. */
-        sadRequest.getID(), /* The expected in-response-to ID. */
-        sadRequest.getDocCount().intValue(), /* The expected number of documents indicated in the SAD. */
+        sadRequest.getSadRequestID(), /* The expected in-response-to ID. */
+        sadRequest.getDocCount(), /* The expected number of documents indicated in the SAD. */
         sadRequest.getSignRequestID()); /* The SignRequest ID. */
     }
 
@@ -331,26 +544,140 @@ public class SADParser {
 
       long now = System.currentTimeMillis() / 1000;
 
+      // Parse the JWT (checks size and algorithm).
+      //
+      SignedJWT signedJwt = this.parseJwt(sadJwt);
+
+      // Next, parse the SAD.
+      //
+      SAD sad;
       try {
-        // Parse the JWT
-        //
-        SignedJWT signedJwt = SignedJWT.parse(sadJwt);
+        sad = SAD.fromJson(decodePayload(sadJwt));
+      }
+      catch (DuplicateClaimException e) {
+        logger.info(e.getMessage());
+        throw new SADValidationException(ErrorCode.BAD_SAD_FORMAT, e.getMessage(), e);
+      }
+      catch (IOException e) {
+        throw new SADValidationException(ErrorCode.JWT_PARSE_ERROR, "Failed to parse SAD JWT", e);
+      }
 
-        // Next, parse the SAD.
-        //
-        String payload = signedJwt.getPayload().toBase64URL().toString();
-        SAD sad = SAD.fromJson(new String(Base64.getUrlDecoder().decode(payload), Charset.forName("UTF-8")));
+      return this.validate(signedJwt, sad, now, idpEntityID, expectedRecipientEntityID, expectedSubject, expectedLoa, sadRequestID,
+        expectedNoDocs, signRequestID);
+    }
+
+    /**
+     * Returns a lazy view of the claims of the supplied (encoded) JWT (see {@link SADParser#view(String)}). The size of
+     * the JWT is checked against the maximum size of this validator before the JWT is scanned.
+     * 
+     * @param sadJwt
+     *          the signed JWT holding the SAD
+     * @return a SAD view
+     * @throws SADValidationException
+     *           if the JWT is too large ({@link ErrorCode#JWT_SIZE_EXCEEDED}), contains duplicate claims
+     *           ({@link ErrorCode#BAD_SAD_FORMAT}) or can not be parsed ({@link ErrorCode#JWT_PARSE_ERROR})
+     */
+    public SADView view(final String sadJwt) throws SADValidationException {
+      if (sadJwt == null) {
+        throw new SADValidationException(ErrorCode.JWT_PARSE_ERROR, "Failed to parse SAD JWT - null");
+      }
+      if (sadJwt.length() > this.maxJwtSize) {
+        String msg = String.format("SAD JWT is too large (%d characters) - max size is %d", sadJwt.length(), this.maxJwtSize);
+        logger.info(msg);
+        throw new SADValidationException(ErrorCode.JWT_SIZE_EXCEEDED, msg);
+      }
+      try {
+        return SADParser.view(sadJwt, this.maxJwtSize);
+      }
+      catch (DuplicateClaimException e) {
+        logger.info(e.getMessage());
+        throw new SADValidationException(ErrorCode.BAD_SAD_FORMAT, e.getMessage(), e);
+      }
+      catch (IOException e) {
+        throw new SADValidationException(ErrorCode.JWT_PARSE_ERROR, "Failed to parse SAD JWT", e);
+      }
+    }
 
-        return this.validate(signedJwt, sad, now, idpEntityID, expectedRecipientEntityID, expectedSubject, expectedLoa, sadRequestID,
-          expectedNoDocs, signRequestID);
+    /**
+     * Validates a SAD that has been obtained as a {@link SADView} (see {@link #view(String)}). The validation is the
+     * same as for {@link #validate(String, String, String, String, String, String, int, String)}, but the JWT payload is
+     * not parsed again.
+     * 
+     * @param sadView
+     *          the SAD view
+     * @param idpEntityID
+     *          the entityID of the issuing IdP (the issuer of the received assertion holding the sad attribute)
+     * @param expectedRecipientEntityID
+     *          the entityID of the recipient (the signature service SP that issued the SADRequest)
+     * @param expectedSubject
+     *          the expected subject name (user ID)
+     * @param expectedLoa
+     *          the expected level of assurance to be found in the SAD (should be the LoA found in the assertion)
+     * @param sadRequestID
+     *          the ID of the {@code SADRequest} extension that was sent to the IdP
+     * @param expectedNoDocs
+     *          expected number of documents (from the {@code DocCount} element of the {@code SADRequest}
+     * @param signRequestID
+     *          ID for the {@code SignRequest} that was included in the {@code SADRequest}
+     * @return a SAD object
+     * @throws SADValidationException
+     *           for validation errors
+     */
+    public SAD validate(final SADView sadView, final String idpEntityID, final String expectedRecipientEntityID,
+        final String expectedSubject, final String expectedLoa, final String sadRequestID, final int expectedNoDocs,
+        final String signRequestID) throws SADValidationException {
+
+      long now = System.currentTimeMillis() / 1000;
+
+      SignedJWT signedJwt = this.parseJwt(sadView.getJwt());
+
+      return this.validate(signedJwt, sadView.toSAD(), now, idpEntityID, expectedRecipientEntityID, expectedSubject, expectedLoa,
+        sadRequestID, expectedNoDocs, signRequestID);
+    }
+
+    /**
+     * Parses the SAD JWT. Before the JWT is parsed its size is checked, and before the claims are parsed the JWS
+     * algorithm is checked against the allowed algorithms.
+     * 
+     * @param sadJwt
+     *          the encoded SAD JWT
+     * @return the parsed JWT
+     * @throws SADValidationException
+     *           if the JWT is too large ({@link ErrorCode#JWT_SIZE_EXCEEDED}), can not be parsed
+     *           ({@link ErrorCode#JWT_PARSE_ERROR}) or is signed using an algorithm that is not allowed
+     *           ({@link ErrorCode#ALGORITHM_NOT_ALLOWED})
+     */
+    private SignedJWT parseJwt(final String sadJwt) throws SADValidationException {
+      if (sadJwt == null) {
+        throw new SADValidationException(ErrorCode.JWT_PARSE_ERROR, "Failed to parse SAD JWT - null");
+      }
+      if (sadJwt.length() > this.maxJwtSize) {
+        String msg = String.format("SAD JWT is too large (%d characters) - max size is %d", sadJwt.length(), this.maxJwtSize);
+        logger.info(msg);
+        throw new SADValidationException(ErrorCode.JWT_SIZE_EXCEEDED, msg);
+      }
+      SignedJWT signedJwt;
+      try {
+        signedJwt = SignedJWT.parse(sadJwt);
       }
-      catch (ParseException | IOException e) {
+      catch (ParseException e) {
         throw new SADValidationException(ErrorCode.JWT_PARSE_ERROR, "Failed to parse SAD JWT", e);
       }
+      if (!this.allowedAlgorithms.contains(signedJwt.getHeader().getAlgorithm())) {
+        String msg = String.format("SAD JWT is signed using '%s' - this algorithm is not allowed", signedJwt.getHeader().getAlgorithm());
+        logger.info(msg);
+        throw new SADValidationException(ErrorCode.ALGORITHM_NOT_ALLOWED, msg);
+      }
+      return signedJwt;
     }
 
     /**
      * Validates the supplied SAD JWT.
+     * <p>
+     * The claims of the SAD are checked before the (expensive) signature verification. This means that expired, or
+     * misaddressed, SAD:s are rejected without performing any cryptographic operations. The replay check is performed
+     * last since only SAD:s with a valid signature may be recorded in the replay cache.
+     * </p>
      * 
      * @param signedJwt
      *          the SAD JWT
@@ -381,10 +708,6 @@ public class SADParser {
         final String sadRequestID, final int expectedNoDocs, final String signRequestID)
             throws SADValidationException {
 
-      // Verify the JWT signature
-      //
-      this.verifyJwtSignature(signedJwt, idpEntityID);
-
       // Ensure that we have a JWT ID.
       //
       if (sad.getJwtId() == null || sad.getJwtId().isEmpty()) {
@@ -481,6 +804,26 @@ public class SADParser {
         throw new SADValidationException(ErrorCode.VALIDATION_BAD_SIGNREQUESTID, msg);
       }
 
+      // All claims are OK, now verify the JWT signature.
+      //
+      this.verifyJwtSignature(signedJwt, idpEntityID);
+
+      // If we have a replay cache, make sure that the SAD has not been used before.
+      //
+      if (this.replayCache != null) {
+        final SADReplayCache.Result result = this.replayCache.record(sad.getIssuer(), sad.getJwtId(), sad.getExpiry(), now);
+        if (result == SADReplayCache.Result.REPLAY) {
+          String msg = String.format("SAD with ID '%s' has already been used", sad.getJwtId());
+          logger.info(msg);
+          throw new SADValidationException(ErrorCode.REPLAY_DETECTED, msg);
+        }
+        if (result == SADReplayCache.Result.CACHE_FULL) {
+          String msg = String.format("SAD with ID '%s' can not be recorded - replay cache is full", sad.getJwtId());
+          logger.error(msg);
+          throw new SADValidationException(ErrorCode.REPLAY_CACHE_FULL, msg);
+        }
+      }
+
       logger.debug("SAD with ID '{}' was successfully validated", sad.getJwtId());
       return sad;
     }
@@ -496,12 +839,7 @@ public class SADParser {
      *           for signature validation errors
      */
     public void verifyJwtSignature(String sadJwt, String idpEntityID) throws SADValidationException {
-      try {
-        this.verifyJwtSignature(SignedJWT.parse(sadJwt), idpEntityID);
-      }
-      catch (ParseException e) {
-        throw new SADValidationException(ErrorCode.JWT_PARSE_ERROR, "Failed to parse SAD JWT", e);
-      }
+      this.verifyJwtSignature(this.parseJwt(sadJwt), idpEntityID);
     }
 
     /**
@@ -518,19 +856,21 @@ public class SADParser {
       try {
         // Verify the JWT signature
         //
-        List<X509Certificate> idpCerts = this.getValidationCertificates(idpEntityID);
-        if (idpCerts.isEmpty()) {
+        List<SADVerifierCache.CachedKey> idpKeys = this.getValidationKeys(idpEntityID);
+        if (idpKeys.isEmpty()) {
           throw new SADValidationException(ErrorCode.SIGNATURE_VALIDATION_ERROR,
             "No suitable IdP signature certificate was found - can not verify SAD JWT signature");
         }
-        logger.debug("Verifying SAD JWT signature. Will try {} IdP key(s) ...", idpCerts.size());
+        idpKeys = selectKeys(idpKeys, signedJwt.getHeader());
+        logger.debug("Verifying SAD JWT signature. Will try {} IdP key(s) ...", idpKeys.size());
 
         boolean verificationSuccess = false;
-        for (X509Certificate idpCert : idpCerts) {
+        for (SADVerifierCache.CachedKey idpKey : idpKeys) {
           try {
-            JWSVerifier verifier = verifierFactory.createJWSVerifier(signedJwt.getHeader(), idpCert.getPublicKey());
+            JWSVerifier verifier = this.verifierCache.getVerifier(idpKey, signedJwt.getHeader());
             if (verifier.verify(signedJwt.getHeader(), signedJwt.getSigningInput(), signedJwt.getSignature())) {
               logger.debug("SAD JWT signature successfully verified");
+              this.verifierCache.markSuccess(idpEntityID, idpKey);
               verificationSuccess = true;
               break;
             }
@@ -551,32 +891,99 @@ public class SADParser {
     }
 
     /**
-     * Returns a list of possible IdP validation certificates to use when verifying the SAD signature.
+     * Returns a list of possible IdP validation keys to use when verifying the SAD signature. The key that last verified
+     * a SAD from the IdP is returned first.
      * 
      * @param idpEntityID
      *          the IdP entityID
-     * @return a list of certificates
+     * @return a list of keys
      * @throws ResolverException
      *           for metadata resolver errors
      */
-    private List<X509Certificate> getValidationCertificates(String idpEntityID) throws ResolverException {
+    private List<SADVerifierCache.CachedKey> getValidationKeys(String idpEntityID) throws ResolverException {
       if (this.validationCertificates != null && !this.validationCertificates.isEmpty()) {
-        return this.validationCertificates;
+        return this.verifierCache.getKeys(idpEntityID, this.validationCertificates, () -> this.validationCertificates);
+      }
+      else if (this.idpMetadata != null) {
+        if (!Objects.equals(idpEntityID, this.idpMetadata.getEntityID())) {
+          logger.warn("No metadata found for IdP '{}' - cannot find key to use when verifying SAD JWT signature", idpEntityID);
+          return Collections.emptyList();
+        }
+        // The keys are read from the EntityDescriptor as is (it is never marshalled).
+        return this.verifierCache.getKeys(idpEntityID, this.idpMetadata, () -> getSigningCertificates(this.idpMetadata));
       }
       else if (this.metadataProvider != null) {
         EntityDescriptor metadata = this.metadataProvider.getEntityDescriptor(idpEntityID);
         if (metadata == null) {
           logger.warn("No metadata found for IdP '{}' - cannot find key to use when verifying SAD JWT signature", idpEntityID);
+          this.verifierCache.invalidate(idpEntityID);
           return Collections.emptyList();
         }
-        List<X509Credential> creds = MetadataUtils.getMetadataCertificates(metadata, UsageType.SIGNING);
-        return creds.stream().map(X509Credential::getEntityCertificate).collect(Collectors.toList());
+        // A refreshed metadata provider hands out a new EntityDescriptor object, and the cache then re-reads the keys.
+        return this.verifierCache.getKeys(idpEntityID, metadata, () -> getSigningCertificates(metadata));
       }
       else {
         return Collections.emptyList();
       }
     }
 
+    /**
+     * Returns the signing certificates found in the supplied IdP metadata.
+     * 
+     * @param metadata
+     *          the IdP metadata
+     * @return a list of certificates
+     */
+    private static List<X509Certificate> getSigningCertificates(final EntityDescriptor metadata) {
+      return MetadataUtils.getMetadataCertificates(metadata, UsageType.SIGNING)
+        .stream()
+        .map(X509Credential::getEntityCertificate)
+        .collect(Collectors.toList());
+    }
+
+    /**
+     * If the JWS header identifies the signing key, using {@code x5t#S256} or {@code kid} (see
+     * {@link SADFactory.KeyIdentifierType}), the method returns the matching key only. Otherwise, all keys are returned
+     * and each of them will be tried.
+     * 
+     * @param idpKeys
+     *          the IdP keys
+     * @param header
+     *          the JWS header
+     * @return the key(s) to use when verifying the signature
+     */
+    private List<SADVerifierCache.CachedKey> selectKeys(final List<SADVerifierCache.CachedKey> idpKeys, final JWSHeader header) {
+      String keyIdentifier = null;
+      if (header.getX509CertSHA256Thumbprint() != null) {
+        keyIdentifier = header.getX509CertSHA256Thumbprint().toString();
+      }
+      else if (header.getKeyID() != null) {
+        keyIdentifier = header.getKeyID();
+      }
+      if (keyIdentifier == null) {
+        return idpKeys;
+      }
+      for (SADVerifierCache.CachedKey key : idpKeys) {
+        if (keyIdentifier.equals(key.getFingerprint())) {
+          logger.debug("SAD JWT header identifies IdP key '{}'", keyIdentifier);
+          return Collections.singletonList(key);
+        }
+      }
+      logger.debug("No IdP key matches key identifier '{}' of SAD JWT header - will try all keys", keyIdentifier);
+      return idpKeys;
+    }
+
+    /**
+     * Maps algorithm names to {@link JWSAlgorithm} objects.
+     * 
+     * @param algorithms
+     *          the algorithm names
+     * @return a set of algorithms
+     */
+    private static Set<JWSAlgorithm> toAlgorithms(final Collection<String> algorithms) {
+      return Collections.unmodifiableSet(algorithms.stream().map(JWSAlgorithm::parse).collect(Collectors.toSet()));
+    }
+
     /**
      * Returns the LoA (level of assurance) URI from the supplied assertion.
      * 
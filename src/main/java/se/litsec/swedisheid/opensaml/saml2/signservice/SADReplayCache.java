@@ -0,0 +1,350 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A replay cache for SAD:s. The cache records the issuer and JWT ID ({@code jti}) of every SAD that has been used and
+ * detects if a SAD is used again.
+ * <p>
+ * Entries are placed in time buckets based on the expiration time ({@code exp}) of the SAD. Once all SAD:s of a bucket
+ * have expired, the whole bucket is evicted. There is no need to keep an expired SAD in the cache since it will not
+ * pass validation anyway.
+ * </p>
+ * <p>
+ * The cache has a fixed maximum number of entries. If the cache is full, and no entries can be evicted, new SAD:s are
+ * rejected (i.e., the cache fails closed). Use {@link #record(String, String, long, long)} to tell a full cache apart
+ * from a replay.
+ * </p>
+ * <p>
+ * Optionally, a {@link SADReplayCacheStorage} may be installed in order to keep the cache contents over restarts.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SADReplayCache {
+
+  /** The default maximum number of entries held by the cache. */
+  public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+  /** The default bucket size (in seconds). */
+  public static final int DEFAULT_BUCKET_SIZE = 60;
+
+  /**
+   * The result of {@link SADReplayCache#record(String, String, long, long)}.
+   */
+  public enum Result {
+
+    /** The SAD has not been used before and is now recorded as used. */
+    RECORDED,
+
+    /** The SAD has been used before. */
+    REPLAY,
+
+    /** The SAD has not been used before, but can not be recorded since the cache is full. */
+    CACHE_FULL
+  }
+
+  /** Logger instance. */
+  private final Logger logger = LoggerFactory.getLogger(SADReplayCache.class);
+
+  /** The maximum number of entries held by the cache. */
+  private final int maxEntries;
+
+  /** The bucket size (in seconds). */
+  private final int bucketSize;
+
+  /** The optional storage. */
+  private SADReplayCacheStorage storage;
+
+  /** All entries, mapping the key to its bucket. */
+  private final Map<String, Long> entries = new ConcurrentHashMap<>();
+
+  /**
+   * The buckets, indexed by bucket number (expiration time divided by bucket size). A bucket (and the entries it holds)
+   * is only updated within {@code compute}, so that adding to a bucket and removing it are atomic.
+   */
+  private final ConcurrentMap<Long, Set<String>> buckets = new ConcurrentHashMap<>();
+
+  /** The current number of entries. */
+  private final AtomicInteger size = new AtomicInteger();
+
+  /** The time (seconds since 1970-01-01) when the cache was last checked for expired buckets. */
+  private volatile long lastEviction = 0;
+
+  /**
+   * Constructor creating a cache with {@link #DEFAULT_MAX_ENTRIES} and {@link #DEFAULT_BUCKET_SIZE}.
+   */
+  public SADReplayCache() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_BUCKET_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxEntries
+   *          the maximum number of entries held by the cache
+   * @param bucketSize
+   *          the size of each time bucket (in seconds)
+   */
+  public SADReplayCache(final int maxEntries, final int bucketSize) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be a positive integer");
+    }
+    if (bucketSize < 1) {
+      throw new IllegalArgumentException("bucketSize must be a positive integer");
+    }
+    this.maxEntries = maxEntries;
+    this.bucketSize = bucketSize;
+  }
+
+  /**
+   * Constructor creating a cache that uses the supplied storage. The cache is populated with the (non-expired) entries
+   * of the storage.
+   *
+   * @param maxEntries
+   *          the maximum number of entries held by the cache
+   * @param bucketSize
+   *          the size of each time bucket (in seconds)
+   * @param storage
+   *          the storage
+   * @throws IOException
+   *           if the storage can not be loaded
+   */
+  public SADReplayCache(final int maxEntries, final int bucketSize, final SADReplayCacheStorage storage) throws IOException {
+    this(maxEntries, bucketSize);
+    if (storage == null) {
+      throw new IllegalArgumentException("storage must not be null");
+    }
+    final long now = System.currentTimeMillis() / 1000;
+    storage.load((key, expiry) -> {
+      if (!this.isExpired(expiry, now) && this.size.get() < this.maxEntries && this.add(key, expiry)) {
+        this.size.incrementAndGet();
+      }
+    });
+    logger.debug("Loaded {} entries from SAD replay cache storage", this.size.get());
+    this.storage = storage;
+  }
+
+  /**
+   * Checks whether the SAD with the given issuer and JWT ID has been used before, and if not, records it as used.
+   * <p>
+   * Expired SAD:s are not recorded.
+   * </p>
+   *
+   * @param issuer
+   *          the SAD issuer
+   * @param jwtId
+   *          the SAD JWT ID
+   * @param expiry
+   *          the expiration time of the SAD (seconds since 1970-01-01)
+   * @param now
+   *          the current time (seconds since 1970-01-01)
+   * @return true if the SAD has not been used before, and false if it has been used (or if the cache is full)
+   * @see #record(String, String, long, long)
+   */
+  public boolean checkAndRecord(final String issuer, final String jwtId, final long expiry, final long now) {
+    return this.record(issuer, jwtId, expiry, now) == Result.RECORDED;
+  }
+
+  /**
+   * Checks whether the SAD with the given issuer and JWT ID has been used before, and if not, records it as used.
+   * <p>
+   * Expired SAD:s are not recorded.
+   * </p>
+   *
+   * @param issuer
+   *          the SAD issuer
+   * @param jwtId
+   *          the SAD JWT ID
+   * @param expiry
+   *          the expiration time of the SAD (seconds since 1970-01-01)
+   * @param now
+   *          the current time (seconds since 1970-01-01)
+   * @return {@link Result#RECORDED} if the SAD has not been used before, {@link Result#REPLAY} if it has been used, and
+   *         {@link Result#CACHE_FULL} if it has not been used but the cache is full
+   */
+  public Result record(final String issuer, final String jwtId, final long expiry, final long now) {
+    if (now != this.lastEviction) {
+      this.evictExpired(now);
+    }
+    final String key = toKey(issuer, jwtId);
+    if (this.isExpired(expiry, now)) {
+      // An expired SAD will not pass validation, so there is no need to record it.
+      return this.entries.containsKey(key) ? Result.REPLAY : Result.RECORDED;
+    }
+
+    // Reserve room for the entry before adding it, so that the cache never holds more than maxEntries ...
+    //
+    if (!this.reserve()) {
+      if (this.entries.containsKey(key)) {
+        return Result.REPLAY;
+      }
+      logger.warn("SAD replay cache is full ({} entries) - rejecting SAD '{}'", this.maxEntries, jwtId);
+      return Result.CACHE_FULL;
+    }
+    if (!this.add(key, expiry)) {
+      this.size.decrementAndGet();
+      return Result.REPLAY;
+    }
+    if (this.storage != null) {
+      try {
+        this.storage.store(key, expiry);
+      }
+      catch (IOException e) {
+        logger.error("Failed to store SAD replay cache entry", e);
+      }
+    }
+    return Result.RECORDED;
+  }
+
+  /**
+   * Tells whether the SAD with the given issuer and JWT ID is present in the cache.
+   *
+   * @param issuer
+   *          the SAD issuer
+   * @param jwtId
+   *          the SAD JWT ID
+   * @return true if the SAD is present in the cache, and false otherwise
+   */
+  public boolean contains(final String issuer, final String jwtId) {
+    return this.entries.containsKey(toKey(issuer, jwtId));
+  }
+
+  /**
+   * Evicts all buckets where all entries have expired.
+   *
+   * @param now
+   *          the current time (seconds since 1970-01-01)
+   */
+  public void evictExpired(final long now) {
+    this.lastEviction = now;
+    final long current = now / this.bucketSize;
+    boolean evicted = false;
+    for (Long bucket : this.buckets.keySet()) {
+      if (bucket >= current) {
+        continue;
+      }
+      this.buckets.computeIfPresent(bucket, (b, keys) -> {
+        for (String key : keys) {
+          if (this.entries.remove(key, b)) {
+            this.size.decrementAndGet();
+          }
+        }
+        return null;
+      });
+      evicted = true;
+    }
+    if (!evicted) {
+      return;
+    }
+    if (this.storage != null) {
+      try {
+        this.storage.evict((now / this.bucketSize) * this.bucketSize);
+      }
+      catch (IOException e) {
+        logger.error("Failed to evict entries from SAD replay cache storage", e);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of entries held by the cache.
+   *
+   * @return the number of entries
+   */
+  public int size() {
+    return this.size.get();
+  }
+
+  /**
+   * Tells whether the given expiration time belongs to a bucket that may be evicted.
+   *
+   * @param expiry
+   *          expiration time (seconds since 1970-01-01)
+   * @param now
+   *          the current time (seconds since 1970-01-01)
+   * @return true if the bucket for the expiration time may be evicted
+   */
+  private boolean isExpired(final long expiry, final long now) {
+    return expiry / this.bucketSize < now / this.bucketSize;
+  }
+
+  /**
+   * Reserves room for one entry.
+   *
+   * @return true if room was reserved, and false if the cache is full
+   */
+  private boolean reserve() {
+    int current;
+    do {
+      current = this.size.get();
+      if (current >= this.maxEntries) {
+        return false;
+      }
+    }
+    while (!this.size.compareAndSet(current, current + 1));
+    return true;
+  }
+
+  /**
+   * Adds an entry.
+   *
+   * @param key
+   *          the key
+   * @param expiry
+   *          expiration time (seconds since 1970-01-01)
+   * @return true if the entry was added, and false if it already existed
+   */
+  private boolean add(final String key, final long expiry) {
+    final boolean[] added = { false };
+    this.buckets.compute(expiry / this.bucketSize, (b, keys) -> {
+      if (this.entries.putIfAbsent(key, b) != null) {
+        return keys;
+      }
+      final Set<String> bucket = keys != null ? keys : new HashSet<>();
+      bucket.add(key);
+      added[0] = true;
+      return bucket;
+    });
+    return added[0];
+  }
+
+  /**
+   * Creates the cache key for a SAD.
+   *
+   * @param issuer
+   *          the SAD issuer
+   * @param jwtId
+   *          the SAD JWT ID
+   * @return the key
+   */
+  private static String toKey(final String issuer, final String jwtId) {
+    final String iss = issuer != null ? issuer : "";
+    return iss.length() + ":" + iss + jwtId;
+  }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.io.IOException;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Persistence backend for a {@link SADReplayCache}. The storage makes it possible to keep the record of used SAD:s
+ * over restarts.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public interface SADReplayCacheStorage {
+
+  /**
+   * Loads all stored entries. Invoked when the replay cache is created.
+   *
+   * @param consumer
+   *          receives the key and expiration time (seconds since 1970-01-01) for each entry
+   * @throws IOException
+   *           for read errors
+   */
+  void load(ObjLongConsumer<String> consumer) throws IOException;
+
+  /**
+   * Stores an entry. Invoked by the replay cache while a SAD is being validated, so implementations should not block on
+   * disk I/O.
+   *
+   * @param key
+   *          the replay cache key
+   * @param expiry
+   *          the expiration time of the entry (seconds since 1970-01-01)
+   * @throws IOException
+   *           for write errors
+   */
+  void store(String key, long expiry) throws IOException;
+
+  /**
+   * Tells the storage that all entries that expire before the given time have been evicted from the cache, and may be
+   * removed from the storage. Invoked by the replay cache while a SAD is being validated, so implementations should not
+   * block on disk I/O.
+   *
+   * @param expiredBefore
+   *          the time (seconds since 1970-01-01)
+   * @throws IOException
+   *           for write errors
+   */
+  void evict(long expiredBefore) throws IOException;
+
+}
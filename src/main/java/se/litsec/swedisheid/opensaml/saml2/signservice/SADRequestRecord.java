@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SADRequest;
+
+/**
+ * The data from an {@code AuthnRequest} holding a {@code SADRequest} that is needed in order to validate the SAD
+ * received in the response (see {@link SADParser.SADValidator}).
+ * <p>
+ * A signature service SP may save this record (see {@link SADRequestStore}) instead of keeping the entire
+ * {@code AuthnRequest} object until the response is received.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public final class SADRequestRecord {
+
+  /** The ID of the SADRequest. */
+  private final String sadRequestID;
+
+  /** The requester ID (the entityID of the signature service). */
+  private final String requesterID;
+
+  /** The ID of the SignRequest. */
+  private final String signRequestID;
+
+  /** The number of documents to be signed. */
+  private final int docCount;
+
+  /** The LoA URI:s requested in the AuthnRequest. */
+  private final List<String> requestedLoas;
+
+  /**
+   * Constructor.
+   *
+   * @param sadRequestID
+   *          the ID of the SADRequest
+   * @param requesterID
+   *          the requester ID (the entityID of the signature service)
+   * @param signRequestID
+   *          the ID of the SignRequest
+   * @param docCount
+   *          the number of documents to be signed
+   * @param requestedLoas
+   *          the LoA URI:s requested in the AuthnRequest (may be null)
+   */
+  public SADRequestRecord(final String sadRequestID, final String requesterID, final String signRequestID, final int docCount,
+      final List<String> requestedLoas) {
+    if (sadRequestID == null) {
+      throw new IllegalArgumentException("sadRequestID must not be null");
+    }
+    this.sadRequestID = sadRequestID;
+    this.requesterID = requesterID;
+    this.signRequestID = signRequestID;
+    this.docCount = docCount;
+    this.requestedLoas = requestedLoas != null
+        ? Collections.unmodifiableList(new ArrayList<>(requestedLoas))
+        : Collections.emptyList();
+  }
+
+  /**
+   * Creates a record from an {@code AuthnRequest} holding a {@code SADRequest} extension.
+   *
+   * @param authnRequest
+   *          the {@code AuthnRequest}
+   * @return a record
+   * @throws IllegalArgumentException
+   *           if the {@code AuthnRequest} does not contain a {@code SADRequest} extension, or if the {@code SADRequest}
+   *           lacks the {@code DocCount} element
+   */
+  public static SADRequestRecord of(final AuthnRequest authnRequest) throws IllegalArgumentException {
+    SADRequest sadRequest = null;
+    if (authnRequest.getExtensions() != null) {
+      sadRequest = authnRequest.getExtensions()
+        .getUnknownXMLObjects()
+        .stream()
+        .filter(SADRequest.class::isInstance)
+        .map(SADRequest.class::cast)
+        .findFirst()
+        .orElse(null);
+    }
+    if (sadRequest == null) {
+      throw new IllegalArgumentException(String.format("AuthnRequest '%s' does not contain a SADRequest", authnRequest.getID()));
+    }
+    if (sadRequest.getID() == null) {
+      throw new IllegalArgumentException("Bad SADRequest - missing ID");
+    }
+    if (sadRequest.getDocCount() == null) {
+      throw new IllegalArgumentException("Bad SADRequest - missing DocCount");
+    }
+    List<String> loas = null;
+    if (authnRequest.getRequestedAuthnContext() != null) {
+      loas = authnRequest.getRequestedAuthnContext()
+        .getAuthnContextClassRefs()
+        .stream()
+        .map(AuthnContextClassRef::getURI)
+        .filter(Objects::nonNull)
+        .collect(Collectors.toList());
+    }
+    return new SADRequestRecord(sadRequest.getID(), sadRequest.getRequesterID(), sadRequest.getSignRequestID(),
+      sadRequest.getDocCount().intValue(), loas);
+  }
+
+  /**
+   * Returns the ID of the {@code SADRequest}.
+   *
+   * @return the SADRequest ID
+   */
+  public String getSadRequestID() {
+    return this.sadRequestID;
+  }
+
+  /**
+   * Returns the requester ID (the entityID of the signature service).
+   *
+   * @return the requester ID
+   */
+  public String getRequesterID() {
+    return this.requesterID;
+  }
+
+  /**
+   * Returns the ID of the {@code SignRequest}.
+   *
+   * @return the SignRequest ID
+   */
+  public String getSignRequestID() {
+    return this.signRequestID;
+  }
+
+  /**
+   * Returns the number of documents to be signed.
+   *
+   * @return the number of documents
+   */
+  public int getDocCount() {
+    return this.docCount;
+  }
+
+  /**
+   * Returns the LoA URI:s requested in the {@code AuthnRequest}.
+   *
+   * @return a (possibly empty) list of LoA URI:s
+   */
+  public List<String> getRequestedLoas() {
+    return this.requestedLoas;
+  }
+
+  /**
+   * Encodes the record into a compact byte representation.
+   *
+   * @return the encoding
+   */
+  byte[] encode() {
+    final byte[][] strings = new byte[3 + this.requestedLoas.size()][];
+    strings[0] = toBytes(this.sadRequestID);
+    strings[1] = toBytes(this.requesterID);
+    strings[2] = toBytes(this.signRequestID);
+    for (int i = 0; i < this.requestedLoas.size(); i++) {
+      strings[3 + i] = toBytes(this.requestedLoas.get(i));
+    }
+    int size = 8;
+    for (byte[] s : strings) {
+      size += 4 + (s != null ? s.length : 0);
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.putInt(this.docCount);
+    buffer.putInt(this.requestedLoas.size());
+    for (byte[] s : strings) {
+      if (s == null) {
+        buffer.putInt(-1);
+      }
+      else {
+        buffer.putInt(s.length);
+        buffer.put(s);
+      }
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Decodes a record from its byte representation.
+   *
+   * @param encoding
+   *          the encoding
+   * @return the record
+   * @see #encode()
+   */
+  static SADRequestRecord decode(final byte[] encoding) {
+    final ByteBuffer buffer = ByteBuffer.wrap(encoding);
+    final int docCount = buffer.getInt();
+    final int loaCount = buffer.getInt();
+    final String sadRequestID = readString(buffer);
+    final String requesterID = readString(buffer);
+    final String signRequestID = readString(buffer);
+    final List<String> loas = new ArrayList<>(loaCount);
+    for (int i = 0; i < loaCount; i++) {
+      loas.add(readString(buffer));
+    }
+    return new SADRequestRecord(sadRequestID, requesterID, signRequestID, docCount, loas);
+  }
+
+  /**
+   * Returns the UTF-8 encoding of a string.
+   *
+   * @param s
+   *          the string (may be null)
+   * @return the encoding, or null
+   */
+  private static byte[] toBytes(final String s) {
+    return s != null ? s.getBytes(StandardCharsets.UTF_8) : null;
+  }
+
+  /**
+   * Reads a length-prefixed string.
+   *
+   * @param buffer
+   *          the buffer
+   * @return the string, or null
+   */
+  private static String readString(final ByteBuffer buffer) {
+    final int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    final String s = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return s;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int hashCode() {
+    return Objects.hash(this.sadRequestID, this.requesterID, this.signRequestID, this.docCount, this.requestedLoas);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof SADRequestRecord)) {
+      return false;
+    }
+    final SADRequestRecord other = (SADRequestRecord) obj;
+    return this.docCount == other.docCount
+        && Objects.equals(this.sadRequestID, other.sadRequestID)
+        && Objects.equals(this.requesterID, other.requesterID)
+        && Objects.equals(this.signRequestID, other.signRequestID)
+        && Objects.equals(this.requestedLoas, other.requestedLoas);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return String.format("id='%s', requesterID='%s', signRequestID='%s', docCount='%d', requestedLoas=%s",
+      this.sadRequestID, this.requesterID, this.signRequestID, this.docCount, this.requestedLoas);
+  }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+/**
+ * A store for {@link SADRequestRecord} objects. A signature service SP saves the record when it sends an
+ * {@code AuthnRequest} holding a {@code SADRequest}, and removes it when the response is received in order to validate
+ * the SAD.
+ * <p>
+ * Implementations must be thread-safe. See {@link InMemorySADRequestStore} for the default implementation. An
+ * implementation using an external cache may be used in clustered (or memory-constrained) setups.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public interface SADRequestStore {
+
+  /**
+   * Saves a record.
+   *
+   * @param record
+   *          the record
+   */
+  void put(SADRequestRecord record);
+
+  /**
+   * Returns the record for the given {@code SADRequest} ID.
+   *
+   * @param sadRequestID
+   *          the SADRequest ID
+   * @return the record, or null if no (non-expired) record exists
+   */
+  SADRequestRecord get(String sadRequestID);
+
+  /**
+   * Removes, and returns, the record for the given {@code SADRequest} ID.
+   *
+   * @param sadRequestID
+   *          the SADRequest ID
+   * @return the record, or null if no (non-expired) record exists
+   */
+  SADRequestRecord remove(String sadRequestID);
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded executor for SAD signing operations. See {@link SADFactory#setSigningExecutor(SADSigningExecutor)}.
+ * <p>
+ * If the signing key is held in an HSM, each signing operation blocks a thread during the round trip to the HSM. The
+ * signing executor runs these operations on a fixed number of threads (typically the number of available HSM sessions)
+ * so that the calling threads never block on the key.
+ * </p>
+ * <p>
+ * The number of waiting operations is limited. If the queue is full, the operation fails directly with a
+ * {@link RejectedExecutionException} (back-pressure). If a timeout is assigned, operations that have not completed
+ * within the timeout fail with a {@link java.util.concurrent.TimeoutException}, and if they are still waiting in the
+ * queue they will never be executed.
+ * </p>
+ * <p>
+ * The returned futures are not completed on the signing threads, but handed over to a completion executor (by default
+ * {@link ForkJoinPool#commonPool()}). This means that dependent stages that are added using the non-async methods
+ * (e.g., {@code thenApply}) never run on, and never hold up, the signing threads. Stages that must run on a specific
+ * executor should be added using the {@code *Async} methods.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SADSigningExecutor {
+
+  /** Logger instance. */
+  private final Logger logger = LoggerFactory.getLogger(SADSigningExecutor.class);
+
+  /** The underlying executor. */
+  private final ThreadPoolExecutor executor;
+
+  /** The timeout for each operation (null means no timeout). */
+  private final Duration timeout;
+
+  /** The executor completing the futures (and running non-async dependent stages). */
+  private final Executor completionExecutor;
+
+  /** The number of rejected operations. */
+  private final LongAdder rejected = new LongAdder();
+
+  /**
+   * Constructor creating an executor that completes its futures using {@link ForkJoinPool#commonPool()}.
+   *
+   * @param concurrency
+   *          the number of concurrent signing operations (e.g., the number of HSM sessions)
+   * @param maxQueueSize
+   *          the maximum number of operations waiting to be executed
+   * @param timeout
+   *          the timeout for an operation, counted from when it is submitted (null means no timeout)
+   */
+  public SADSigningExecutor(final int concurrency, final int maxQueueSize, final Duration timeout) {
+    this(concurrency, maxQueueSize, timeout, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param concurrency
+   *          the number of concurrent signing operations (e.g., the number of HSM sessions)
+   * @param maxQueueSize
+   *          the maximum number of operations waiting to be executed
+   * @param timeout
+   *          the timeout for an operation, counted from when it is submitted (null means no timeout)
+   * @param completionExecutor
+   *          the executor that completes the returned futures (and runs their non-async dependent stages)
+   */
+  public SADSigningExecutor(final int concurrency, final int maxQueueSize, final Duration timeout,
+      final Executor completionExecutor) {
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("concurrency must be a positive integer");
+    }
+    if (maxQueueSize < 1) {
+      throw new IllegalArgumentException("maxQueueSize must be a positive integer");
+    }
+    if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+      throw new IllegalArgumentException("timeout must be positive");
+    }
+    if (completionExecutor == null) {
+      throw new IllegalArgumentException("completionExecutor must not be null");
+    }
+    this.timeout = timeout;
+    this.completionExecutor = completionExecutor;
+    this.executor = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(maxQueueSize), new SigningThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  /**
+   * Submits a signing operation.
+   * <p>
+   * The method never blocks. If the queue is full, the returned future is completed exceptionally with a
+   * {@link RejectedExecutionException}. Any exception or error thrown by the operation completes the future
+   * exceptionally.
+   * </p>
+   *
+   * @param <T>
+   *          the result type
+   * @param task
+   *          the operation
+   * @return a future for the result of the operation
+   */
+  public <T> CompletableFuture<T> submit(final Callable<T> task) {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    if (this.timeout != null) {
+      future.orTimeout(this.timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+    try {
+      this.executor.execute(() -> {
+        if (future.isDone()) {
+          // Timed out while waiting in the queue ...
+          return;
+        }
+        T result = null;
+        Throwable error = null;
+        try {
+          result = task.call();
+        }
+        catch (Throwable e) {
+          error = e;
+        }
+        this.complete(future, result, error);
+      });
+    }
+    catch (RejectedExecutionException e) {
+      this.rejected.increment();
+      logger.warn("SAD signing queue is full ({} waiting operations) - rejecting operation", this.executor.getQueue().size());
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Completes the future using the completion executor. If the completion executor does not accept the task, the
+   * future is completed by the calling (signing) thread.
+   *
+   * @param <T>
+   *          the result type
+   * @param future
+   *          the future to complete
+   * @param result
+   *          the result
+   * @param error
+   *          the error (null if the operation succeeded)
+   */
+  private <T> void complete(final CompletableFuture<T> future, final T result, final Throwable error) {
+    final Runnable completion = () -> {
+      if (error != null) {
+        future.completeExceptionally(error);
+      }
+      else {
+        future.complete(result);
+      }
+    };
+    try {
+      this.completionExecutor.execute(completion);
+    }
+    catch (RejectedExecutionException e) {
+      logger.debug("Completion executor rejected task - completing on signing thread");
+      completion.run();
+    }
+  }
+
+  /**
+   * Returns the number of operations waiting to be executed.
+   *
+   * @return the queue size
+   */
+  public int getQueueSize() {
+    return this.executor.getQueue().size();
+  }
+
+  /**
+   * Returns the number of operations that have been rejected because the queue was full.
+   *
+   * @return the number of rejected operations
+   */
+  public long getRejectedCount() {
+    return this.rejected.sum();
+  }
+
+  /**
+   * Shuts down the executor. Already submitted operations are executed, but no new operations are accepted.
+   */
+  public void shutdown() {
+    this.executor.shutdown();
+  }
+
+  /**
+   * Thread factory for signing threads.
+   */
+  private static class SigningThreadFactory implements ThreadFactory {
+
+    /** Counter for thread names. */
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    /** The pool number. */
+    private final int poolNumber = poolCount.incrementAndGet();
+
+    /** Thread counter. */
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /** {@inheritDoc} */
+    @Override
+    public Thread newThread(final Runnable r) {
+      final Thread thread = new Thread(r, "sad-signer-" + this.poolNumber + "-" + this.threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+}
@@ -27,6 +27,12 @@ public class SADValidationException extends Exception {
     /** The JWT or its contained JSON could not be successfully parsed. */
     JWT_PARSE_ERROR,
 
+    /** The JWT is larger than the maximum allowed size. */
+    JWT_SIZE_EXCEEDED,
+
+    /** The JWT is signed using an algorithm that is not allowed. */
+    ALGORITHM_NOT_ALLOWED,
+
     /** The SAD is not correct (i.e., missing claims). */
     BAD_SAD_FORMAT,
 
@@ -61,7 +67,13 @@ public class SADValidationException extends Exception {
     NO_SAD_ATTRIBUTE,
     
     /** The attribute name given in the SAD for the subject was not found in the assertion. */
-    MISSING_SUBJECT_ATTRIBUTE
+    MISSING_SUBJECT_ATTRIBUTE,
+    
+    /** The SAD has already been used. */
+    REPLAY_DETECTED,
+
+    /** The SAD can not be checked for replay since the replay cache can not accept more entries. */
+    REPLAY_CACHE_FULL
 
   }
 
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.litsec.swedisheid.opensaml.saml2.signservice.SADParser.SADValidator;
+
+/**
+ * A registry holding one {@link SADValidator} per IdP. Use the registry instead of creating a new validator for each
+ * SAD that is to be validated.
+ * <p>
+ * A validator is created the first time an IdP is seen, and is then re-used as long as the same
+ * {@code EntityDescriptor} object is passed. If a new {@code EntityDescriptor} object is passed for the IdP (e.g., after
+ * a metadata refresh), a new validator is created. The IdP signing keys are read from the {@code EntityDescriptor}
+ * without marshalling it.
+ * </p>
+ * <p>
+ * All validators created by the registry share the same {@link SADVerifierCache}, and, if assigned, the same
+ * {@link SADReplayCache}. The registry is thread-safe.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SADValidatorRegistry {
+
+  /** Logger instance. */
+  private final Logger logger = LoggerFactory.getLogger(SADValidatorRegistry.class);
+
+  /** The validators, indexed by IdP entityID. */
+  private final ConcurrentMap<String, Entry> validators = new ConcurrentHashMap<>();
+
+  /** The verifier cache shared by all validators. */
+  private final SADVerifierCache verifierCache;
+
+  /** Optional replay cache shared by all validators. */
+  private final SADReplayCache replayCache;
+
+  /** Optional customizer that is invoked for each created validator. */
+  private final Consumer<SADValidator> customizer;
+
+  /**
+   * Default constructor.
+   */
+  public SADValidatorRegistry() {
+    this(new SADVerifierCache(), null, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param verifierCache
+   *          the verifier cache shared by all validators
+   * @param replayCache
+   *          the replay cache shared by all validators (may be null)
+   * @param customizer
+   *          invoked for each created validator, for example to assign the allowed algorithms (may be null)
+   */
+  public SADValidatorRegistry(final SADVerifierCache verifierCache, final SADReplayCache replayCache,
+      final Consumer<SADValidator> customizer) {
+    if (verifierCache == null) {
+      throw new IllegalArgumentException("verifierCache must not be null");
+    }
+    this.verifierCache = verifierCache;
+    this.replayCache = replayCache;
+    this.customizer = customizer;
+  }
+
+  /**
+   * Returns the validator for the IdP given by the supplied metadata.
+   *
+   * @param idpMetadata
+   *          the IdP metadata
+   * @return a validator
+   */
+  public SADValidator getValidator(final EntityDescriptor idpMetadata) {
+    if (idpMetadata == null || idpMetadata.getEntityID() == null) {
+      throw new IllegalArgumentException("idpMetadata must be set and have an entityID");
+    }
+    Entry entry = this.validators.get(idpMetadata.getEntityID());
+    if (entry != null && entry.idpMetadata == idpMetadata) {
+      return entry.validator;
+    }
+    entry = this.validators.compute(idpMetadata.getEntityID(), (id, e) -> {
+      if (e != null && e.idpMetadata == idpMetadata) {
+        return e;
+      }
+      logger.debug("Creating SAD validator for IdP '{}'", id);
+      return new Entry(idpMetadata, this.createValidator(idpMetadata));
+    });
+    return entry.validator;
+  }
+
+  /**
+   * Removes the validator for the given IdP.
+   *
+   * @param idpEntityID
+   *          the IdP entityID
+   */
+  public void remove(final String idpEntityID) {
+    if (idpEntityID != null) {
+      this.validators.remove(idpEntityID);
+      this.verifierCache.invalidate(idpEntityID);
+    }
+  }
+
+  /**
+   * Returns the verifier cache that is shared by all validators.
+   *
+   * @return the verifier cache
+   */
+  public SADVerifierCache getVerifierCache() {
+    return this.verifierCache;
+  }
+
+  /**
+   * Creates a validator.
+   *
+   * @param idpMetadata
+   *          the IdP metadata
+   * @return a validator
+   */
+  private SADValidator createValidator(final EntityDescriptor idpMetadata) {
+    final SADValidator validator = new SADValidator(idpMetadata);
+    validator.setVerifierCache(this.verifierCache);
+    validator.setReplayCache(this.replayCache);
+    if (this.customizer != null) {
+      this.customizer.accept(validator);
+    }
+    return validator;
+  }
+
+  /**
+   * A validator along with the metadata it was created from.
+   */
+  private static class Entry {
+
+    /** The IdP metadata. */
+    private final EntityDescriptor idpMetadata;
+
+    /** The validator. */
+    private final SADValidator validator;
+
+    /**
+     * Constructor.
+     *
+     * @param idpMetadata
+     *          the IdP metadata
+     * @param validator
+     *          the validator
+     */
+    Entry(final EntityDescriptor idpMetadata, final SADValidator validator) {
+      this.idpMetadata = idpMetadata;
+      this.validator = validator;
+    }
+  }
+
+}
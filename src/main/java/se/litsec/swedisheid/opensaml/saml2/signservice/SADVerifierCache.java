@@ -0,0 +1,335 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.security.Provider;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.jca.JCAContext;
+import com.nimbusds.jose.proc.JWSVerifierFactory;
+import com.nimbusds.jose.util.X509CertUtils;
+
+/**
+ * A cache for the JWS verifiers used when verifying SAD JWT signatures.
+ * <p>
+ * Verifiers are cached per IdP entityID, certificate fingerprint (SHA-256) and JWS algorithm. The IdP keys are
+ * associated with the source they were read from (typically the IdP {@code EntityDescriptor}). When the source changes,
+ * for example after a metadata refresh, the keys for the IdP are re-read and all cached verifiers for that IdP are
+ * dropped. The source is only referenced weakly, so the cache never keeps old metadata in memory.
+ * </p>
+ * <p>
+ * The number of IdP entries is bounded (see {@link #setMaxEntries(int)}), since the entityID may be taken from the
+ * (not yet verified) SAD.
+ * </p>
+ * <p>
+ * The cache remembers which key last verified a SAD for an IdP and returns this key first the next time.
+ * </p>
+ * <p>
+ * The cache is safe to share between several {@link SADParser.SADValidator} instances.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SADVerifierCache {
+
+  /** Logger instance. */
+  private final Logger logger = LoggerFactory.getLogger(SADVerifierCache.class);
+
+  /** The factory used to create verifiers. */
+  private final JWSVerifierFactory verifierFactory;
+
+  /** The cached keys, indexed by IdP entityID. */
+  private final SourceBoundCache<IdpKeys> cache = new SourceBoundCache<>();
+
+  /** Number of verifier lookups that were served from the cache. */
+  private final LongAdder hits = new LongAdder();
+
+  /** Number of verifier lookups that required a verifier to be created. */
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Default constructor.
+   */
+  public SADVerifierCache() {
+    this(new SADJWSVerifierFactory());
+  }
+
+  /**
+   * Constructor assigning the JCA provider that the created verifiers should use. This makes it possible to use a
+   * specific provider, for example a faster native provider, for SAD signature verification without changing the JVM
+   * provider configuration.
+   *
+   * @param provider
+   *          the JCA provider (null means the JVM default)
+   */
+  public SADVerifierCache(final Provider provider) {
+    this(new JCAContext(provider, null));
+  }
+
+  /**
+   * Constructor assigning the JCA context (provider and secure random) that the created verifiers should use.
+   *
+   * @param jcaContext
+   *          the JCA context
+   */
+  public SADVerifierCache(final JCAContext jcaContext) {
+    this(createVerifierFactory(jcaContext));
+  }
+
+  /**
+   * Constructor assigning the factory that is used to create the verifiers.
+   *
+   * @param verifierFactory
+   *          the verifier factory
+   */
+  public SADVerifierCache(final JWSVerifierFactory verifierFactory) {
+    if (verifierFactory == null) {
+      throw new IllegalArgumentException("verifierFactory must not be null");
+    }
+    this.verifierFactory = verifierFactory;
+  }
+
+  /**
+   * Creates a verifier factory using the supplied JCA context.
+   *
+   * @param jcaContext
+   *          the JCA context
+   * @return a verifier factory
+   */
+  private static JWSVerifierFactory createVerifierFactory(final JCAContext jcaContext) {
+    if (jcaContext == null) {
+      throw new IllegalArgumentException("jcaContext must not be null");
+    }
+    final SADJWSVerifierFactory factory = new SADJWSVerifierFactory();
+    factory.getJCAContext().setProvider(jcaContext.getProvider());
+    factory.getJCAContext().setSecureRandom(jcaContext.getSecureRandom());
+    return factory;
+  }
+
+  /**
+   * Returns the keys for the given IdP. The key that last verified a SAD from the IdP is placed first in the list.
+   * <p>
+   * If the {@code keySource} is not the same object as the one used when the keys were cached, the keys are re-read
+   * using the {@code certificates} supplier.
+   * </p>
+   *
+   * @param idpEntityID
+   *          the IdP entityID
+   * @param keySource
+   *          the object that the certificates are read from (e.g., the IdP {@code EntityDescriptor})
+   * @param certificates
+   *          supplier for the certificates of the source
+   * @return a (possibly empty) list of keys
+   */
+  public List<CachedKey> getKeys(final String idpEntityID, final Object keySource, final Supplier<List<X509Certificate>> certificates) {
+    final String id = idpEntityID != null ? idpEntityID : "";
+
+    return this.cache.get(id, keySource, () -> {
+      logger.debug("Reading SAD validation keys for IdP '{}'", id);
+      return new IdpKeys(certificates.get());
+    }).getOrderedKeys();
+  }
+
+  /**
+   * Returns a verifier for the given key and JWS header.
+   *
+   * @param key
+   *          the key
+   * @param header
+   *          the JWS header of the JWT to verify
+   * @return a verifier
+   * @throws JOSEException
+   *           if no verifier can be created for the key and algorithm
+   */
+  public JWSVerifier getVerifier(final CachedKey key, final JWSHeader header) throws JOSEException {
+    JWSVerifier verifier = key.verifiers.get(header.getAlgorithm());
+    if (verifier != null) {
+      this.hits.increment();
+      return verifier;
+    }
+    this.misses.increment();
+    verifier = this.verifierFactory.createJWSVerifier(header, key.certificate.getPublicKey());
+    key.verifiers.putIfAbsent(header.getAlgorithm(), verifier);
+    return verifier;
+  }
+
+  /**
+   * Tells the cache that the given key successfully verified a SAD from the IdP. This key will be returned first by
+   * {@link #getKeys(String, Object, Supplier)} the next time.
+   *
+   * @param idpEntityID
+   *          the IdP entityID
+   * @param key
+   *          the key that verified the signature
+   */
+  public void markSuccess(final String idpEntityID, final CachedKey key) {
+    final IdpKeys idpKeys = this.cache.get(idpEntityID != null ? idpEntityID : "");
+    if (idpKeys != null && idpKeys.keys.contains(key)) {
+      idpKeys.preferred = key;
+    }
+  }
+
+  /**
+   * Removes all cached keys and verifiers for the given IdP.
+   *
+   * @param idpEntityID
+   *          the IdP entityID
+   */
+  public void invalidate(final String idpEntityID) {
+    this.cache.remove(idpEntityID != null ? idpEntityID : "");
+  }
+
+  /**
+   * Removes all cached keys and verifiers.
+   */
+  public void clear() {
+    this.cache.clear();
+  }
+
+  /**
+   * Assigns the maximum number of IdP entries held by the cache. The default is 1000.
+   *
+   * @param maxEntries
+   *          the maximum number of IdP entries
+   */
+  public void setMaxEntries(final int maxEntries) {
+    this.cache.setMaxEntries(maxEntries);
+  }
+
+  /**
+   * Returns the number of verifier lookups that were served from the cache.
+   *
+   * @return number of cache hits
+   */
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Returns the number of verifier lookups where a verifier had to be created.
+   *
+   * @return number of cache misses
+   */
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * A cached IdP key along with the verifiers created for it.
+   */
+  public static class CachedKey {
+
+    /** The certificate. */
+    private final X509Certificate certificate;
+
+    /** The SHA-256 fingerprint of the certificate (base64url-encoded). */
+    private final String fingerprint;
+
+    /** Verifiers indexed by JWS algorithm. */
+    private final ConcurrentMap<JWSAlgorithm, JWSVerifier> verifiers = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param certificate
+     *          the certificate
+     */
+    private CachedKey(final X509Certificate certificate) {
+      this.certificate = certificate;
+      this.fingerprint = X509CertUtils.computeSHA256Thumbprint(certificate).toString();
+    }
+
+    /**
+     * Returns the certificate.
+     *
+     * @return the certificate
+     */
+    public X509Certificate getCertificate() {
+      return this.certificate;
+    }
+
+    /**
+     * Returns the SHA-256 fingerprint of the certificate (base64url-encoded).
+     *
+     * @return the certificate fingerprint
+     */
+    public String getFingerprint() {
+      return this.fingerprint;
+    }
+
+  }
+
+  /**
+   * The keys for one IdP.
+   */
+  private static class IdpKeys {
+
+    /** The keys. */
+    private final List<CachedKey> keys;
+
+    /** The key that last verified a signature. */
+    private volatile CachedKey preferred;
+
+    /**
+     * Constructor.
+     *
+     * @param certificates
+     *          the certificates
+     */
+    IdpKeys(final List<X509Certificate> certificates) {
+      final List<CachedKey> k = new ArrayList<>(certificates.size());
+      for (X509Certificate c : certificates) {
+        k.add(new CachedKey(c));
+      }
+      this.keys = Collections.unmodifiableList(k);
+    }
+
+    /**
+     * Returns the keys with the preferred key first.
+     *
+     * @return a list of keys
+     */
+    List<CachedKey> getOrderedKeys() {
+      final CachedKey p = this.preferred;
+      if (p == null || this.keys.get(0) == p) {
+        return this.keys;
+      }
+      final List<CachedKey> ordered = new ArrayList<>(this.keys.size());
+      ordered.add(p);
+      for (CachedKey k : this.keys) {
+        if (k != p) {
+          ordered.add(k);
+        }
+      }
+      return ordered;
+    }
+  }
+
+}
@@ -0,0 +1,724 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.DuplicateClaimException;
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SAD;
+
+/**
+ * A lazy, read-only, view of the claims of a SAD JWT. The view is obtained using {@link SADParser#view(String)}.
+ * <p>
+ * When the view is created, the JWT payload is scanned once in order to check its structure and to locate the claims,
+ * but no strings are created. A claim value is decoded the first time it is asked for. This makes the view suitable for
+ * routing purposes, for example when only {@code iss} and {@code aud} are needed to find the correct validator.
+ * </p>
+ * <p>
+ * <b>Note:</b> Nothing has been verified for the claims of a view. Use
+ * {@link SADParser.SADValidator#validate(SADView, String, String, String, String, String, int, String)} to promote the
+ * view into a validated {@link SAD} (without parsing the payload again).
+ * </p>
+ * <p>
+ * A view may be shared between threads.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public final class SADView {
+
+  // Claim slots. The top-level claims are followed by the claims of the seElnSadext extension.
+  //
+  private static final int SUB = 0;
+  private static final int AUD = 1;
+  private static final int ISS = 2;
+  private static final int EXP = 3;
+  private static final int IAT = 4;
+  private static final int JTI = 5;
+  private static final int SE_ELN_SADEXT = 6;
+  private static final int VER = 7;
+  private static final int IRT = 8;
+  private static final int ATTR = 9;
+  private static final int LOA = 10;
+  private static final int REQID = 11;
+  private static final int DOCS = 12;
+  private static final int SLOTS = 13;
+
+  /** The claim names (UTF-8) indexed by slot. */
+  private static final byte[][] CLAIM_NAMES = {
+      bytes("sub"), bytes("aud"), bytes("iss"), bytes("exp"), bytes("iat"), bytes("jti"), bytes("seElnSadext"),
+      bytes("ver"), bytes("irt"), bytes("attr"), bytes("loa"), bytes("reqid"), bytes("docs") };
+
+  // Value types
+  //
+  private static final byte ABSENT = 0;
+  private static final byte NULL = 1;
+  private static final byte STRING = 2;
+  private static final byte ESCAPED_STRING = 3;
+  private static final byte INTEGER = 4;
+  private static final byte FLOAT = 5;
+  private static final byte BOOLEAN = 6;
+  private static final byte OBJECT = 7;
+
+  /** The compact serialized JWT. */
+  private final String jwt;
+
+  /** The decoded JWT payload. */
+  private final byte[] payload;
+
+  /** The value type for each slot. */
+  private final byte[] types = new byte[SLOTS];
+
+  /** The start offset of the value for each slot. */
+  private final int[] starts = new int[SLOTS];
+
+  /** The end offset (exclusive) of the value for each slot. */
+  private final int[] ends = new int[SLOTS];
+
+  /** The decoded values (strings and integers), null if not yet decoded. */
+  private final Object[] values = new Object[SLOTS];
+
+  /** The current position (only used while scanning). */
+  private int pos;
+
+  /**
+   * Constructor.
+   *
+   * @param jwt
+   *          the compact serialized JWT
+   * @param payload
+   *          the decoded JWT payload
+   * @throws IOException
+   *           if the payload is not a valid SAD
+   */
+  SADView(final String jwt, final byte[] payload) throws IOException {
+    this.jwt = jwt;
+    this.payload = payload;
+    this.scan();
+  }
+
+  /**
+   * Returns the compact serialized JWT.
+   *
+   * @return the JWT
+   */
+  public String getJwt() {
+    return this.jwt;
+  }
+
+  /**
+   * Returns the {@code sub} claim.
+   *
+   * @return the subject
+   */
+  public String getSubject() {
+    return this.getString(SUB);
+  }
+
+  /**
+   * Returns the {@code aud} claim.
+   *
+   * @return the audience
+   */
+  public String getAudience() {
+    return this.getString(AUD);
+  }
+
+  /**
+   * Returns the {@code iss} claim.
+   *
+   * @return the issuer
+   */
+  public String getIssuer() {
+    return this.getString(ISS);
+  }
+
+  /**
+   * Returns the {@code exp} claim.
+   *
+   * @return the expiration time (seconds since 1970-01-01)
+   */
+  public Integer getExpiry() {
+    return this.getInteger(EXP);
+  }
+
+  /**
+   * Returns the {@code iat} claim.
+   *
+   * @return the issuance time (seconds since 1970-01-01)
+   */
+  public Integer getIssuedAt() {
+    return this.getInteger(IAT);
+  }
+
+  /**
+   * Returns the {@code jti} claim.
+   *
+   * @return the JWT ID
+   */
+  public String getJwtId() {
+    return this.getString(JTI);
+  }
+
+  /**
+   * Returns the {@code seElnSadext} claim. A new object is created for each call.
+   *
+   * @return the SAD extension
+   */
+  public SAD.Extension getSeElnSadext() {
+    if (this.types[SE_ELN_SADEXT] != OBJECT) {
+      return null;
+    }
+    final SAD.Extension ext = new SAD.Extension();
+    ext.setVersion(this.getString(VER));
+    ext.setInResponseTo(this.getString(IRT));
+    ext.setAttributeName(this.getString(ATTR));
+    ext.setLoa(this.getString(LOA));
+    ext.setRequestID(this.getString(REQID));
+    ext.setNumberOfDocuments(this.getInteger(DOCS));
+    return ext;
+  }
+
+  /**
+   * Creates a {@link SAD} object holding the claims of the view. Claims that have already been decoded are not decoded
+   * again.
+   * <p>
+   * <b>Note:</b> The returned SAD has not been validated.
+   * </p>
+   *
+   * @return a SAD object
+   */
+  public SAD toSAD() {
+    final SAD sad = new SAD();
+    sad.setSubject(this.getSubject());
+    sad.setAudience(this.getAudience());
+    sad.setIssuer(this.getIssuer());
+    sad.setExpiry(this.getExpiry());
+    sad.setIssuedAt(this.getIssuedAt());
+    sad.setJwtId(this.getJwtId());
+    sad.setSeElnSadext(this.getSeElnSadext());
+    return sad;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return String.format("iss='%s', aud='%s', jti='%s'", this.getIssuer(), this.getAudience(), this.getJwtId());
+  }
+
+  /**
+   * Returns the string value of the given slot. Non-string scalars are returned as strings.
+   *
+   * @param slot
+   *          the slot
+   * @return the value (or null)
+   */
+  private String getString(final int slot) {
+    Object value = this.values[slot];
+    if (value == null) {
+      final byte type = this.types[slot];
+      if (type == ABSENT || type == NULL) {
+        return null;
+      }
+      final int start = this.starts[slot];
+      final int end = this.ends[slot];
+      if (type == STRING) {
+        value = new String(this.payload, start + 1, end - start - 2, StandardCharsets.UTF_8);
+      }
+      else if (type == ESCAPED_STRING) {
+        value = this.unescape(start + 1, end - 1);
+      }
+      else {
+        value = new String(this.payload, start, end - start, StandardCharsets.US_ASCII);
+      }
+      // Decoding is idempotent (and strings are immutable), so a race only means that the value is decoded twice
+      this.values[slot] = value;
+    }
+    return value instanceof String ? (String) value : value.toString();
+  }
+
+  /**
+   * Returns the integer value of the given slot. The value was checked (and decoded) while scanning.
+   *
+   * @param slot
+   *          the slot
+   * @return the value (or null)
+   */
+  private Integer getInteger(final int slot) {
+    return (Integer) this.values[slot];
+  }
+
+  /**
+   * Scans the payload, checks the structure and records where the claims are found.
+   *
+   * @throws IOException
+   *           if the payload is not a valid SAD
+   */
+  private void scan() throws IOException {
+    this.pos = 0;
+    this.scanObject(false);
+    this.skipWhitespace();
+    if (this.pos != this.payload.length) {
+      throw new IOException("Unexpected content after SAD JSON object");
+    }
+  }
+
+  /**
+   * Scans a JSON object holding SAD claims (the top-level object or the seElnSadext object).
+   *
+   * @param extension
+   *          whether the seElnSadext object is scanned
+   * @throws IOException
+   *           for parsing errors
+   */
+  private void scanObject(final boolean extension) throws IOException {
+    this.skipWhitespace();
+    this.expect('{');
+    this.skipWhitespace();
+    if (this.peek() == '}') {
+      this.pos++;
+      return;
+    }
+    while (true) {
+      this.skipWhitespace();
+      final int nameStart = this.pos;
+      final boolean escaped = this.scanString();
+      final int slot = this.getSlot(nameStart + 1, this.pos - 1, escaped, extension);
+      if (this.types[slot] != ABSENT) {
+        throw new DuplicateClaimException(new String(CLAIM_NAMES[slot], StandardCharsets.UTF_8));
+      }
+      this.skipWhitespace();
+      this.expect(':');
+      this.skipWhitespace();
+
+      if (slot == SE_ELN_SADEXT) {
+        this.starts[slot] = this.pos;
+        if (this.peek() == '{') {
+          this.scanObject(true);
+          this.types[slot] = OBJECT;
+        }
+        else if (this.scanScalar() == NULL) {
+          this.types[slot] = NULL;
+        }
+        else {
+          throw new IOException("Expected JSON object for seElnSadext");
+        }
+        this.ends[slot] = this.pos;
+      }
+      else {
+        this.starts[slot] = this.pos;
+        this.types[slot] = this.scanScalar();
+        this.ends[slot] = this.pos;
+        this.values[slot] = null;
+        if (slot == EXP || slot == IAT || slot == DOCS) {
+          this.values[slot] = this.decodeInteger(slot);
+        }
+      }
+
+      this.skipWhitespace();
+      final int c = this.next();
+      if (c == '}') {
+        return;
+      }
+      if (c != ',') {
+        throw this.error("Expected ',' or '}'");
+      }
+    }
+  }
+
+  /**
+   * Scans a scalar value (string, number, boolean or null).
+   *
+   * @return the value type
+   * @throws IOException
+   *           for parsing errors
+   */
+  private byte scanScalar() throws IOException {
+    final int c = this.peek();
+    if (c == '"') {
+      return this.scanString() ? ESCAPED_STRING : STRING;
+    }
+    else if (c == '-' || (c >= '0' && c <= '9')) {
+      return this.scanNumber();
+    }
+    else if (this.scanLiteral("null")) {
+      return NULL;
+    }
+    else if (this.scanLiteral("true") || this.scanLiteral("false")) {
+      return BOOLEAN;
+    }
+    throw this.error("Expected scalar value");
+  }
+
+  /**
+   * Scans a string (including the quotes).
+   *
+   * @return whether the string contains escape sequences
+   * @throws IOException
+   *           for parsing errors
+   */
+  private boolean scanString() throws IOException {
+    this.expect('"');
+    final byte[] p = this.payload;
+    boolean escaped = false;
+    int i = this.pos;
+    while (i < p.length) {
+      final byte c = p[i++];
+      if (c == '"') {
+        this.pos = i;
+        return escaped;
+      }
+      else if (c == '\\') {
+        escaped = true;
+        this.pos = i;
+        final int e = this.next();
+        if (e == 'u') {
+          for (int j = 0; j < 4; j++) {
+            if (Character.digit(this.next(), 16) < 0) {
+              throw this.error("Invalid unicode escape");
+            }
+          }
+        }
+        else if (e != '"' && e != '\\' && e != '/' && e != 'b' && e != 'f' && e != 'n' && e != 'r' && e != 't') {
+          throw this.error("Invalid escape sequence");
+        }
+        i = this.pos;
+      }
+      else if (c >= 0 && c < 0x20) {
+        this.pos = i;
+        throw this.error("Illegal character in string");
+      }
+    }
+    this.pos = i;
+    throw this.error("Unexpected end of input");
+  }
+
+  /**
+   * Scans a number.
+   *
+   * @return {@link #INTEGER} or {@link #FLOAT}
+   * @throws IOException
+   *           for parsing errors
+   */
+  private byte scanNumber() throws IOException {
+    boolean isFloat = false;
+    if (this.peek() == '-') {
+      this.pos++;
+    }
+    if (this.peek() == '0') {
+      this.pos++;
+    }
+    else {
+      this.scanDigits();
+    }
+    if (this.peek() == '.') {
+      this.pos++;
+      this.scanDigits();
+      isFloat = true;
+    }
+    if (this.peek() == 'e' || this.peek() == 'E') {
+      this.pos++;
+      if (this.peek() == '+' || this.peek() == '-') {
+        this.pos++;
+      }
+      this.scanDigits();
+      isFloat = true;
+    }
+    return isFloat ? FLOAT : INTEGER;
+  }
+
+  /**
+   * Scans one or more digits.
+   *
+   * @throws IOException
+   *           if there are no digits
+   */
+  private void scanDigits() throws IOException {
+    final int start = this.pos;
+    while (this.peek() >= '0' && this.peek() <= '9') {
+      this.pos++;
+    }
+    if (this.pos == start) {
+      throw this.error("Invalid number");
+    }
+  }
+
+  /**
+   * Scans the given literal if present.
+   *
+   * @param literal
+   *          the literal
+   * @return whether the literal was found
+   */
+  private boolean scanLiteral(final String literal) {
+    if (this.pos + literal.length() > this.payload.length) {
+      return false;
+    }
+    for (int i = 0; i < literal.length(); i++) {
+      if (this.payload[this.pos + i] != literal.charAt(i)) {
+        return false;
+      }
+    }
+    this.pos += literal.length();
+    return true;
+  }
+
+  /**
+   * Returns the slot for a claim name.
+   *
+   * @param start
+   *          the start of the name (after the quote)
+   * @param end
+   *          the end of the name (the position of the closing quote)
+   * @param escaped
+   *          whether the name contains escape sequences
+   * @param extension
+   *          whether the name is found in the seElnSadext object
+   * @return the slot
+   * @throws IOException
+   *           if the name is not a SAD claim
+   */
+  private int getSlot(final int start, final int end, final boolean escaped, final boolean extension) throws IOException {
+    final byte[] name = escaped ? bytes(this.unescape(start, end)) : null;
+    final int first = extension ? VER : SUB;
+    final int last = extension ? DOCS : SE_ELN_SADEXT;
+    for (int slot = first; slot <= last; slot++) {
+      final byte[] claimName = CLAIM_NAMES[slot];
+      if (name != null) {
+        if (Arrays.equals(name, claimName)) {
+          return slot;
+        }
+        continue;
+      }
+      if (claimName.length != end - start) {
+        continue;
+      }
+      int i = 0;
+      while (i < claimName.length && this.payload[start + i] == claimName[i]) {
+        i++;
+      }
+      if (i == claimName.length) {
+        return slot;
+      }
+    }
+    final String claim = name != null ? new String(name, StandardCharsets.UTF_8)
+        : new String(this.payload, start, end - start, StandardCharsets.UTF_8);
+    throw new IOException(String.format("Unrecognized field \"%s\" in %s", claim, extension ? "seElnSadext" : "SAD"));
+  }
+
+  /**
+   * Decodes an integer claim. Floating point values are truncated and strings are parsed (as for
+   * {@link SAD#fromJson(byte[])}).
+   *
+   * @param slot
+   *          the slot
+   * @return the value (or null)
+   * @throws IOException
+   *           if the value is not a valid integer
+   */
+  private Integer decodeInteger(final int slot) throws IOException {
+    final byte type = this.types[slot];
+    if (type == NULL) {
+      return null;
+    }
+    else if (type == INTEGER) {
+      // JSON does not allow leading zeros, so more than 11 characters (including the sign) is out of range
+      final int length = this.ends[slot] - this.starts[slot];
+      final long value = length <= 11 ? parseLong(this.payload, this.starts[slot], this.ends[slot]) : Long.MAX_VALUE;
+      if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+        throw new IOException(String.format("Numeric value for \"%s\" out of range of int", getClaimName(slot)));
+      }
+      return (int) value;
+    }
+    else if (type == FLOAT) {
+      final double value = Double.parseDouble(
+        new String(this.payload, this.starts[slot], this.ends[slot] - this.starts[slot], StandardCharsets.US_ASCII));
+      if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+        throw new IOException(String.format("Numeric value for \"%s\" out of range of int", getClaimName(slot)));
+      }
+      return (int) value;
+    }
+    else if (type == STRING || type == ESCAPED_STRING) {
+      final String value = this.getString(slot).trim();
+      if (value.isEmpty()) {
+        return null;
+      }
+      try {
+        return Integer.valueOf(value);
+      }
+      catch (NumberFormatException e) {
+        throw new IOException(String.format("Invalid integer value for \"%s\"", getClaimName(slot)), e);
+      }
+    }
+    throw new IOException(String.format("Expected integer value for \"%s\"", getClaimName(slot)));
+  }
+
+  /**
+   * Parses an integer (the characters have been checked by the scanner).
+   *
+   * @param bytes
+   *          the bytes
+   * @param start
+   *          the start offset
+   * @param end
+   *          the end offset (exclusive)
+   * @return the value
+   */
+  private static long parseLong(final byte[] bytes, final int start, final int end) {
+    final boolean negative = bytes[start] == '-';
+    long value = 0;
+    for (int i = negative ? start + 1 : start; i < end; i++) {
+      value = value * 10 + (bytes[i] - '0');
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Returns the claim name for a slot.
+   *
+   * @param slot
+   *          the slot
+   * @return the claim name
+   */
+  private static String getClaimName(final int slot) {
+    return new String(CLAIM_NAMES[slot], StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Decodes a string holding escape sequences.
+   *
+   * @param start
+   *          the start offset (after the opening quote)
+   * @param end
+   *          the end offset (the position of the closing quote)
+   * @return the decoded string
+   */
+  private String unescape(final int start, final int end) {
+    final StringBuilder sb = new StringBuilder(end - start);
+    int runStart = start;
+    int i = start;
+    while (i < end) {
+      if (this.payload[i] != '\\') {
+        i++;
+        continue;
+      }
+      sb.append(new String(this.payload, runStart, i - runStart, StandardCharsets.UTF_8));
+      final byte e = this.payload[i + 1];
+      switch (e) {
+      case 'b':
+        sb.append('\b');
+        break;
+      case 'f':
+        sb.append('\f');
+        break;
+      case 'n':
+        sb.append('\n');
+        break;
+      case 'r':
+        sb.append('\r');
+        break;
+      case 't':
+        sb.append('\t');
+        break;
+      case 'u':
+        sb.append((char) Integer.parseInt(new String(this.payload, i + 2, 4, StandardCharsets.US_ASCII), 16));
+        i += 4;
+        break;
+      default:
+        sb.append((char) e);
+      }
+      i += 2;
+      runStart = i;
+    }
+    sb.append(new String(this.payload, runStart, end - runStart, StandardCharsets.UTF_8));
+    return sb.toString();
+  }
+
+  /**
+   * Skips whitespace.
+   */
+  private void skipWhitespace() {
+    while (this.pos < this.payload.length) {
+      final byte c = this.payload[this.pos];
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return;
+      }
+      this.pos++;
+    }
+  }
+
+  /**
+   * Returns the current character without consuming it.
+   *
+   * @return the current character, or -1 at end of input
+   */
+  private int peek() {
+    return this.pos < this.payload.length ? this.payload[this.pos] & 0xff : -1;
+  }
+
+  /**
+   * Consumes and returns the current character.
+   *
+   * @return the character
+   * @throws IOException
+   *           at end of input
+   */
+  private int next() throws IOException {
+    if (this.pos >= this.payload.length) {
+      throw this.error("Unexpected end of input");
+    }
+    return this.payload[this.pos++] & 0xff;
+  }
+
+  /**
+   * Consumes the expected character.
+   *
+   * @param c
+   *          the expected character
+   * @throws IOException
+   *           if the current character is not the expected character
+   */
+  private void expect(final char c) throws IOException {
+    if (this.next() != c) {
+      throw this.error("Expected '" + c + "'");
+    }
+  }
+
+  /**
+   * Creates a parse error.
+   *
+   * @param msg
+   *          the message
+   * @return an exception
+   */
+  private IOException error(final String msg) {
+    return new IOException(String.format("Invalid SAD JSON - %s at position %d", msg, this.pos));
+  }
+
+  /**
+   * Returns the UTF-8 bytes for a string.
+   *
+   * @param s
+   *          the string
+   * @return the UTF-8 bytes
+   */
+  private static byte[] bytes(final String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+}
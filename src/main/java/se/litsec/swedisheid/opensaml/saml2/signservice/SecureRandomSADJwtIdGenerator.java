@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * The default {@link SADJwtIdGenerator}. Generates alphanumeric identifiers (A-Z, a-z and 0-9) from
+ * {@link SecureRandom} output.
+ * <p>
+ * Each thread has its own {@code SecureRandom} instance (DRBG if available) and a buffer of random bytes, so no locks
+ * are shared between threads issuing SAD:s. Characters are written directly into the resulting string's character
+ * array without any intermediate objects.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SecureRandomSADJwtIdGenerator implements SADJwtIdGenerator {
+
+  /** The characters used in generated identifiers. */
+  private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
+  /** The size of the per-thread buffer of random bytes. */
+  private static final int BUFFER_SIZE = 256;
+
+  /** The per-thread random state. */
+  private static final ThreadLocal<RandomBuffer> buffers = ThreadLocal.withInitial(RandomBuffer::new);
+
+  /** {@inheritDoc} */
+  @Override
+  public String generateJwtId(final int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("size must be a positive integer");
+    }
+    final RandomBuffer buffer = buffers.get();
+    final char[] id = new char[size];
+    int i = 0;
+    while (i < size) {
+      // Use 6 bits of each byte and reject values outside the alphabet in order not to introduce a bias.
+      final int b = buffer.next() & 0x3f;
+      if (b < ALPHABET.length) {
+        id[i++] = ALPHABET[b];
+      }
+    }
+    return new String(id);
+  }
+
+  /**
+   * A per-thread {@code SecureRandom} along with a buffer of random bytes.
+   */
+  private static class RandomBuffer {
+
+    /** The random generator. */
+    private final SecureRandom random;
+
+    /** The buffered bytes. */
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+
+    /** The position of the next unused byte. */
+    private int pos = BUFFER_SIZE;
+
+    /**
+     * Constructor.
+     */
+    RandomBuffer() {
+      SecureRandom r;
+      try {
+        // The default (NativePRNG) instances share a global lock, DRBG instances do not.
+        r = SecureRandom.getInstance("DRBG");
+      }
+      catch (NoSuchAlgorithmException e) {
+        r = new SecureRandom();
+      }
+      this.random = r;
+    }
+
+    /**
+     * Returns the next random byte.
+     *
+     * @return a random byte
+     */
+    int next() {
+      if (this.pos == BUFFER_SIZE) {
+        this.random.nextBytes(this.bytes);
+        this.pos = 0;
+      }
+      return this.bytes[this.pos++];
+    }
+  }
+
+}
@@ -15,8 +15,17 @@
  */
 package se.litsec.swedisheid.opensaml.saml2.signservice;
 
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.opensaml.security.credential.Credential;
 import org.opensaml.xmlsec.DecryptionParameters;
@@ -25,46 +34,91 @@ import org.opensaml.xmlsec.encryption.support.DecryptionException;
 import org.opensaml.xmlsec.encryption.support.EncryptedKeyResolver;
 import org.opensaml.xmlsec.encryption.support.InlineEncryptedKeyResolver;
 import org.opensaml.xmlsec.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xmlsec.keyinfo.impl.ChainingKeyInfoCredentialResolver;
 import org.opensaml.xmlsec.keyinfo.impl.StaticKeyInfoCredentialResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import se.litsec.swedisheid.opensaml.saml2.signservice.dss.Message;
 import se.litsec.swedisheid.opensaml.saml2.signservice.dss.SignMessage;
+import se.swedenconnect.opensaml.xmlsec.encryption.support.DecryptionUtils;
 import se.swedenconnect.opensaml.xmlsec.encryption.support.Pkcs11Decrypter;
 
 /**
  * A bean for decrypting encrypted messages within {@link SignMessage} objects.
+ * <p>
+ * The decrypter is thread-safe. The OpenSAML {@link Decrypter} objects that perform the actual decryption are created
+ * from a {@link DecryptionParameters} object that is built once from the settings of this bean (and never modified),
+ * and are kept in a pool so that concurrent calls to {@link #decrypt(SignMessage)} never share a {@link Decrypter}
+ * instance, and the set-up work is not repeated for each call. If a setter is invoked after the bean has been used, the
+ * pool is discarded and a new one is created using the updated settings.
+ * </p>
+ * <p>
+ * When the decryption key resides in a HSM, the number of concurrent decryptions may be limited using
+ * {@link #setHsmConcurrencyLimit(int, long)}. Callers then wait (in FIFO order) for one of a fixed number of permits,
+ * which should match the number of sessions that the token can serve, and give up with a {@link DecryptionException}
+ * if no permit is available within the given timeout. The time spent waiting for a permit and the time spent
+ * decrypting are available via {@link #getPermitWaitTimeNanos()} and {@link #getDecryptionTimeNanos()}.
+ * </p>
+ * <p>
+ * Both key transport (RSA) and key agreement (ECDH-ES, XML Encryption 1.1 {@code AgreementMethod}) are supported. If a
+ * decryption credential holds an EC key, the key encryption key is derived from the {@code AgreementMethod} of the
+ * {@code EncryptedKey} using that credential.
+ * </p>
  * 
  * @author Martin Lindström (martin.lindstrom@litsec.se)
  */
 public class SignMessageDecrypter {
 
+  /** The default maximum number of idle decrypters kept in the pool. */
+  public static final int DEFAULT_MAX_IDLE_DECRYPTERS = Runtime.getRuntime().availableProcessors() * 2;
+
   /** Logger instance. */
-  private Logger logger = LoggerFactory.getLogger(SignMessageDecrypter.class);
+  private final Logger logger = LoggerFactory.getLogger(SignMessageDecrypter.class);
 
   /** The resolver for key encryption keys. */
-  private KeyInfoCredentialResolver keyEncryptionKeyResolver;
+  private final KeyInfoCredentialResolver keyEncryptionKeyResolver;
 
-  /** The resolver for encrypted keys - always inlined for EncryptedMessage. */
-  private EncryptedKeyResolver encryptedKeyResolver = new InlineEncryptedKeyResolver();
+  /**
+   * The entityID of this entity. If assigned, only {@code EncryptedKey} elements that have this entityID as their
+   * {@code Recipient} (or no {@code Recipient}) are used.
+   */
+  private volatile String localEntityID;
 
   /** Optional black list of algorithms. */
-  private Collection<String> blacklistedAlgorithms;
+  private volatile Collection<String> blacklistedAlgorithms;
 
   /** Optional white list of algorithms. */
-  private Collection<String> whitelistedAlgorithms;
+  private volatile Collection<String> whitelistedAlgorithms;
 
-  /** The decrypter. */
-  private Decrypter decrypter;
-  
   /**
    * If using a HSM it is likely that the SunPKCS11 crypto provider is used. This provider does not have support for
    * OAEP padding. This is used commonly for XML encryption since
    * {@code http://www.w3.org/2001/04/xmlenc#rsa-oaep-mgf1p} is the default algorithm to use for key encryption. This
    * class has a workaround for this limitation that is enabled by setting the {@code pkcs11Workaround} flag.
    */
-  private boolean pkcs11Workaround = false;  
+  private volatile boolean pkcs11Workaround = false;
+
+  /** The maximum number of idle decrypters kept in the pool. */
+  private volatile int maxIdleDecrypters = DEFAULT_MAX_IDLE_DECRYPTERS;
+
+  /** The decrypter pool (created lazily, and re-created if the settings are changed). */
+  private volatile DecrypterPool decrypterPool;
+
+  /** Optional limiter for the number of concurrent (HSM) decryptions. */
+  private volatile ConcurrencyLimiter concurrencyLimiter;
+
+  /** The number of completed decryptions. */
+  private final LongAdder decryptions = new LongAdder();
+
+  /** The total time (in nanoseconds) spent decrypting. */
+  private final LongAdder decryptionTime = new LongAdder();
+
+  /** The total time (in nanoseconds) spent waiting for a permit. */
+  private final LongAdder permitWaitTime = new LongAdder();
+
+  /** The number of decryptions that failed since no permit was available in time. */
+  private final LongAdder permitTimeouts = new LongAdder();
 
   /**
    * Constructor given the credential to use to decrypt the messages (certificate or key pair)
@@ -73,7 +127,7 @@ public class SignMessageDecrypter {
    *          decryption credential
    */
   public SignMessageDecrypter(final Credential decryptionCredential) {
-    this.keyEncryptionKeyResolver = new StaticKeyInfoCredentialResolver(decryptionCredential);
+    this(Arrays.asList(decryptionCredential));
   }
 
   /**
@@ -84,7 +138,7 @@ public class SignMessageDecrypter {
    *          decryption credentials
    */
   public SignMessageDecrypter(final List<Credential> decryptionCredentials) {
-    this.keyEncryptionKeyResolver = new StaticKeyInfoCredentialResolver(decryptionCredentials);
+    this.keyEncryptionKeyResolver = createKeyEncryptionKeyResolver(decryptionCredentials);
   }
 
   /**
@@ -96,7 +150,40 @@ public class SignMessageDecrypter {
   public SignMessageDecrypter(final KeyInfoCredentialResolver keyEncryptionKeyResolver) {
     this.keyEncryptionKeyResolver = keyEncryptionKeyResolver;
   }
-  
+
+  /**
+   * Creates the resolver for key encryption keys. RSA credentials are used as they are (key transport), and EC
+   * credentials are handed to a resolver that performs the key agreement given the {@code AgreementMethod} of the
+   * {@code EncryptedKey}.
+   * 
+   * @param decryptionCredentials
+   *          decryption credentials
+   * @return a key encryption key resolver
+   */
+  private static KeyInfoCredentialResolver createKeyEncryptionKeyResolver(final List<Credential> decryptionCredentials) {
+    final List<Credential> keyTransportCredentials = new ArrayList<>();
+    final List<Credential> keyAgreementCredentials = new ArrayList<>();
+    for (final Credential credential : decryptionCredentials) {
+      final Key key = credential.getPrivateKey() != null ? credential.getPrivateKey() : credential.getPublicKey();
+      if (key != null && "EC".equals(key.getAlgorithm())) {
+        keyAgreementCredentials.add(credential);
+      }
+      else {
+        keyTransportCredentials.add(credential);
+      }
+    }
+    if (keyAgreementCredentials.isEmpty()) {
+      return new StaticKeyInfoCredentialResolver(keyTransportCredentials);
+    }
+    final KeyInfoCredentialResolver keyAgreementResolver = DecryptionUtils.createDecryptionParameters(keyAgreementCredentials)
+      .getKEKKeyInfoCredentialResolver();
+    if (keyTransportCredentials.isEmpty()) {
+      return keyAgreementResolver;
+    }
+    return new ChainingKeyInfoCredentialResolver(
+      Arrays.asList(new StaticKeyInfoCredentialResolver(keyTransportCredentials), keyAgreementResolver));
+  }
+
   /**
    * Decrypts the encrypted message of a {@link SignMessage} and returns the cleartext {@code Message}.
    * 
@@ -116,25 +203,120 @@ public class SignMessageDecrypter {
       logger.error(msg);
       throw new DecryptionException(msg);
     }
-    return (Message) this.getDecrypter().decryptData(signMessage.getEncryptedMessage().getEncryptedData());
+    final ConcurrencyLimiter limiter = this.concurrencyLimiter;
+    if (limiter == null) {
+      return this.decryptMessage(signMessage);
+    }
+    limiter.acquire();
+    try {
+      return this.decryptMessage(signMessage);
+    }
+    finally {
+      limiter.permits.release();
+    }
+  }
+
+  /**
+   * Decrypts the encrypted message using a decrypter from the pool.
+   * 
+   * @param signMessage
+   *          the element holding the encrypted message
+   * @return a cleartext {@code Message} element
+   * @throws DecryptionException
+   *           for decryption errors
+   */
+  private Message decryptMessage(final SignMessage signMessage) throws DecryptionException {
+    final DecrypterPool pool = this.getDecrypterPool();
+    final Decrypter decrypter = pool.borrow();
+    final long start = System.nanoTime();
+    try {
+      return (Message) decrypter.decryptData(signMessage.getEncryptedMessage().getEncryptedData());
+    }
+    finally {
+      this.decryptionTime.add(System.nanoTime() - start);
+      this.decryptions.increment();
+      pool.release(decrypter);
+    }
   }
 
   /**
-   * Returns the decrypter to use.
+   * Returns the decrypter pool to use. The pool is created if it does not exist.
    * 
-   * @return the decrypter
+   * @return the decrypter pool
    */
-  private Decrypter getDecrypter() {
-    if (this.decrypter == null) {
-      DecryptionParameters pars = new DecryptionParameters();
-      pars.setKEKKeyInfoCredentialResolver(this.keyEncryptionKeyResolver);
-      pars.setEncryptedKeyResolver(this.encryptedKeyResolver);
-      pars.setExcludedAlgorithms(this.blacklistedAlgorithms);
-      pars.setIncludedAlgorithms(this.whitelistedAlgorithms);      
-      this.decrypter = this.pkcs11Workaround ? new Pkcs11Decrypter(pars) : new Decrypter(pars);
-      this.decrypter.setRootInNewDocument(true);
+  private DecrypterPool getDecrypterPool() {
+    DecrypterPool pool = this.decrypterPool;
+    if (pool == null) {
+      synchronized (this) {
+        pool = this.decrypterPool;
+        if (pool == null) {
+          pool = new DecrypterPool(this.createDecryptionParameters(), this.pkcs11Workaround, this.maxIdleDecrypters);
+          this.decrypterPool = pool;
+        }
+      }
     }
-    return this.decrypter;
+    return pool;
+  }
+
+  /**
+   * Creates the decryption parameters based on the current settings. The returned object is never modified after it
+   * has been created.
+   * 
+   * @return decryption parameters
+   */
+  private DecryptionParameters createDecryptionParameters() {
+    final DecryptionParameters pars = new DecryptionParameters();
+    pars.setKEKKeyInfoCredentialResolver(this.keyEncryptionKeyResolver);
+    pars.setEncryptedKeyResolver(this.createEncryptedKeyResolver());
+    pars.setExcludedAlgorithms(copyOf(this.blacklistedAlgorithms));
+    pars.setIncludedAlgorithms(copyOf(this.whitelistedAlgorithms));
+    return pars;
+  }
+
+  /**
+   * Creates the resolver for encrypted keys. The keys are always inlined for {@code EncryptedMessage}.
+   * 
+   * @return the encrypted key resolver
+   */
+  private EncryptedKeyResolver createEncryptedKeyResolver() {
+    final String entityID = this.localEntityID;
+    return entityID != null
+        ? new InlineEncryptedKeyResolver(Collections.singletonList(entityID))
+        : new InlineEncryptedKeyResolver();
+  }
+
+  /**
+   * Discards the current decrypter pool. A new pool will be created using the current settings the next time a
+   * message is decrypted.
+   */
+  private synchronized void resetDecrypterPool() {
+    this.decrypterPool = null;
+  }
+
+  /**
+   * Returns an unmodifiable copy of the supplied collection.
+   * 
+   * @param algorithms
+   *          the collection to copy (may be {@code null})
+   * @return an unmodifiable copy, or {@code null}
+   */
+  private static Collection<String> copyOf(final Collection<String> algorithms) {
+    return algorithms != null ? Collections.unmodifiableList(new ArrayList<>(algorithms)) : null;
+  }
+
+  /**
+   * Assigns the entityID of this entity (the IdP). A message that was encrypted for several recipients (see
+   * {@link SignMessageEncrypter#encrypt(SignMessage, List, org.opensaml.xmlsec.EncryptionConfiguration)}) holds one
+   * {@code EncryptedKey} per recipient. If the entityID is assigned, only the {@code EncryptedKey} having this
+   * entityID as its {@code Recipient} (or no {@code Recipient}) is decrypted, instead of trying each key with the
+   * decryption credentials.
+   * 
+   * @param localEntityID
+   *          the entityID of this entity (null means that all encrypted keys are tried)
+   */
+  public void setLocalEntityID(final String localEntityID) {
+    this.localEntityID = localEntityID;
+    this.resetDecrypterPool();
   }
 
   /**
@@ -145,6 +327,7 @@ public class SignMessageDecrypter {
    */
   public void setBlacklistedAlgorithms(final Collection<String> blacklistedAlgorithms) {
     this.blacklistedAlgorithms = blacklistedAlgorithms;
+    this.resetDecrypterPool();
   }
 
   /**
@@ -155,8 +338,9 @@ public class SignMessageDecrypter {
    */
   public void setWhitelistedAlgorithms(final Collection<String> whitelistedAlgorithms) {
     this.whitelistedAlgorithms = whitelistedAlgorithms;
+    this.resetDecrypterPool();
   }
-  
+
   /**
    * If using a HSM it is likely that the SunPKCS11 crypto provider is used. This provider does not have support for
    * OAEP padding. This is used commonly for XML encryption since
@@ -168,6 +352,231 @@ public class SignMessageDecrypter {
    */
   public void setPkcs11Workaround(final boolean pkcs11Workaround) {
     this.pkcs11Workaround = pkcs11Workaround;
-  }  
+    this.resetDecrypterPool();
+  }
+
+  /**
+   * Assigns the maximum number of idle decrypters that are kept in the pool. Decrypters returned to a full pool are
+   * discarded. The default is {@link #DEFAULT_MAX_IDLE_DECRYPTERS}.
+   * 
+   * @param maxIdleDecrypters
+   *          the maximum number of idle decrypters (0 means that no decrypters are pooled)
+   */
+  public void setMaxIdleDecrypters(final int maxIdleDecrypters) {
+    if (maxIdleDecrypters < 0) {
+      throw new IllegalArgumentException("maxIdleDecrypters must not be negative");
+    }
+    this.maxIdleDecrypters = maxIdleDecrypters;
+    this.resetDecrypterPool();
+  }
+
+  /**
+   * Limits the number of concurrent decryptions. This is intended for the case where the decryption key resides in a
+   * HSM (see {@link #setPkcs11Workaround(boolean)}) and the token only can serve a limited number of sessions. Threads
+   * that can not get a permit are queued in arrival order, and a {@link DecryptionException} is thrown if no permit
+   * has been obtained within {@code timeoutMillis}.
+   * <p>
+   * Note that the permit is held during the entire decryption of the message (key unwrapping and content decryption).
+   * </p>
+   * 
+   * @param maxConcurrentDecryptions
+   *          the maximum number of concurrent decryptions (0 turns off the limit)
+   * @param timeoutMillis
+   *          the maximum time (in milliseconds) to wait for a permit
+   */
+  public void setHsmConcurrencyLimit(final int maxConcurrentDecryptions, final long timeoutMillis) {
+    if (maxConcurrentDecryptions < 0) {
+      throw new IllegalArgumentException("maxConcurrentDecryptions must not be negative");
+    }
+    if (timeoutMillis < 0) {
+      throw new IllegalArgumentException("timeoutMillis must not be negative");
+    }
+    this.concurrencyLimiter = maxConcurrentDecryptions > 0
+        ? new ConcurrencyLimiter(maxConcurrentDecryptions, timeoutMillis, this.permitWaitTime, this.permitTimeouts)
+        : null;
+  }
+
+  /**
+   * Returns the number of completed (successful or failed) decryptions.
+   * 
+   * @return the number of decryptions
+   */
+  public long getDecryptionCount() {
+    return this.decryptions.sum();
+  }
+
+  /**
+   * Returns the total time (in nanoseconds) spent decrypting messages.
+   * 
+   * @return the decryption time in nanoseconds
+   */
+  public long getDecryptionTimeNanos() {
+    return this.decryptionTime.sum();
+  }
+
+  /**
+   * Returns the total time (in nanoseconds) that callers have waited for a decryption permit. Always 0 if no limit has
+   * been set using {@link #setHsmConcurrencyLimit(int, long)}.
+   * 
+   * @return the permit wait time in nanoseconds
+   */
+  public long getPermitWaitTimeNanos() {
+    return this.permitWaitTime.sum();
+  }
+
+  /**
+   * Returns the number of decryptions that failed because no permit was available within the timeout.
+   * 
+   * @return the number of permit timeouts
+   */
+  public long getPermitTimeouts() {
+    return this.permitTimeouts.sum();
+  }
+
+  /**
+   * Returns the number of idle decrypters currently held in the pool.
+   * 
+   * @return the number of idle decrypters
+   */
+  int getIdleDecrypterCount() {
+    final DecrypterPool pool = this.decrypterPool;
+    return pool != null ? pool.idleCount.get() : 0;
+  }
+
+  /**
+   * A pool of {@link Decrypter} objects created from the same (immutable) decryption parameters. A decrypter is used by
+   * one thread at a time.
+   */
+  private static final class DecrypterPool {
+
+    /** The decryption parameters. */
+    private final DecryptionParameters parameters;
+
+    /** Whether to create {@link Pkcs11Decrypter} objects. */
+    private final boolean pkcs11Workaround;
+
+    /** The maximum number of idle decrypters. */
+    private final int maxIdle;
+
+    /** The idle decrypters. */
+    private final ConcurrentLinkedQueue<Decrypter> idle = new ConcurrentLinkedQueue<>();
+
+    /** The number of idle decrypters. */
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Constructor.
+     * 
+     * @param parameters
+     *          the decryption parameters
+     * @param pkcs11Workaround
+     *          whether to create {@link Pkcs11Decrypter} objects
+     * @param maxIdle
+     *          the maximum number of idle decrypters
+     */
+    DecrypterPool(final DecryptionParameters parameters, final boolean pkcs11Workaround, final int maxIdle) {
+      this.parameters = parameters;
+      this.pkcs11Workaround = pkcs11Workaround;
+      this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Takes an idle decrypter from the pool, or creates a new one if the pool is empty.
+     * 
+     * @return a decrypter
+     */
+    Decrypter borrow() {
+      final Decrypter decrypter = this.idle.poll();
+      if (decrypter != null) {
+        this.idleCount.decrementAndGet();
+        return decrypter;
+      }
+      final Decrypter newDecrypter = this.pkcs11Workaround ? new Pkcs11Decrypter(this.parameters) : new Decrypter(this.parameters);
+      newDecrypter.setRootInNewDocument(true);
+      return newDecrypter;
+    }
+
+    /**
+     * Returns a decrypter to the pool. If the pool is full, the decrypter is discarded.
+     * 
+     * @param decrypter
+     *          the decrypter
+     */
+    void release(final Decrypter decrypter) {
+      if (this.idleCount.incrementAndGet() <= this.maxIdle) {
+        this.idle.offer(decrypter);
+      }
+      else {
+        this.idleCount.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Limits the number of concurrent decryptions using a fair semaphore.
+   */
+  private static final class ConcurrencyLimiter {
+
+    /** The permits. */
+    private final Semaphore permits;
+
+    /** The maximum number of permits. */
+    private final int maxPermits;
+
+    /** The timeout (in nanoseconds). */
+    private final long timeoutNanos;
+
+    /** For recording the wait time. */
+    private final LongAdder waitTime;
+
+    /** For recording timeouts. */
+    private final LongAdder timeouts;
+
+    /**
+     * Constructor.
+     * 
+     * @param maxPermits
+     *          the number of permits
+     * @param timeoutMillis
+     *          the timeout (in milliseconds)
+     * @param waitTime
+     *          for recording the wait time
+     * @param timeouts
+     *          for recording timeouts
+     */
+    ConcurrencyLimiter(final int maxPermits, final long timeoutMillis, final LongAdder waitTime, final LongAdder timeouts) {
+      this.permits = new Semaphore(maxPermits, true);
+      this.maxPermits = maxPermits;
+      this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      this.waitTime = waitTime;
+      this.timeouts = timeouts;
+    }
+
+    /**
+     * Acquires a permit.
+     * 
+     * @throws DecryptionException
+     *           if no permit was obtained within the timeout, or if the thread was interrupted
+     */
+    void acquire() throws DecryptionException {
+      final long start = System.nanoTime();
+      boolean acquired;
+      try {
+        acquired = this.permits.tryAcquire(this.timeoutNanos, TimeUnit.NANOSECONDS);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new DecryptionException("Interrupted while waiting for decryption permit", e);
+      }
+      finally {
+        this.waitTime.add(System.nanoTime() - start);
+      }
+      if (!acquired) {
+        this.timeouts.increment();
+        throw new DecryptionException(String.format("No decryption permit available within %d ms (%d concurrent decryptions allowed)",
+          TimeUnit.NANOSECONDS.toMillis(this.timeoutNanos), this.maxPermits));
+      }
+    }
+  }
 
 }
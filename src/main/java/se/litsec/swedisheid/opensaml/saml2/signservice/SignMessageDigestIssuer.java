@@ -15,12 +15,16 @@
  */
 package se.litsec.swedisheid.opensaml.saml2.signservice;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.opensaml.saml.ext.saml2alg.DigestMethod;
@@ -41,6 +45,12 @@ import se.litsec.swedisheid.opensaml.saml2.signservice.dss.Message;
 
 /**
  * Utility bean that may be used by Identity Providers to issue a signMessageDigest attribute.
+ * <p>
+ * The bean is thread-safe and intended to be shared. The digest preference of each recipient is cached per entityID
+ * and is re-read when the recipient metadata is refreshed (i.e., when a new {@code EntityDescriptor} object is
+ * supplied). The {@code EntityDescriptor} is only referenced weakly and the number of cached preferences is bounded
+ * (see {@link #setMaxCachedPreferences(int)}). {@code MessageDigest} instances are pooled per algorithm.
+ * </p>
  *
  * @author Martin Lindström (martin@litsec.se)
  */
@@ -52,8 +62,21 @@ public class SignMessageDigestIssuer {
   /** SHA-256 is the default digest method. */
   public static final String DEFAULT_DIGEST_METHOD = SignatureConstants.ALGO_ID_DIGEST_SHA256;
 
+  /** The maximum number of idle {@code MessageDigest} instances kept per algorithm. */
+  private static final int MAX_IDLE_DIGESTS = Runtime.getRuntime().availableProcessors() * 2;
+
+  /** The base64 alphabet. */
+  private static final byte[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+    .getBytes(StandardCharsets.US_ASCII);
+
   /** The default digest method to use. If not assigned, {@value #DEFAULT_DIGEST_METHOD} is used. */
-  private String defaultDigestMethod;
+  private volatile String defaultDigestMethod;
+
+  /** Cached digest preferences (algorithm URI, or null if none is given), indexed by recipient entityID. */
+  private final SourceBoundCache<String> preferences = new SourceBoundCache<>();
+
+  /** Digest engines, indexed by algorithm URI. */
+  private final ConcurrentMap<String, DigestEngine> engines = new ConcurrentHashMap<>();
 
   /**
    * Creates a signMessageDigest attribute using the default digest method.
@@ -83,7 +106,7 @@ public class SignMessageDigestIssuer {
     String digestAlgorithm = null;
     if (recipient != null) {
       try {
-        digestAlgorithm = SignMessageDigestIssuer.getDigestPreference(recipient);
+        digestAlgorithm = this.getCachedDigestPreference(recipient);
       }
       catch (final Exception e) {
         this.log.error("Error during recipient metadata analyze (looking for preferred digest algorithm)", e);
@@ -94,28 +117,57 @@ public class SignMessageDigestIssuer {
     }
     this.log.debug("Using digest algorithm '{}' when issuing signMessageDigest", digestAlgorithm);
 
-    final AlgorithmRegistry registry = AlgorithmSupport.getGlobalAlgorithmRegistry();
-    final AlgorithmDescriptor descriptor = registry.get(digestAlgorithm);
-    if (descriptor == null) {
-      // Should never happen
-      throw new SecurityException(digestAlgorithm + " is not supported");
-    }
-    MessageDigest messageDigest;
-    try {
-      messageDigest = MessageDigest.getInstance(descriptor.getJCAAlgorithmID());
-    }
-    catch (final NoSuchAlgorithmException e) {
-      throw new SecurityException(e);
-    }
-    final byte[] digestValue = messageDigest.digest(message.getContent().getBytes(StandardCharsets.UTF_8));      
-
-    final String attributeValue = String.format("%s;%s", digestAlgorithm, Base64.getEncoder().encodeToString(digestValue));
+    final DigestEngine engine = this.engines.computeIfAbsent(digestAlgorithm, DigestEngine::new);
+    final String attributeValue = engine.createValue(message.getContentBuffer());
 
     return AttributeConstants.ATTRIBUTE_TEMPLATE_SIGNMESSAGE_DIGEST.createBuilder()
       .value(attributeValue)
       .build();
   }
 
+  /**
+   * Returns the digest preference for the recipient. The result is cached per entityID and is re-read if the supplied
+   * metadata is not the same object as the one used when the preference was cached.
+   *
+   * @param recipient
+   *          the recipient metadata
+   * @return the preferred digest algorithm, or null if none is specified
+   */
+  private String getCachedDigestPreference(final EntityDescriptor recipient) {
+    final String entityID = recipient.getEntityID();
+    if (entityID == null) {
+      return SignMessageDigestIssuer.getDigestPreference(recipient);
+    }
+    return this.preferences.get(entityID, recipient, () -> SignMessageDigestIssuer.getDigestPreference(recipient));
+  }
+
+  /**
+   * Assigns the maximum number of recipients whose digest preference is cached. The default is 1000.
+   *
+   * @param maxCachedPreferences
+   *          the maximum number of cached preferences
+   */
+  public void setMaxCachedPreferences(final int maxCachedPreferences) {
+    this.preferences.setMaxEntries(maxCachedPreferences);
+  }
+
+  /**
+   * Removes the cached digest preference for the given recipient.
+   *
+   * @param entityID
+   *          the recipient entityID
+   */
+  public void invalidate(final String entityID) {
+    this.preferences.remove(entityID);
+  }
+
+  /**
+   * Removes all cached digest preferences.
+   */
+  public void clear() {
+    this.preferences.clear();
+  }
+
   /**
    * The recipient may specify the digest algorithm it prefers by including the {@code <alg:DigestMethod>} element in
    * its metadata.
@@ -192,4 +244,165 @@ public class SignMessageDigestIssuer {
     this.defaultDigestMethod = defaultDigestMethod;
   }
 
+  /**
+   * Base64-encodes {@code src} into {@code dst} starting at {@code offset}.
+   *
+   * @param src
+   *          the bytes to encode
+   * @param dst
+   *          the destination (must have room for the encoding)
+   * @param offset
+   *          the offset into dst
+   */
+  private static void encodeBase64(final byte[] src, final byte[] dst, final int offset) {
+    int d = offset;
+    int s = 0;
+    final int fullGroups = src.length / 3 * 3;
+    while (s < fullGroups) {
+      final int bits = (src[s++] & 0xff) << 16 | (src[s++] & 0xff) << 8 | (src[s++] & 0xff);
+      dst[d++] = BASE64_ALPHABET[(bits >>> 18) & 0x3f];
+      dst[d++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+      dst[d++] = BASE64_ALPHABET[(bits >>> 6) & 0x3f];
+      dst[d++] = BASE64_ALPHABET[bits & 0x3f];
+    }
+    final int remaining = src.length - fullGroups;
+    if (remaining > 0) {
+      final int b0 = src[s++] & 0xff;
+      dst[d++] = BASE64_ALPHABET[b0 >> 2];
+      if (remaining == 1) {
+        dst[d++] = BASE64_ALPHABET[(b0 << 4) & 0x3f];
+        dst[d++] = '=';
+      }
+      else {
+        final int b1 = src[s] & 0xff;
+        dst[d++] = BASE64_ALPHABET[(b0 << 4) & 0x3f | (b1 >> 4)];
+        dst[d++] = BASE64_ALPHABET[(b1 << 2) & 0x3f];
+      }
+      dst[d] = '=';
+    }
+  }
+
+  /**
+   * Creates signMessageDigest values for one digest algorithm. {@code MessageDigest} instances are cloned from a
+   * prototype (if the provider supports cloning) and pooled.
+   */
+  private static class DigestEngine {
+
+    /** The "algorithm;" prefix of the attribute value (ASCII). */
+    private final byte[] prefix;
+
+    /** The prototype digest. */
+    private final MessageDigest prototype;
+
+    /** Whether the prototype can be cloned. */
+    private final boolean cloneable;
+
+    /** The idle digests. */
+    private final ConcurrentLinkedQueue<MessageDigest> idle = new ConcurrentLinkedQueue<>();
+
+    /** The number of idle digests. */
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param digestAlgorithm
+     *          the algorithm URI
+     * @throws SecurityException
+     *           if the algorithm is not supported
+     */
+    DigestEngine(final String digestAlgorithm) throws SecurityException {
+      final AlgorithmRegistry registry = AlgorithmSupport.getGlobalAlgorithmRegistry();
+      final AlgorithmDescriptor descriptor = registry.get(digestAlgorithm);
+      if (descriptor == null) {
+        // Should never happen
+        throw new SecurityException(digestAlgorithm + " is not supported");
+      }
+      try {
+        this.prototype = MessageDigest.getInstance(descriptor.getJCAAlgorithmID());
+      }
+      catch (final NoSuchAlgorithmException e) {
+        throw new SecurityException(e);
+      }
+      this.cloneable = isCloneable(this.prototype);
+      this.prefix = (digestAlgorithm + ";").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Tells whether the supplied digest can be cloned.
+     *
+     * @param messageDigest
+     *          the digest
+     * @return true if the digest can be cloned
+     */
+    private static boolean isCloneable(final MessageDigest messageDigest) {
+      try {
+        messageDigest.clone();
+        return true;
+      }
+      catch (final CloneNotSupportedException e) {
+        return false;
+      }
+    }
+
+    /**
+     * Calculates the digest of the supplied bytes and returns the attribute value ({@code algorithm;base64-digest}).
+     *
+     * @param content
+     *          the bytes to digest
+     * @return the attribute value
+     */
+    String createValue(final ByteBuffer content) {
+      final MessageDigest messageDigest = this.borrow();
+      final byte[] digestValue;
+      try {
+        messageDigest.update(content);
+        digestValue = messageDigest.digest();
+      }
+      finally {
+        this.release(messageDigest);
+      }
+      final byte[] value = new byte[this.prefix.length + (digestValue.length + 2) / 3 * 4];
+      System.arraycopy(this.prefix, 0, value, 0, this.prefix.length);
+      encodeBase64(digestValue, value, this.prefix.length);
+      return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Takes an idle digest from the pool, or creates a new one.
+     *
+     * @return a digest
+     */
+    private MessageDigest borrow() {
+      final MessageDigest messageDigest = this.idle.poll();
+      if (messageDigest != null) {
+        this.idleCount.decrementAndGet();
+        return messageDigest;
+      }
+      try {
+        return this.cloneable ? (MessageDigest) this.prototype.clone()
+            : MessageDigest.getInstance(this.prototype.getAlgorithm(), this.prototype.getProvider());
+      }
+      catch (final CloneNotSupportedException | NoSuchAlgorithmException e) {
+        throw new SecurityException(e);
+      }
+    }
+
+    /**
+     * Returns a digest to the pool. If the pool is full, the digest is discarded.
+     *
+     * @param messageDigest
+     *          the digest
+     */
+    private void release(final MessageDigest messageDigest) {
+      messageDigest.reset();
+      if (this.idleCount.incrementAndGet() <= MAX_IDLE_DIGESTS) {
+        this.idle.offer(messageDigest);
+      }
+      else {
+        this.idleCount.decrementAndGet();
+      }
+    }
+  }
+
 }
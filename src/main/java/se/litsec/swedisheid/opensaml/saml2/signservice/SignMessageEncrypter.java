@@ -15,10 +15,19 @@
  */
 package se.litsec.swedisheid.opensaml.saml2.signservice;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
 import org.opensaml.core.xml.util.XMLObjectSupport;
 import org.opensaml.xmlsec.EncryptionConfiguration;
+import org.opensaml.xmlsec.EncryptionParameters;
 import org.opensaml.xmlsec.encryption.EncryptedData;
+import org.opensaml.xmlsec.encryption.support.DataEncryptionParameters;
+import org.opensaml.xmlsec.encryption.support.Encrypter;
 import org.opensaml.xmlsec.encryption.support.EncryptionException;
+import org.opensaml.xmlsec.encryption.support.KeyEncryptionParameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,6 +50,9 @@ public class SignMessageEncrypter {
   /** The encrypter to use. */
   private final SAMLObjectEncrypter encrypter;
 
+  /** Optional cache for resolved encryption parameters. */
+  private SignMessageEncryptionParametersCache parametersCache;
+
   /**
    * Constructor.
    * 
@@ -107,7 +119,15 @@ public class SignMessageEncrypter {
       throw new EncryptionException(msg);
     }
     
-    EncryptedData encryptedData = this.encrypter.encrypt(signMessage.getMessage(), new SAMLObjectEncrypter.Peer(entityID), configuration);
+    EncryptedData encryptedData;
+    if (this.parametersCache != null) {
+      final EncryptionParameters parameters = this.parametersCache.getEncryptionParameters(entityID, configuration);
+      encryptedData = new Encrypter().encryptElement(signMessage.getMessage(), new DataEncryptionParameters(parameters),
+        Collections.singletonList(new KeyEncryptionParameters(parameters, entityID)));
+    }
+    else {
+      encryptedData = this.encrypter.encrypt(signMessage.getMessage(), new SAMLObjectEncrypter.Peer(entityID), configuration);
+    }
     EncryptedMessage encryptedMessage = (EncryptedMessage) XMLObjectSupport.buildXMLObject(EncryptedMessage.DEFAULT_ELEMENT_NAME); 
     encryptedMessage.setEncryptedData(encryptedData);
     
@@ -115,4 +135,103 @@ public class SignMessageEncrypter {
     signMessage.setEncryptedMessage(encryptedMessage);    
   }
 
+  /**
+   * Encrypts the message of the supplied sign message for several recipient IdPs. This is useful when the signature
+   * service does not know which IdP the user will choose. The message is encrypted once, using one content encryption
+   * key, and the resulting {@code EncryptedData} holds one {@code EncryptedKey} per recipient (each having the
+   * recipient entityID as its {@code Recipient} attribute). Each IdP then decrypts the content encryption key that was
+   * encrypted for it.
+   * <p>
+   * All recipients must agree on the data encryption algorithm, i.e., the algorithm resolved for the first recipient
+   * must also be the one resolved for the other recipients. The {@code DisplayEntity} attribute is not assigned by this
+   * method. If it has been assigned, it must be one of the recipients.
+   * </p>
+   * <p>
+   * Multi-recipient encryption requires that a parameters cache has been assigned (see
+   * {@link #setParametersCache(SignMessageEncryptionParametersCache)}). Each IdP should assign its entityID to its
+   * {@link SignMessageDecrypter} (see {@link SignMessageDecrypter#setLocalEntityID(String)}), so that it only decrypts
+   * the key that was encrypted for it.
+   * </p>
+   * 
+   * @param signMessage
+   *          the sign message holding the message to encrypt
+   * @param entityIDs
+   *          the SAML entityIDs of the IdPs that are the possible recipients of the message
+   * @param configuration
+   *          the encryption configuration to use (may be null)
+   * @throws EncryptionException
+   *           for errors during encryption, or if no parameters cache has been assigned
+   */
+  public void encrypt(final SignMessage signMessage, final List<String> entityIDs, final EncryptionConfiguration configuration)
+      throws EncryptionException {
+
+    Constraint.isNotNull(signMessage, "signMessage must not be null");
+    Constraint.isNotEmpty(entityIDs, "entityIDs must not be null or empty");
+    if (this.parametersCache == null) {
+      throw new EncryptionException("Multi-recipient encryption requires a parameters cache");
+    }
+
+    if (signMessage.getEncryptedMessage() != null) {
+      throw new EncryptionException("signMessage is already encrypted");
+    }
+    if (signMessage.getMessage() == null) {
+      throw new EncryptionException("No Message element available in SignMessage");
+    }
+    if (signMessage.getDisplayEntity() != null && !entityIDs.contains(signMessage.getDisplayEntity())) {
+      String msg = String.format("Assigned DisplayEntity (%s) is not one of the recipients (%s)", signMessage.getDisplayEntity(),
+        entityIDs);
+      throw new EncryptionException(msg);
+    }
+
+    DataEncryptionParameters dataParameters = null;
+    final List<KeyEncryptionParameters> kekParameters = new ArrayList<>(entityIDs.size());
+    for (final String entityID : entityIDs) {
+      final EncryptionParameters parameters = this.parametersCache.getEncryptionParameters(
+        Constraint.isNotNull(entityID, "entityIDs must not contain null"), configuration);
+      if (dataParameters == null) {
+        dataParameters = new DataEncryptionParameters(parameters);
+      }
+      else if (!Objects.equals(dataParameters.getAlgorithm(), parameters.getDataEncryptionAlgorithm())) {
+        String msg = String.format("Recipients do not agree on data encryption algorithm (%s uses %s, expected %s)", entityID,
+          parameters.getDataEncryptionAlgorithm(), dataParameters.getAlgorithm());
+        throw new EncryptionException(msg);
+      }
+      kekParameters.add(new KeyEncryptionParameters(parameters, entityID));
+    }
+
+    final EncryptedData encryptedData = new Encrypter().encryptElement(signMessage.getMessage(), dataParameters, kekParameters);
+    log.debug("Encrypted SignMessage for {} recipient(s)", entityIDs.size());
+
+    EncryptedMessage encryptedMessage = (EncryptedMessage) XMLObjectSupport.buildXMLObject(EncryptedMessage.DEFAULT_ELEMENT_NAME);
+    encryptedMessage.setEncryptedData(encryptedData);
+
+    signMessage.setMessage(null);
+    signMessage.setEncryptedMessage(encryptedMessage);
+  }
+
+  /**
+   * Assigns a cache for the resolved encryption parameters. If assigned, the IdP metadata and algorithms are resolved
+   * once per IdP (and again after a metadata refresh) instead of for each encrypted message. The cache should be
+   * created using the same metadata provider as the {@link SAMLObjectEncrypter} that was passed to the constructor.
+   * <p>
+   * Using the cache, an IdP that publishes an EC encryption key gets the message encrypted using ECDH-ES key agreement
+   * (see {@link SignMessageEncryptionParametersCache}).
+   * </p>
+   * <p>
+   * When a cache is assigned, the {@link SAMLObjectEncrypter} is not used. The parameters are resolved by the cache
+   * using its metadata provider, and if no encryption configuration is passed to {@code encrypt}, the default
+   * configuration of the cache is used (see
+   * {@link SignMessageEncryptionParametersCache#setDefaultEncryptionConfiguration(EncryptionConfiguration)}), not the
+   * default configuration of the {@link SAMLObjectEncrypter}. If a default configuration has been assigned to the
+   * {@link SAMLObjectEncrypter}, the same configuration should be assigned to the cache, or the selected algorithms may
+   * differ when caching is turned on.
+   * </p>
+   * 
+   * @param parametersCache
+   *          the parameters cache (null turns off caching)
+   */
+  public void setParametersCache(final SignMessageEncryptionParametersCache parametersCache) {
+    this.parametersCache = parametersCache;
+  }
+
 }
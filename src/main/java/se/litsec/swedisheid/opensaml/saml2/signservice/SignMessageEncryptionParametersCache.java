@@ -0,0 +1,481 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.criterion.RoleDescriptorCriterion;
+import org.opensaml.saml.metadata.resolver.impl.PredicateRoleDescriptorResolver;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.security.impl.MetadataCredentialResolver;
+import org.opensaml.saml.security.impl.SAMLMetadataEncryptionParametersResolver;
+import org.opensaml.security.credential.BasicCredential;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.opensaml.security.x509.X509Credential;
+import org.opensaml.xmlsec.EncryptionConfiguration;
+import org.opensaml.xmlsec.EncryptionParameters;
+import org.opensaml.xmlsec.SecurityConfigurationSupport;
+import org.opensaml.xmlsec.agreement.KeyAgreementCredential;
+import org.opensaml.xmlsec.config.impl.DefaultSecurityConfigurationBootstrap;
+import org.opensaml.xmlsec.criterion.EncryptionConfigurationCriterion;
+import org.opensaml.xmlsec.encryption.support.EncryptionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.logic.Constraint;
+import net.shibboleth.utilities.java.support.resolver.CriteriaSet;
+import net.shibboleth.utilities.java.support.resolver.ResolverException;
+import se.litsec.opensaml.saml2.metadata.provider.MetadataProvider;
+
+/**
+ * A cache for the encryption parameters used when encrypting {@code SignMessage} elements for an IdP.
+ * <p>
+ * Resolving the encryption parameters for an IdP means finding its metadata, selecting the key transport credential
+ * and negotiating the data encryption and key transport algorithms. The result only changes when the IdP metadata
+ * changes, so the resolved {@link EncryptionParameters} (key transport credential, algorithms and KeyInfo generators)
+ * are cached per IdP entityID. The entry is associated with the {@code EntityDescriptor} it was resolved from, and when
+ * the metadata provider hands out a new {@code EntityDescriptor} object, i.e., after a metadata refresh, the parameters
+ * are resolved again. The {@code EntityDescriptor} is only referenced weakly, and the cached key transport credential
+ * is a copy that does not refer to the metadata, so the cache never keeps old metadata in memory. The number of cached
+ * IdP entries is bounded (see {@link #setMaxEntries(int)}).
+ * </p>
+ * <p>
+ * The entry is also associated with the encryption configuration it was resolved using. Configurations are compared by
+ * their algorithm, credential and RSA OAEP settings, so a caller that creates an equal configuration for each message
+ * gets cached parameters. The KeyInfo generator managers, the key transport algorithm predicate and the key agreement
+ * configurations are compared by identity.
+ * </p>
+ * <p>
+ * If the IdP publishes an EC encryption key, the resolved parameters use ECDH-ES key agreement with AES key wrap (XML
+ * Encryption 1.1 {@code AgreementMethod}) instead of RSA key transport. This requires that the encryption configuration
+ * holds a key agreement configuration for EC keys, which is the case for the OpenSAML default configuration and
+ * configurations derived from it. Since the key agreement (including the generation of the ephemeral key pair) is
+ * performed when the parameters are resolved, parameters using key agreement are never cached. They are resolved for
+ * each message.
+ * </p>
+ * <p>
+ * The cached parameters never contain a data encryption credential, so a new content encryption key is generated for
+ * each encrypted message. The cached objects are shared and must not be modified by the caller.
+ * </p>
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SignMessageEncryptionParametersCache {
+
+  /** Logger instance. */
+  private final Logger log = LoggerFactory.getLogger(SignMessageEncryptionParametersCache.class);
+
+  /** The metadata provider. */
+  private final MetadataProvider metadataProvider;
+
+  /** The resolver for encryption parameters. */
+  private final SAMLMetadataEncryptionParametersResolver parametersResolver;
+
+  /** The cached parameters, indexed by IdP entityID. */
+  private final SourceBoundCache<CachedParameters> cache = new SourceBoundCache<>();
+
+  /** The encryption configuration to use if none is supplied. */
+  private volatile EncryptionConfiguration defaultEncryptionConfiguration;
+
+  /** Number of lookups that were served from the cache. */
+  private final LongAdder hits = new LongAdder();
+
+  /** Number of lookups that required the parameters to be resolved. */
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Constructor.
+   * 
+   * @param metadataProvider
+   *          the metadata provider used to find IdP metadata
+   * @throws ComponentInitializationException
+   *           for init errors
+   */
+  public SignMessageEncryptionParametersCache(final MetadataProvider metadataProvider) throws ComponentInitializationException {
+    this.metadataProvider = Constraint.isNotNull(metadataProvider, "metadataProvider must not be null");
+
+    final PredicateRoleDescriptorResolver roleDescriptorResolver = new PredicateRoleDescriptorResolver(
+      metadataProvider.getMetadataResolver());
+    roleDescriptorResolver.initialize();
+
+    final MetadataCredentialResolver credentialResolver = new MetadataCredentialResolver();
+    credentialResolver.setRoleDescriptorResolver(roleDescriptorResolver);
+    credentialResolver.setKeyInfoCredentialResolver(DefaultSecurityConfigurationBootstrap.buildBasicInlineKeyInfoCredentialResolver());
+    credentialResolver.initialize();
+
+    this.parametersResolver = new SAMLMetadataEncryptionParametersResolver(credentialResolver);
+  }
+
+  /**
+   * Returns the encryption parameters to use when encrypting for the given IdP.
+   * 
+   * @param entityID
+   *          the IdP entityID
+   * @param configuration
+   *          the encryption configuration to use (null means the default configuration, see
+   *          {@link #setDefaultEncryptionConfiguration(EncryptionConfiguration)})
+   * @return the encryption parameters (must not be modified)
+   * @throws EncryptionException
+   *           if no metadata is found for the IdP or if no encryption parameters can be resolved
+   */
+  public EncryptionParameters getEncryptionParameters(final String entityID, final EncryptionConfiguration configuration)
+      throws EncryptionException {
+
+    final EntityDescriptor metadata;
+    try {
+      metadata = this.metadataProvider.getEntityDescriptor(entityID);
+    }
+    catch (ResolverException e) {
+      throw new EncryptionException(String.format("Failed to find metadata for '%s'", entityID), e);
+    }
+    if (metadata == null) {
+      this.cache.remove(entityID);
+      throw new EncryptionException(String.format("No metadata found for '%s'", entityID));
+    }
+
+    final EncryptionConfiguration effectiveConfiguration = configuration != null
+        ? configuration
+        : this.defaultEncryptionConfiguration;
+    final ConfigurationKey configurationKey = effectiveConfiguration != null
+        ? new ConfigurationKey(effectiveConfiguration)
+        : null;
+
+    final CachedParameters cached = this.cache.get(entityID, metadata);
+    if (cached != null && Objects.equals(cached.configurationKey, configurationKey)) {
+      this.hits.increment();
+      return cached.parameters;
+    }
+    this.misses.increment();
+
+    final EncryptionParameters parameters = this.resolve(metadata, effectiveConfiguration);
+    if (parameters.getKeyTransportEncryptionCredential() instanceof KeyAgreementCredential) {
+      // The key agreement is performed during resolution, so the parameters hold the ephemeral key pair and the
+      // derived key encryption key. These must never be reused, so the parameters are resolved for each message.
+      log.trace("Key agreement used for '{}' - encryption parameters are not cached", entityID);
+      this.cache.remove(entityID);
+      return parameters;
+    }
+    final EncryptionParameters detached = detach(parameters);
+    this.cache.put(entityID, metadata, new CachedParameters(configurationKey, detached));
+    return detached;
+  }
+
+  /**
+   * Returns a copy of the supplied parameters where the key transport credential is replaced with a copy that does not
+   * refer to the metadata it was resolved from (the resolved credential has a metadata context holding the
+   * {@code KeyDescriptor}).
+   * 
+   * @param parameters
+   *          the resolved parameters
+   * @return a copy of the parameters
+   */
+  private static EncryptionParameters detach(final EncryptionParameters parameters) {
+    final Credential credential = parameters.getKeyTransportEncryptionCredential();
+    final BasicCredential copy;
+    if (credential instanceof X509Credential) {
+      final X509Credential x509Credential = (X509Credential) credential;
+      final BasicX509Credential x509Copy = new BasicX509Credential(x509Credential.getEntityCertificate());
+      x509Copy.setEntityCertificateChain(x509Credential.getEntityCertificateChain());
+      x509Copy.setCRLs(x509Credential.getCRLs());
+      copy = x509Copy;
+    }
+    else {
+      copy = new BasicCredential(credential.getPublicKey());
+    }
+    copy.setEntityId(credential.getEntityId());
+    copy.setUsageType(credential.getUsageType());
+    copy.getKeyNames().addAll(credential.getKeyNames());
+
+    final EncryptionParameters detached = new EncryptionParameters();
+    detached.setDataEncryptionCredential(parameters.getDataEncryptionCredential());
+    detached.setDataEncryptionAlgorithm(parameters.getDataEncryptionAlgorithm());
+    detached.setDataKeyInfoGenerator(parameters.getDataKeyInfoGenerator());
+    detached.setKeyTransportEncryptionCredential(copy);
+    detached.setKeyTransportEncryptionAlgorithm(parameters.getKeyTransportEncryptionAlgorithm());
+    detached.setKeyTransportKeyInfoGenerator(parameters.getKeyTransportKeyInfoGenerator());
+    detached.setRSAOAEPParameters(parameters.getRSAOAEPParameters());
+    return detached;
+  }
+
+  /**
+   * Resolves the encryption parameters for the given IdP.
+   * 
+   * @param metadata
+   *          the IdP metadata
+   * @param configuration
+   *          the encryption configuration (may be null)
+   * @return the encryption parameters
+   * @throws EncryptionException
+   *           if no parameters can be resolved
+   */
+  private EncryptionParameters resolve(final EntityDescriptor metadata, final EncryptionConfiguration configuration)
+      throws EncryptionException {
+
+    log.debug("Resolving SignMessage encryption parameters for '{}'", metadata.getEntityID());
+
+    final IDPSSODescriptor descriptor = metadata.getIDPSSODescriptor(SAMLConstants.SAML20P_NS);
+    if (descriptor == null) {
+      throw new EncryptionException(String.format("No IDPSSODescriptor found in metadata for '%s'", metadata.getEntityID()));
+    }
+    final EncryptionConfigurationCriterion configurationCriterion = configuration != null
+        ? new EncryptionConfigurationCriterion(configuration, SecurityConfigurationSupport.getGlobalEncryptionConfiguration())
+        : new EncryptionConfigurationCriterion(SecurityConfigurationSupport.getGlobalEncryptionConfiguration());
+
+    try {
+      final EncryptionParameters parameters = this.parametersResolver.resolveSingle(
+        new CriteriaSet(configurationCriterion, new RoleDescriptorCriterion(descriptor)));
+      if (parameters == null || parameters.getKeyTransportEncryptionCredential() == null) {
+        throw new EncryptionException(String.format("No encryption credential found for '%s'", metadata.getEntityID()));
+      }
+      return parameters;
+    }
+    catch (ResolverException e) {
+      throw new EncryptionException(String.format("Failed to resolve encryption parameters for '%s'", metadata.getEntityID()), e);
+    }
+  }
+
+  /**
+   * Assigns the encryption configuration that is used when no configuration is supplied to
+   * {@link #getEncryptionParameters(String, EncryptionConfiguration)}. The configuration is merged with the global
+   * encryption configuration. If not assigned, the global configuration is used.
+   * <p>
+   * Note that a default configuration assigned to a {@link se.litsec.opensaml.xmlsec.SAMLObjectEncrypter} is not known
+   * to the cache. If a {@link SignMessageEncrypter} uses both, the same default configuration should be assigned to the
+   * cache.
+   * </p>
+   * 
+   * @param defaultEncryptionConfiguration
+   *          the default encryption configuration (may be null)
+   */
+  public void setDefaultEncryptionConfiguration(final EncryptionConfiguration defaultEncryptionConfiguration) {
+    this.defaultEncryptionConfiguration = defaultEncryptionConfiguration;
+  }
+
+  /**
+   * Assigns the maximum number of IdP entries held by the cache. The default is 1000.
+   * 
+   * @param maxEntries
+   *          the maximum number of IdP entries
+   */
+  public void setMaxEntries(final int maxEntries) {
+    this.cache.setMaxEntries(maxEntries);
+  }
+
+  /**
+   * Removes the cached parameters for the given IdP.
+   * 
+   * @param entityID
+   *          the IdP entityID
+   */
+  public void invalidate(final String entityID) {
+    this.cache.remove(entityID);
+  }
+
+  /**
+   * Removes all cached parameters.
+   */
+  public void clear() {
+    this.cache.clear();
+  }
+
+  /**
+   * Returns the number of lookups that were served from the cache.
+   * 
+   * @return number of cache hits
+   */
+  public long getHits() {
+    return this.hits.sum();
+  }
+
+  /**
+   * Returns the number of lookups where the parameters had to be resolved.
+   * 
+   * @return number of cache misses
+   */
+  public long getMisses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * The cached parameters for one IdP.
+   */
+  private static class CachedParameters {
+
+    /** The encryption configuration used (null if only the global configuration was used). */
+    private final ConfigurationKey configurationKey;
+
+    /** The parameters. */
+    private final EncryptionParameters parameters;
+
+    /**
+     * Constructor.
+     * 
+     * @param configurationKey
+     *          the encryption configuration used
+     * @param parameters
+     *          the parameters
+     */
+    CachedParameters(final ConfigurationKey configurationKey, final EncryptionParameters parameters) {
+      this.configurationKey = configurationKey;
+      this.parameters = parameters;
+    }
+  }
+
+  /**
+   * The settings of an encryption configuration that affect the resolved parameters. Two configurations holding the
+   * same settings give equal keys.
+   */
+  private static final class ConfigurationKey {
+
+    /** The settings. */
+    private final Object[] settings;
+
+    /** The hash code. */
+    private final int hashCode;
+
+    /**
+     * Constructor.
+     * 
+     * @param configuration
+     *          the encryption configuration
+     */
+    ConfigurationKey(final EncryptionConfiguration configuration) {
+      this.settings = new Object[] {
+          copy(configuration.getDataEncryptionAlgorithms()),
+          copy(configuration.getDataEncryptionCredentials()),
+          copy(configuration.getKeyTransportEncryptionAlgorithms()),
+          copy(configuration.getKeyTransportEncryptionCredentials()),
+          configuration.getRSAOAEPParameters(),
+          configuration.isRSAOAEPParametersMerge(),
+          copySet(configuration.getIncludedAlgorithms()),
+          configuration.isIncludeMerge(),
+          copySet(configuration.getExcludedAlgorithms()),
+          configuration.isExcludeMerge(),
+          configuration.getIncludeExcludePrecedence(),
+          identity(configuration.getDataKeyInfoGeneratorManager()),
+          identity(configuration.getKeyTransportKeyInfoGeneratorManager()),
+          identity(configuration.getKeyTransportAlgorithmPredicate()),
+          identities(configuration.getKeyAgreementConfigurations())
+      };
+      this.hashCode = Arrays.deepHashCode(this.settings);
+    }
+
+    /**
+     * Copies a list setting (so that later changes to the configuration do not affect the key).
+     * 
+     * @param list
+     *          the list (may be null)
+     * @return a copy of the list
+     */
+    private static List<?> copy(final List<?> list) {
+      return list != null ? new ArrayList<>(list) : null;
+    }
+
+    /**
+     * Copies a collection setting where the order is not significant.
+     * 
+     * @param collection
+     *          the collection (may be null)
+     * @return a set holding the elements of the collection
+     */
+    private static Collection<?> copySet(final Collection<?> collection) {
+      return collection != null ? new HashSet<>(collection) : null;
+    }
+
+    /**
+     * Wraps an object so that it is compared by identity.
+     * 
+     * @param object
+     *          the object (may be null)
+     * @return the identity wrapper
+     */
+    private static Object identity(final Object object) {
+      return object != null ? new Identity(object) : null;
+    }
+
+    /**
+     * Returns the key agreement configurations with the values compared by identity.
+     * 
+     * @param configurations
+     *          the key agreement configurations (may be null)
+     * @return a map with the values wrapped
+     */
+    private static Object identities(final Map<String, ?> configurations) {
+      if (configurations == null) {
+        return null;
+      }
+      final Map<String, Object> wrapped = new HashMap<>();
+      configurations.forEach((k, v) -> wrapped.put(k, identity(v)));
+      return wrapped;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(final Object obj) {
+      return obj instanceof ConfigurationKey && Arrays.deepEquals(this.settings, ((ConfigurationKey) obj).settings);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+      return this.hashCode;
+    }
+  }
+
+  /**
+   * Wraps an object so that it is compared by identity.
+   */
+  private static final class Identity {
+
+    /** The object. */
+    private final Object object;
+
+    /**
+     * Constructor.
+     * 
+     * @param object
+     *          the object
+     */
+    Identity(final Object object) {
+      this.object = object;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean equals(final Object obj) {
+      return obj instanceof Identity && ((Identity) obj).object == this.object;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(this.object);
+    }
+  }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache for values that are derived from a source object, typically the {@code EntityDescriptor} of an
+ * entity, indexed by entityID. A cached value is only used if the caller presents the same source object as the one
+ * the value was derived from, so the value is derived again after a metadata refresh (when the metadata provider hands
+ * out a new object).
+ * <p>
+ * The source object is held using a weak reference. An entry therefore never keeps old metadata (and through it the
+ * whole metadata aggregate and its DOM) in memory, and an entry whose source has been garbage collected is treated as
+ * stale. When the cache grows beyond its maximum size, stale entries are removed, and if this is not enough, arbitrary
+ * entries are removed. The cached values must not hold references to the source, and a null source never matches a
+ * cached value.
+ * </p>
+ * 
+ * @param <V>
+ *          the value type
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+final class SourceBoundCache<V> {
+
+  /** The default maximum number of entries. */
+  static final int DEFAULT_MAX_ENTRIES = 1000;
+
+  /** The entries, indexed by key. */
+  private final ConcurrentMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+
+  /** The maximum number of entries. */
+  private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+  /**
+   * Returns the value for the given key if it was derived from the given source.
+   * 
+   * @param key
+   *          the key
+   * @param source
+   *          the source object
+   * @return the value, or null if no value derived from the source is cached
+   */
+  V get(final String key, final Object source) {
+    final Entry<V> entry = this.entries.get(key);
+    return entry != null && entry.isFrom(source) ? entry.value : null;
+  }
+
+  /**
+   * Returns the value for the given key regardless of which source it was derived from.
+   * 
+   * @param key
+   *          the key
+   * @return the value, or null if no value is cached
+   */
+  V get(final String key) {
+    final Entry<V> entry = this.entries.get(key);
+    return entry != null ? entry.value : null;
+  }
+
+  /**
+   * Returns the value for the given key if it was derived from the given source, and otherwise derives it using the
+   * supplied loader and caches it. The check and replacement is atomic, so concurrent callers presenting the same source
+   * get the same value.
+   * 
+   * @param key
+   *          the key
+   * @param source
+   *          the source object
+   * @param loader
+   *          derives the value from the source (the value may be null)
+   * @return the value
+   */
+  V get(final String key, final Object source, final Supplier<V> loader) {
+    final Entry<V> entry = this.entries.get(key);
+    if (entry != null && entry.isFrom(source)) {
+      return entry.value;
+    }
+    final Entry<V> updated = this.entries.compute(key, (k, e) -> e != null && e.isFrom(source) ? e : new Entry<>(source, loader.get()));
+    this.evict(key);
+    return updated.value;
+  }
+
+  /**
+   * Caches a value derived from the given source, replacing any value cached for the key.
+   * 
+   * @param key
+   *          the key
+   * @param source
+   *          the source object
+   * @param value
+   *          the value
+   */
+  void put(final String key, final Object source, final V value) {
+    this.entries.put(key, new Entry<>(source, value));
+    this.evict(key);
+  }
+
+  /**
+   * Removes the entry for the given key.
+   * 
+   * @param key
+   *          the key
+   */
+  void remove(final String key) {
+    this.entries.remove(key);
+  }
+
+  /**
+   * Removes all entries.
+   */
+  void clear() {
+    this.entries.clear();
+  }
+
+  /**
+   * Returns the number of entries.
+   * 
+   * @return the number of entries
+   */
+  int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * Assigns the maximum number of entries. The default is {@link #DEFAULT_MAX_ENTRIES}.
+   * 
+   * @param maxEntries
+   *          the maximum number of entries
+   */
+  void setMaxEntries(final int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be a positive integer");
+    }
+    this.maxEntries = maxEntries;
+    this.evict(null);
+  }
+
+  /**
+   * Removes entries if the cache has grown beyond its maximum size. Stale entries are removed first.
+   * 
+   * @param keep
+   *          the key of an entry that should be kept (may be null)
+   */
+  private void evict(final String keep) {
+    if (this.entries.size() <= this.maxEntries) {
+      return;
+    }
+    this.entries.values().removeIf(e -> e.source.get() == null);
+    final Iterator<String> keys = this.entries.keySet().iterator();
+    while (this.entries.size() > this.maxEntries && keys.hasNext()) {
+      if (!keys.next().equals(keep)) {
+        keys.remove();
+      }
+    }
+  }
+
+  /**
+   * A cached value along with the source it was derived from.
+   * 
+   * @param <V>
+   *          the value type
+   */
+  private static final class Entry<V> {
+
+    /** The source that the value was derived from. */
+    private final WeakReference<Object> source;
+
+    /** The value. */
+    private final V value;
+
+    /**
+     * Constructor.
+     * 
+     * @param source
+     *          the source that the value was derived from
+     * @param value
+     *          the value
+     */
+    Entry(final Object source, final V value) {
+      this.source = new WeakReference<>(source);
+      this.value = value;
+    }
+
+    /**
+     * Tells whether the value was derived from the given source.
+     * 
+     * @param source
+     *          the source object
+     * @return true if the value was derived from the source
+     */
+    boolean isFrom(final Object source) {
+      return source != null && this.source.get() == source;
+    }
+  }
+
+}
@@ -15,6 +15,8 @@
  */
 package se.litsec.swedisheid.opensaml.saml2.signservice.dss;
 
+import java.nio.ByteBuffer;
+
 import javax.xml.namespace.QName;
 
 import org.opensaml.core.xml.schema.XSBase64Binary;
@@ -40,6 +42,18 @@ public interface Message extends XSBase64Binary {
    */
   String getContent();
   
+  /**
+   * Returns the content of the {@code Message} element as the decoded bytes, i.e., the Base64 decoded element value.
+   * <p>
+   * The element value is decoded once and the decoded bytes are kept until the value is changed. The returned buffer is
+   * a read-only view of these bytes, so no copy is made. This method should be used instead of {@link #getContent()}
+   * when the content is processed as bytes, for example when it is digested.
+   * </p>
+   * 
+   * @return a read-only buffer holding the message content, or {@code null} if no value is assigned
+   */
+  ByteBuffer getContentBuffer();
+
   /**
    * Assigns the {@code Message} element by assigning the text that it should hold. The method will Base64 encode the
    * text.
@@ -15,6 +15,7 @@
  */
 package se.litsec.swedisheid.opensaml.saml2.signservice.dss.impl;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 import org.opensaml.core.xml.XMLRuntimeException;
@@ -32,6 +33,9 @@ import se.litsec.swedisheid.opensaml.saml2.signservice.dss.Message;
  */
 public class MessageImpl extends XSBase64BinaryImpl implements Message {
 
+  /** The decoded content (cached until the value changes). */
+  private DecodedContent decodedContent;
+
   /**
    * Constructor creating an Message object given the namespace URI, local element name and namespace prefix.
    * 
@@ -49,12 +53,39 @@ public class MessageImpl extends XSBase64BinaryImpl implements Message {
   /** {@inheritDoc} */
   @Override
   public String getContent() {
-    try {
-      return this.getValue() != null ? new String(Base64Support.decode(this.getValue()), StandardCharsets.UTF_8) : null;
+    final byte[] content = this.getDecodedContent();
+    return content != null ? new String(content, StandardCharsets.UTF_8) : null;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public ByteBuffer getContentBuffer() {
+    final byte[] content = this.getDecodedContent();
+    return content != null ? ByteBuffer.wrap(content).asReadOnlyBuffer() : null;
+  }
+
+  /**
+   * Returns the decoded content. The content is decoded the first time and then cached for as long as the element value
+   * is unchanged.
+   * 
+   * @return the decoded content, or null if no value is assigned
+   */
+  private byte[] getDecodedContent() {
+    final String value = this.getValue();
+    if (value == null) {
+      return null;
     }
-    catch (DecodingException e) {
-      throw new XMLRuntimeException(e);
+    DecodedContent decoded = this.decodedContent;
+    if (decoded == null || decoded.value != value) {
+      try {
+        decoded = new DecodedContent(value, Base64Support.decode(value));
+      }
+      catch (DecodingException e) {
+        throw new XMLRuntimeException(e);
+      }
+      this.decodedContent = decoded;
     }
+    return decoded.content;
   }
 
   /** {@inheritDoc} */
@@ -73,4 +104,29 @@ public class MessageImpl extends XSBase64BinaryImpl implements Message {
     }
   }
 
+  /**
+   * The decoded content along with the element value it was decoded from.
+   */
+  private static final class DecodedContent {
+
+    /** The element value. */
+    private final String value;
+
+    /** The decoded content. */
+    private final byte[] content;
+
+    /**
+     * Constructor.
+     * 
+     * @param value
+     *          the element value
+     * @param content
+     *          the decoded content
+     */
+    DecodedContent(final String value, final byte[] content) {
+      this.value = value;
+      this.content = content;
+    }
+  }
+
 }
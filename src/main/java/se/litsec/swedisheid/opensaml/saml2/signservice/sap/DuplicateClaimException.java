@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice.sap;
+
+import java.io.IOException;
+
+/**
+ * Exception that is thrown if the JSON of a SAD contains the same claim name more than once. Such a SAD is ambiguous
+ * (different JSON parsers may pick different values) and is therefore rejected.
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class DuplicateClaimException extends IOException {
+
+  /** For serializing. */
+  private static final long serialVersionUID = -1580214412617592391L;
+
+  /**
+   * Constructor.
+   * 
+   * @param claimName
+   *          the name of the duplicate claim
+   */
+  public DuplicateClaimException(final String claimName) {
+    super(String.format("Duplicate claim \"%s\" in SAD", claimName));
+  }
+
+}
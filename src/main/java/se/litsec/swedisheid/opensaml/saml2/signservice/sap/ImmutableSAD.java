@@ -0,0 +1,318 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice.sap;
+
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * An immutable representation of a {@link SAD}.
+ * <p>
+ * Whereas {@link SAD} is a mutable bean used when building and parsing SAD:s, this class is intended for holding SAD:s
+ * that have been validated, for example in caches or when passing them between threads. Times and counts are held as
+ * primitives, the version is resolved once, and the hash code is calculated once.
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public final class ImmutableSAD {
+
+  /** Subject - holding the attribute value of the signer's unique identifier attribute. */
+  private final String subject;
+
+  /** Audience - the entityID of the Signature Service which is the recipient of this SAD. */
+  private final String audience;
+
+  /** Issuer - the entityID of the IdP that generated this SAD. */
+  private final String issuer;
+
+  /** Expiry - the time when this SAD is no longer valid (seconds since 1970-01-01). */
+  private final long expiry;
+
+  /** Issued At - the time when this SAD was issued (seconds since 1970-01-01). */
+  private final long issuedAt;
+
+  /** Unique identifier of this JWT. */
+  private final String jwtId;
+
+  /** The SAD extension version. */
+  private final SADVersion version;
+
+  /** The ID of the SADRequest message that requested this SAD. */
+  private final String inResponseTo;
+
+  /** The attribute name of the attribute holding the user's unique identifier. */
+  private final String attributeName;
+
+  /** The level of assurance URI. */
+  private final String loa;
+
+  /** The ID of the Sign Request associated with this SAD. */
+  private final String requestID;
+
+  /** The number of documents to be signed. */
+  private final int numberOfDocuments;
+
+  /** The hash code. */
+  private final int hash;
+
+  /**
+   * Constructor.
+   *
+   * @param sad
+   *          the SAD to copy
+   * @param version
+   *          the (resolved) SAD extension version
+   */
+  private ImmutableSAD(final SAD sad, final SADVersion version) {
+    final SAD.Extension ext = sad.getSeElnSadext();
+    this.subject = sad.getSubject();
+    this.audience = sad.getAudience();
+    this.issuer = sad.getIssuer();
+    this.expiry = sad.getExpiry();
+    this.issuedAt = sad.getIssuedAt();
+    this.jwtId = sad.getJwtId();
+    this.version = version;
+    this.inResponseTo = ext.getInResponseTo();
+    this.attributeName = ext.getAttributeName();
+    this.loa = ext.getLoa();
+    this.requestID = ext.getRequestID();
+    this.numberOfDocuments = ext.getNumberOfDocuments();
+    this.hash = Objects.hash(this.subject, this.audience, this.issuer, this.expiry, this.issuedAt, this.jwtId, this.version,
+      this.inResponseTo, this.attributeName, this.loa, this.requestID, this.numberOfDocuments);
+  }
+
+  /**
+   * Creates an immutable copy of the supplied SAD.
+   *
+   * @param sad
+   *          the SAD to copy
+   * @return an {@code ImmutableSAD}
+   * @throws IllegalArgumentException
+   *           if the SAD lacks the exp, iat or seElnSadext claims, if the docs claim is missing, or if the ver claim is
+   *           malformed
+   */
+  public static ImmutableSAD of(final SAD sad) throws IllegalArgumentException {
+    if (sad == null) {
+      throw new IllegalArgumentException("sad must not be null");
+    }
+    if (sad.getExpiry() == null || sad.getIssuedAt() == null) {
+      throw new IllegalArgumentException("SAD is missing 'exp' and/or 'iat'");
+    }
+    if (sad.getSeElnSadext() == null || sad.getSeElnSadext().getNumberOfDocuments() == null) {
+      throw new IllegalArgumentException("SAD is missing 'seElnSadext' and/or 'docs'");
+    }
+    final SADVersion version;
+    try {
+      version = sad.getSeElnSadext().getSADVersion();
+    }
+    catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+      throw new IllegalArgumentException(String.format("SAD has malformed 'ver' - %s", sad.getSeElnSadext().getVersion()), e);
+    }
+    return new ImmutableSAD(sad, version);
+  }
+
+  /**
+   * Returns a (mutable) {@link SAD} object holding the same data.
+   *
+   * @return a {@code SAD} object
+   */
+  public SAD toSAD() {
+    final SAD sad = new SAD();
+    sad.setSubject(this.subject);
+    sad.setAudience(this.audience);
+    sad.setIssuer(this.issuer);
+    sad.setExpiry((int) this.expiry);
+    sad.setIssuedAt((int) this.issuedAt);
+    sad.setJwtId(this.jwtId);
+    final SAD.Extension ext = new SAD.Extension();
+    ext.setVersion(this.version.toString());
+    ext.setInResponseTo(this.inResponseTo);
+    ext.setAttributeName(this.attributeName);
+    ext.setLoa(this.loa);
+    ext.setRequestID(this.requestID);
+    ext.setNumberOfDocuments(this.numberOfDocuments);
+    sad.setSeElnSadext(ext);
+    return sad;
+  }
+
+  /**
+   * Returns the attribute value of the signer's unique identifier attribute.
+   *
+   * @return the user ID
+   */
+  public String getSubject() {
+    return this.subject;
+  }
+
+  /**
+   * Returns the entityID of the Signature Service which is the recipient of this SAD.
+   *
+   * @return the entityID of the recipient
+   */
+  public String getAudience() {
+    return this.audience;
+  }
+
+  /**
+   * Returns the entityID of the IdP that generated this SAD.
+   *
+   * @return the IdP entityID
+   */
+  public String getIssuer() {
+    return this.issuer;
+  }
+
+  /**
+   * Returns the time when this SAD is no longer valid (epoch time/seconds since 1970-01-01).
+   *
+   * @return number of seconds since 1970-01-01
+   */
+  public long getExpiry() {
+    return this.expiry;
+  }
+
+  /**
+   * Returns the time when this SAD is no longer valid as a {@link Instant} instance.
+   *
+   * @return expiration time
+   */
+  public Instant getExpiryDateTime() {
+    return Instant.ofEpochSecond(this.expiry);
+  }
+
+  /**
+   * Returns the time when this SAD was issued (epoch time/seconds since 1970-01-01).
+   *
+   * @return number of seconds since 1970-01-01
+   */
+  public long getIssuedAt() {
+    return this.issuedAt;
+  }
+
+  /**
+   * Returns the time when this SAD was issued as a {@link Instant} instance.
+   *
+   * @return timestamp
+   */
+  public Instant getIssuedAtDateTime() {
+    return Instant.ofEpochSecond(this.issuedAt);
+  }
+
+  /**
+   * Returns the unique identifier of this JWT.
+   *
+   * @return JWT ID
+   */
+  public String getJwtId() {
+    return this.jwtId;
+  }
+
+  /**
+   * Returns the version of the SAD extension claim.
+   *
+   * @return the version
+   */
+  public SADVersion getVersion() {
+    return this.version;
+  }
+
+  /**
+   * Returns the ID of the {@code SADRequest} message that requested this SAD.
+   *
+   * @return ID of corresponding {@code SADRequest}
+   */
+  public String getInResponseTo() {
+    return this.inResponseTo;
+  }
+
+  /**
+   * Returns the URI identifier (attribute name) of the attribute specifying the user's unique identifier value.
+   *
+   * @return attribute name for the user ID attribute value
+   */
+  public String getAttributeName() {
+    return this.attributeName;
+  }
+
+  /**
+   * Returns the URI identifier of the level of assurance (LoA) used to authenticate the signer.
+   *
+   * @return LoA URI
+   */
+  public String getLoa() {
+    return this.loa;
+  }
+
+  /**
+   * Returns the ID of the Sign Request associated with this SAD.
+   *
+   * @return SignRequest ID
+   */
+  public String getRequestID() {
+    return this.requestID;
+  }
+
+  /**
+   * Returns the number of documents to be signed in the associated sign request.
+   *
+   * @return the number of documents to be signed
+   */
+  public int getNumberOfDocuments() {
+    return this.numberOfDocuments;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return String.format("sub='%s', aud='%s', iss='%s', exp='%d', iat='%d', jti='%s', seElnSadext=[ver='%s', irt='%s', attr='%s', "
+        + "loa='%s', reqid='%s', docs='%d']",
+      this.subject, this.audience, this.issuer, this.expiry, this.issuedAt, this.jwtId, this.version, this.inResponseTo,
+      this.attributeName, this.loa, this.requestID, this.numberOfDocuments);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public int hashCode() {
+    return this.hash;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof ImmutableSAD)) {
+      return false;
+    }
+    final ImmutableSAD other = (ImmutableSAD) obj;
+    return this.hash == other.hash
+        && this.expiry == other.expiry
+        && this.issuedAt == other.issuedAt
+        && this.numberOfDocuments == other.numberOfDocuments
+        && Objects.equals(this.jwtId, other.jwtId)
+        && Objects.equals(this.subject, other.subject)
+        && Objects.equals(this.issuer, other.issuer)
+        && Objects.equals(this.audience, other.audience)
+        && Objects.equals(this.version, other.version)
+        && Objects.equals(this.inResponseTo, other.inResponseTo)
+        && Objects.equals(this.attributeName, other.attributeName)
+        && Objects.equals(this.loa, other.loa)
+        && Objects.equals(this.requestID, other.requestID);
+  }
+
+}
@@ -22,7 +22,6 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  * Representation of the Signature Activation Data (SAD) as described in the
@@ -61,9 +60,6 @@ public class SAD {
   @JsonProperty(value = "seElnSadext", required = true)
   private Extension seElnSadext;
 
-  /** The JSON object mapper. */
-  private static final ObjectMapper jsonMapper = new ObjectMapper();
-
   /**
    * Creates a {@code SAD} object from its JSON representation.
    * 
@@ -74,7 +70,20 @@ public class SAD {
    *           for parsing errors
    */
   public static SAD fromJson(final String json) throws IOException {
-    return jsonMapper.readValue(json, SAD.class);
+    return SADJsonCodec.decode(json);
+  }
+
+  /**
+   * Creates a {@code SAD} object from its JSON byte representation (UTF-8).
+   * 
+   * @param json
+   *          the JSON bytes
+   * @return a {@code SAD} object
+   * @throws IOException
+   *           for parsing errors
+   */
+  public static SAD fromJson(final byte[] json) throws IOException {
+    return SADJsonCodec.decode(json);
   }
 
   /**
@@ -85,7 +94,7 @@ public class SAD {
    *           for processing errors
    */
   public String toJson() throws IOException {
-    return jsonMapper.writeValueAsString(this);
+    return SADJsonCodec.encodeToString(this);
   }
 
   /**
@@ -96,7 +105,7 @@ public class SAD {
    *           for processing errors
    */
   public byte[] toJsonBytes() throws IOException {
-    return jsonMapper.writeValueAsBytes(this);
+    return SADJsonCodec.encodeToBytes(this);
   }
 
   /**
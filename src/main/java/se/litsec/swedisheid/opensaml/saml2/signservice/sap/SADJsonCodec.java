@@ -0,0 +1,425 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice.sap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Streaming JSON encoder and decoder for {@link SAD} objects.
+ * <p>
+ * The codec reads and writes the fixed SAD claim set directly using the Jackson streaming API, i.e., no databinding or
+ * reflection is used. The output is identical to what a Jackson {@code ObjectMapper} produces for the annotated
+ * {@link SAD} class (claims in declaration order and {@code null} claims omitted), and as with the
+ * {@code ObjectMapper}, unknown claims are rejected. Claims that appear more than once are also rejected (see
+ * {@link DuplicateClaimException}).
+ * </p>
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+final class SADJsonCodec {
+
+  /** The JSON factory (thread-safe). Parsers and generators created by the factory recycle their internal buffers. */
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  /** The initial size of the output buffer (a typical SAD is somewhat smaller). */
+  private static final int INITIAL_BUFFER_SIZE = 512;
+
+  // Pre-encoded claim names
+  //
+  private static final SerializedString SUB = new SerializedString("sub");
+  private static final SerializedString AUD = new SerializedString("aud");
+  private static final SerializedString ISS = new SerializedString("iss");
+  private static final SerializedString EXP = new SerializedString("exp");
+  private static final SerializedString IAT = new SerializedString("iat");
+  private static final SerializedString JTI = new SerializedString("jti");
+  private static final SerializedString SE_ELN_SADEXT = new SerializedString("seElnSadext");
+  private static final SerializedString VER = new SerializedString("ver");
+  private static final SerializedString IRT = new SerializedString("irt");
+  private static final SerializedString ATTR = new SerializedString("attr");
+  private static final SerializedString LOA = new SerializedString("loa");
+  private static final SerializedString REQID = new SerializedString("reqid");
+  private static final SerializedString DOCS = new SerializedString("docs");
+
+  // Hidden constructor
+  private SADJsonCodec() {
+  }
+
+  /**
+   * Decodes a SAD from its JSON bytes (UTF-8).
+   *
+   * @param json
+   *          the JSON bytes
+   * @return a SAD object
+   * @throws IOException
+   *           for parsing errors
+   */
+  static SAD decode(final byte[] json) throws IOException {
+    try (JsonParser parser = jsonFactory.createParser(json)) {
+      return readSAD(parser);
+    }
+  }
+
+  /**
+   * Decodes a SAD from its JSON representation.
+   *
+   * @param json
+   *          the JSON representation
+   * @return a SAD object
+   * @throws IOException
+   *           for parsing errors
+   */
+  static SAD decode(final String json) throws IOException {
+    try (JsonParser parser = jsonFactory.createParser(json)) {
+      return readSAD(parser);
+    }
+  }
+
+  /**
+   * Encodes a SAD into its JSON bytes (UTF-8).
+   *
+   * @param sad
+   *          the SAD
+   * @return the JSON bytes
+   * @throws IOException
+   *           for processing errors
+   */
+  static byte[] encodeToBytes(final SAD sad) throws IOException {
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    try (JsonGenerator generator = jsonFactory.createGenerator(buffer, JsonEncoding.UTF8)) {
+      writeSAD(generator, sad);
+    }
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Encodes a SAD into its JSON representation.
+   *
+   * @param sad
+   *          the SAD
+   * @return the JSON representation
+   * @throws IOException
+   *           for processing errors
+   */
+  static String encodeToString(final SAD sad) throws IOException {
+    final StringWriter writer = new StringWriter(INITIAL_BUFFER_SIZE);
+    try (JsonGenerator generator = jsonFactory.createGenerator(writer)) {
+      writeSAD(generator, sad);
+    }
+    return writer.toString();
+  }
+
+  /**
+   * Reads a SAD object.
+   *
+   * @param parser
+   *          the parser
+   * @return a SAD object
+   * @throws IOException
+   *           for parsing errors
+   */
+  private static SAD readSAD(final JsonParser parser) throws IOException {
+    final JsonToken first = parser.nextToken();
+    if (first == null) {
+      throw new JsonParseException(parser, "No content to map due to end-of-input");
+    }
+    if (first == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (first != JsonToken.START_OBJECT) {
+      throw new JsonParseException(parser, "Expected SAD JSON object");
+    }
+    final SAD sad = new SAD();
+    int seen = 0;
+    String name;
+    while ((name = parser.nextFieldName()) != null) {
+      final JsonToken token = parser.nextToken();
+      seen = checkDuplicate(seen, name);
+      switch (name) {
+      case "sub":
+        sad.setSubject(readString(parser, token));
+        break;
+      case "aud":
+        sad.setAudience(readString(parser, token));
+        break;
+      case "iss":
+        sad.setIssuer(readString(parser, token));
+        break;
+      case "exp":
+        sad.setExpiry(readInteger(parser, token));
+        break;
+      case "iat":
+        sad.setIssuedAt(readInteger(parser, token));
+        break;
+      case "jti":
+        sad.setJwtId(readString(parser, token));
+        break;
+      case "seElnSadext":
+        sad.setSeElnSadext(readExtension(parser, token));
+        break;
+      default:
+        throw new JsonParseException(parser, String.format("Unrecognized field \"%s\" in SAD", name));
+      }
+    }
+    if (parser.currentToken() != JsonToken.END_OBJECT) {
+      throw new JsonParseException(parser, "Expected field name in SAD JSON object");
+    }
+    return sad;
+  }
+
+  /**
+   * Reads the SAD extension object.
+   *
+   * @param parser
+   *          the parser
+   * @param token
+   *          the current token
+   * @return the extension (or null)
+   * @throws IOException
+   *           for parsing errors
+   */
+  private static SAD.Extension readExtension(final JsonParser parser, final JsonToken token) throws IOException {
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (token != JsonToken.START_OBJECT) {
+      throw new JsonParseException(parser, "Expected JSON object for seElnSadext");
+    }
+    final SAD.Extension ext = new SAD.Extension();
+    int seen = 0;
+    String name;
+    while ((name = parser.nextFieldName()) != null) {
+      final JsonToken t = parser.nextToken();
+      seen = checkDuplicate(seen, name);
+      switch (name) {
+      case "ver":
+        ext.setVersion(readString(parser, t));
+        break;
+      case "irt":
+        ext.setInResponseTo(readString(parser, t));
+        break;
+      case "attr":
+        ext.setAttributeName(readString(parser, t));
+        break;
+      case "loa":
+        ext.setLoa(readString(parser, t));
+        break;
+      case "reqid":
+        ext.setRequestID(readString(parser, t));
+        break;
+      case "docs":
+        ext.setNumberOfDocuments(readInteger(parser, t));
+        break;
+      default:
+        throw new JsonParseException(parser, String.format("Unrecognized field \"%s\" in seElnSadext", name));
+      }
+    }
+    if (parser.currentToken() != JsonToken.END_OBJECT) {
+      throw new JsonParseException(parser, "Expected field name in seElnSadext JSON object");
+    }
+    return ext;
+  }
+
+  /**
+   * Records that a claim has been read and checks that it has not been read before.
+   *
+   * @param seen
+   *          bit mask for the claims read so far
+   * @param name
+   *          the claim name
+   * @return the updated bit mask
+   * @throws DuplicateClaimException
+   *           if the claim already has been read
+   */
+  private static int checkDuplicate(final int seen, final String name) throws DuplicateClaimException {
+    final int bit = claimBit(name);
+    if ((seen & bit) != 0) {
+      throw new DuplicateClaimException(name);
+    }
+    return seen | bit;
+  }
+
+  /**
+   * Returns the bit used for a claim name when checking for duplicates.
+   *
+   * @param name
+   *          the claim name
+   * @return the bit (0 for unknown claims - these are rejected anyway)
+   */
+  private static int claimBit(final String name) {
+    switch (name) {
+    case "sub":
+    case "ver":
+      return 1;
+    case "aud":
+    case "irt":
+      return 1 << 1;
+    case "iss":
+    case "attr":
+      return 1 << 2;
+    case "exp":
+    case "loa":
+      return 1 << 3;
+    case "iat":
+    case "reqid":
+      return 1 << 4;
+    case "jti":
+    case "docs":
+      return 1 << 5;
+    case "seElnSadext":
+      return 1 << 6;
+    default:
+      return 0;
+    }
+  }
+
+  /**
+   * Reads a string value. Scalar values (numbers and booleans) are accepted and returned as strings.
+   *
+   * @param parser
+   *          the parser
+   * @param token
+   *          the current token
+   * @return the string (or null)
+   * @throws IOException
+   *           for parsing errors
+   */
+  private static String readString(final JsonParser parser, final JsonToken token) throws IOException {
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (token == null || !token.isScalarValue()) {
+      throw new JsonParseException(parser, String.format("Expected string value for \"%s\"", parser.getCurrentName()));
+    }
+    return parser.getText();
+  }
+
+  /**
+   * Reads an integer value. Floating point values are truncated and strings are parsed (as for the Jackson
+   * {@code ObjectMapper}).
+   *
+   * @param parser
+   *          the parser
+   * @param token
+   *          the current token
+   * @return the integer (or null)
+   * @throws IOException
+   *           for parsing errors
+   */
+  private static Integer readInteger(final JsonParser parser, final JsonToken token) throws IOException {
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+      return parser.getIntValue();
+    }
+    if (token == JsonToken.VALUE_STRING) {
+      final String value = parser.getText().trim();
+      if (value.isEmpty()) {
+        return null;
+      }
+      try {
+        return Integer.valueOf(value);
+      }
+      catch (NumberFormatException e) {
+        throw new JsonParseException(parser, String.format("Invalid integer value for \"%s\"", parser.getCurrentName()), e);
+      }
+    }
+    throw new JsonParseException(parser, String.format("Expected integer value for \"%s\"", parser.getCurrentName()));
+  }
+
+  /**
+   * Writes a SAD object.
+   *
+   * @param generator
+   *          the generator
+   * @param sad
+   *          the SAD
+   * @throws IOException
+   *           for processing errors
+   */
+  private static void writeSAD(final JsonGenerator generator, final SAD sad) throws IOException {
+    generator.writeStartObject();
+    writeString(generator, SUB, sad.getSubject());
+    writeString(generator, AUD, sad.getAudience());
+    writeString(generator, ISS, sad.getIssuer());
+    writeInteger(generator, EXP, sad.getExpiry());
+    writeInteger(generator, IAT, sad.getIssuedAt());
+    writeString(generator, JTI, sad.getJwtId());
+    final SAD.Extension ext = sad.getSeElnSadext();
+    if (ext != null) {
+      generator.writeFieldName(SE_ELN_SADEXT);
+      generator.writeStartObject();
+      writeString(generator, VER, ext.getVersion());
+      writeString(generator, IRT, ext.getInResponseTo());
+      writeString(generator, ATTR, ext.getAttributeName());
+      writeString(generator, LOA, ext.getLoa());
+      writeString(generator, REQID, ext.getRequestID());
+      writeInteger(generator, DOCS, ext.getNumberOfDocuments());
+      generator.writeEndObject();
+    }
+    generator.writeEndObject();
+  }
+
+  /**
+   * Writes a string field (if the value is non-null).
+   *
+   * @param generator
+   *          the generator
+   * @param name
+   *          the field name
+   * @param value
+   *          the value
+   * @throws IOException
+   *           for processing errors
+   */
+  private static void writeString(final JsonGenerator generator, final SerializableString name, final String value) throws IOException {
+    if (value != null) {
+      generator.writeFieldName(name);
+      generator.writeString(value);
+    }
+  }
+
+  /**
+   * Writes an integer field (if the value is non-null).
+   *
+   * @param generator
+   *          the generator
+   * @param name
+   *          the field name
+   * @param value
+   *          the value
+   * @throws IOException
+   *           for processing errors
+   */
+  private static void writeInteger(final JsonGenerator generator, final SerializableString name, final Integer value) throws IOException {
+    if (value != null) {
+      generator.writeFieldName(name);
+      generator.writeNumber(value.intValue());
+    }
+  }
+
+}
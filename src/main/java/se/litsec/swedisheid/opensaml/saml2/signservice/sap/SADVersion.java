@@ -78,6 +78,9 @@ public class SADVersion {
    * @return SADVersion for the given string
    */
   public static SADVersion valueOf(String version) {
+    if (VERSION_10.versionString.equals(version)) {
+      return VERSION_10;
+    }
     String[] components = version.split("\\.");
     return valueOf(Integer.valueOf(components[0]), Integer.valueOf(components[1]));
   }
@@ -105,6 +108,12 @@ public class SADVersion {
     return this.versionString;
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public int hashCode() {
+    return 31 * this.majorVersion + this.minorVersion;
+  }
+
   /** {@inheritDoc} */
   @Override
   public boolean equals(Object obj) {
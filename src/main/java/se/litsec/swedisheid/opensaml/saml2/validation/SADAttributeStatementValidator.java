@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.validation;
+
+import java.util.List;
+
+import org.opensaml.saml.common.assertion.ValidationContext;
+import org.opensaml.saml.common.assertion.ValidationResult;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.litsec.opensaml.common.validation.CoreValidatorParameters;
+import se.litsec.swedisheid.opensaml.saml2.signservice.SADParser;
+import se.litsec.swedisheid.opensaml.saml2.signservice.SADRequestRecord;
+import se.litsec.swedisheid.opensaml.saml2.signservice.SADValidationException;
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SAD;
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SADRequest;
+
+/**
+ * An {@link AttributeStatement} validator that, in addition to the checks made by
+ * {@link SwedishEidAttributeStatementValidator}, validates the SAD (Signature Activation Data) delivered in the
+ * {@code sad} attribute. This makes it possible for a signature service to have the SAD validated in the same assertion
+ * traversal as the rest of the assertion validation, instead of looking up the attributes again after the assertion has
+ * been validated.
+ * 
+ * <p>
+ * The validator is registered instead of {@link SwedishEidAttributeStatementValidator} in the statement validators
+ * passed to {@link SwedishEidAssertionValidator} (statement validators are registered per statement type, so only one
+ * attribute statement validator may be used).
+ * </p>
+ * 
+ * <p>
+ * Apart from the parameters documented for {@link SwedishEidAttributeStatementValidator}, the following
+ * {@link ValidationContext} static parameters are supported:
+ * </p>
+ * <ul>
+ * <li>{@link #SAD_VALIDATOR}: Required if a SAD was requested. Holds the {@link SADParser.SADValidator} used to validate
+ * the SAD.</li>
+ * <li>{@link #SAD_REQUEST_RECORD}: Optional. Holds the {@link SADRequestRecord} for the {@code SADRequest} that was
+ * sent. If not assigned, the {@code SADRequest} extension of the {@code AuthnRequest} given by
+ * {@link CoreValidatorParameters#AUTHN_REQUEST} is used.</li>
+ * </ul>
+ * 
+ * <p>
+ * If none of the above sources holds a {@code SADRequest}, no SAD was requested and no SAD validation is performed.
+ * After a successful SAD validation the resulting {@link SAD} object is stored in the dynamic parameters of the
+ * validation context under the key {@link #SAD}.
+ * </p>
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SADAttributeStatementValidator extends SwedishEidAttributeStatementValidator {
+
+  /**
+   * Key for a validation context parameter. Carries a {@link SADParser.SADValidator} that is used to validate the SAD.
+   */
+  public static final String SAD_VALIDATOR = CoreValidatorParameters.STD_PREFIX + ".SADValidator";
+
+  /**
+   * Key for a validation context parameter. Carries a {@link SADRequestRecord} for the {@code SADRequest} that was sent.
+   */
+  public static final String SAD_REQUEST_RECORD = CoreValidatorParameters.STD_PREFIX + ".SADRequestRecord";
+
+  /**
+   * Key for a dynamic validation context parameter. After a successful validation it holds the validated {@link SAD}.
+   */
+  public static final String SAD = CoreValidatorParameters.STD_PREFIX + ".SAD";
+
+  /** Class logger. */
+  private final Logger log = LoggerFactory.getLogger(SADAttributeStatementValidator.class);
+
+  /**
+   * Validates the required attributes (see {@link SwedishEidAttributeStatementValidator}) and, if a SAD was requested,
+   * the SAD delivered in the {@code sad} attribute. When a SAD is requested, the {@code sad} attribute is a required
+   * attribute.
+   */
+  @Override
+  protected ValidationResult validateRequiredAttributes(final List<Attribute> attributes, final AttributeStatement statement,
+      final Assertion assertion, ValidationContext context) {
+
+    final ValidationResult result = super.validateRequiredAttributes(attributes, statement, assertion, context);
+    if (result != ValidationResult.VALID) {
+      return result;
+    }
+
+    final SADRequestRecord sadRequest;
+    try {
+      sadRequest = this.getSADRequestRecord(context);
+    }
+    catch (IllegalArgumentException e) {
+      log.info("Bad SADRequest: {}", e.getMessage());
+      context.setValidationFailureMessage(e.getMessage());
+      return ValidationResult.INVALID;
+    }
+    if (sadRequest == null) {
+      log.trace("No SADRequest available - will not validate SAD");
+      return ValidationResult.VALID;
+    }
+
+    final SADParser.SADValidator sadValidator = (SADParser.SADValidator) context.getStaticParameters().get(SAD_VALIDATOR);
+    if (sadValidator == null) {
+      String msg = String.format("A SAD was requested (SADRequest '%s') but no SAD validator has been configured",
+        sadRequest.getSadRequestID());
+      log.error(msg);
+      context.setValidationFailureMessage(msg);
+      return ValidationResult.INDETERMINATE;
+    }
+
+    try {
+      final SAD sad = sadValidator.validate(sadRequest, assertion, attributes);
+      log.debug("SAD '{}' successfully validated", sad.getJwtId());
+      context.getDynamicParameters().put(SAD, sad);
+      return ValidationResult.VALID;
+    }
+    catch (SADValidationException e) {
+      String msg = String.format("SAD validation failed (%s): %s", e.getErrorCode(), e.getMessage());
+      log.info(msg);
+      context.setValidationFailureMessage(msg);
+      return ValidationResult.INVALID;
+    }
+    catch (IllegalArgumentException e) {
+      log.info("SAD validation failed: {}", e.getMessage());
+      context.setValidationFailureMessage(e.getMessage());
+      return ValidationResult.INVALID;
+    }
+  }
+
+  /**
+   * Returns the {@link SADRequestRecord} for the SAD that was requested. The record is read from the
+   * {@link #SAD_REQUEST_RECORD} parameter, or if not assigned, from the {@code SADRequest} extension of the
+   * {@code AuthnRequest} given by {@link CoreValidatorParameters#AUTHN_REQUEST}.
+   * 
+   * @param context
+   *          the validation context
+   * @return a SADRequestRecord, or {@code null} if no SAD was requested
+   * @throws IllegalArgumentException
+   *           if the {@code SADRequest} is invalid
+   */
+  protected SADRequestRecord getSADRequestRecord(final ValidationContext context) throws IllegalArgumentException {
+    final SADRequestRecord record = (SADRequestRecord) context.getStaticParameters().get(SAD_REQUEST_RECORD);
+    if (record != null) {
+      return record;
+    }
+    final AuthnRequest authnRequest = (AuthnRequest) context.getStaticParameters().get(CoreValidatorParameters.AUTHN_REQUEST);
+    if (authnRequest == null || authnRequest.getExtensions() == null) {
+      return null;
+    }
+    final boolean sadRequested = authnRequest.getExtensions()
+      .getUnknownXMLObjects()
+      .stream()
+      .anyMatch(SADRequest.class::isInstance);
+
+    return sadRequested ? SADRequestRecord.of(authnRequest) : null;
+  }
+
+}
@@ -61,6 +61,12 @@ import se.litsec.opensaml.saml2.common.assertion.AssertionValidator;
  * </li>
  * </ul>
  * 
+ * <p>
+ * A signature service that requests a SAD may have the SAD validated as part of the assertion validation by using the
+ * constructor accepting statement validators and passing a {@link SADAttributeStatementValidator} instead of the
+ * {@link SwedishEidAttributeStatementValidator}.
+ * </p>
+ * 
  * @author Martin Lindström (martin.lindstrom@litsec.se)
  */
 public class SwedishEidAssertionValidator extends AssertionValidator {
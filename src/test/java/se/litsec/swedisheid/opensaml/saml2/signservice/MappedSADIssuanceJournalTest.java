@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SAD;
+
+/**
+ * Test cases for {@code MappedSADIssuanceJournal}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class MappedSADIssuanceJournalTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRecordAndFind() throws Exception {
+    Path dir = this.folder.newFolder().toPath();
+    try (MappedSADIssuanceJournal journal = new MappedSADIssuanceJournal(dir)) {
+      SAD sad = createSAD("jti-1");
+      journal.record(sad);
+
+      SADIssuanceRecord record = journal.find("jti-1");
+      Assert.assertNotNull(record);
+      Assert.assertEquals(SADIssuanceRecord.of(sad), record);
+      Assert.assertEquals("196302052383", record.getSubject());
+      Assert.assertEquals("https://www.sandbox.swedenconnect.se/signservice", record.getAudience());
+      Assert.assertEquals(sad.getExpiry().longValue(), record.getExpiry().getEpochSecond());
+
+      Assert.assertNull(journal.find("jti-2"));
+    }
+  }
+
+  @Test
+  public void testSegmentRotationAndRecovery() throws Exception {
+    Path dir = this.folder.newFolder().toPath();
+    try (MappedSADIssuanceJournal journal = new MappedSADIssuanceJournal(dir, 10, Duration.ofMillis(10))) {
+      for (int i = 0; i < 25; i++) {
+        journal.record(createSAD("jti-" + i));
+      }
+      Assert.assertEquals(25, journal.size());
+      for (int i = 0; i < 25; i++) {
+        Assert.assertEquals("jti-" + i, journal.find("jti-" + i).getJwtId());
+      }
+    }
+    try (Stream<Path> files = Files.list(dir)) {
+      Assert.assertTrue(files.count() >= 3);
+    }
+
+    // Re-open, and make sure that the index is rebuilt and that writing continues after the last record ...
+    //
+    try (MappedSADIssuanceJournal journal = new MappedSADIssuanceJournal(dir, 10, Duration.ofMillis(10))) {
+      Assert.assertEquals(25, journal.size());
+      journal.record(createSAD("jti-25"));
+      Assert.assertEquals(26, journal.size());
+    }
+    try (MappedSADIssuanceJournal journal = new MappedSADIssuanceJournal(dir, 10, Duration.ofMillis(10))) {
+      Assert.assertEquals(26, journal.size());
+      for (int i = 0; i <= 25; i++) {
+        Assert.assertEquals("jti-" + i, journal.find("jti-" + i).getJwtId());
+      }
+    }
+  }
+
+  @Test
+  public void testRecoveryReadsFullSegmentsInBatches() throws Exception {
+    Path dir = this.folder.newFolder().toPath();
+    try (MappedSADIssuanceJournal journal = new MappedSADIssuanceJournal(dir, 100, Duration.ofMillis(10))) {
+      for (int i = 0; i < 250; i++) {
+        journal.record(createSAD("jti-" + i));
+      }
+    }
+    try (MappedSADIssuanceJournal journal = new MappedSADIssuanceJournal(dir, 100, Duration.ofMillis(10))) {
+      Assert.assertEquals(250, journal.size());
+      for (int i = 0; i < 250; i++) {
+        Assert.assertEquals("jti-" + i, journal.find("jti-" + i).getJwtId());
+      }
+    }
+  }
+
+  @Test
+  public void testRecoveryIgnoresEmptySpare() throws Exception {
+    Path dir = this.folder.newFolder().toPath();
+    try (MappedSADIssuanceJournal journal = new MappedSADIssuanceJournal(dir, 10, Duration.ofMillis(10))) {
+      for (int i = 0; i < 15; i++) {
+        journal.record(createSAD("jti-" + i));
+      }
+      // Wait for the background thread to pre-allocate segment 2 ...
+      for (int i = 0; i < 500 && !Files.exists(segmentFile(dir, 2)); i++) {
+        Thread.sleep(10);
+      }
+      Assert.assertTrue(Files.exists(segmentFile(dir, 2)));
+    }
+
+    // The empty segment 2 should be removed, and writing should continue in segment 1 ...
+    //
+    try (MappedSADIssuanceJournal journal = new MappedSADIssuanceJournal(dir, 10, Duration.ofMinutes(10))) {
+      Assert.assertFalse(Files.exists(segmentFile(dir, 2)));
+      for (int i = 15; i < 20; i++) {
+        journal.record(createSAD("jti-" + i));
+      }
+      Assert.assertFalse(Files.exists(segmentFile(dir, 2)));
+
+      // No pre-allocated segment exists, so the journal has to create it ...
+      journal.record(createSAD("jti-20"));
+      Assert.assertTrue(Files.exists(segmentFile(dir, 2)));
+      Assert.assertEquals(21, journal.size());
+      for (int i = 0; i <= 20; i++) {
+        Assert.assertEquals("jti-" + i, journal.find("jti-" + i).getJwtId());
+      }
+    }
+  }
+
+  @Test
+  public void testRetention() throws Exception {
+    Path dir = this.folder.newFolder().toPath();
+    try (MappedSADIssuanceJournal journal = new MappedSADIssuanceJournal(dir, 10, Duration.ofMillis(10), Duration.ofSeconds(60))) {
+      for (int i = 0; i < 20; i++) {
+        SAD sad = createSAD("expired-" + i);
+        sad.setIssuedAt(sad.getIssuedAt() - 3600);
+        sad.setExpiry(sad.getExpiry() - 3600);
+        journal.record(sad);
+      }
+      for (int i = 0; i < 5; i++) {
+        journal.record(createSAD("jti-" + i));
+      }
+
+      // The two full segments holding expired SAD:s should be removed along with their index entries ...
+      //
+      for (int i = 0; i < 500 && (journal.size() > 5 || Files.exists(segmentFile(dir, 1))); i++) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(5, journal.size());
+      Assert.assertNull(journal.find("expired-0"));
+      Assert.assertNull(journal.find("expired-19"));
+      Assert.assertFalse(Files.exists(segmentFile(dir, 0)));
+      Assert.assertFalse(Files.exists(segmentFile(dir, 1)));
+      Assert.assertNotNull(journal.find("jti-0"));
+    }
+
+    // Expired segments are not indexed when the journal is opened ...
+    //
+    try (MappedSADIssuanceJournal journal = new MappedSADIssuanceJournal(dir, 10, Duration.ofMillis(10), Duration.ofSeconds(60))) {
+      Assert.assertEquals(5, journal.size());
+    }
+    try (MappedSADIssuanceJournal journal = new MappedSADIssuanceJournal(dir, 10, Duration.ofMillis(10), Duration.ZERO)) {
+      Assert.assertEquals(5, journal.size());
+    }
+  }
+
+  @Test
+  public void testTooLarge() throws Exception {
+    Path dir = this.folder.newFolder().toPath();
+    try (MappedSADIssuanceJournal journal = new MappedSADIssuanceJournal(dir)) {
+      SAD sad = createSAD("jti-1");
+      sad.setAudience(new String(new char[MappedSADIssuanceJournal.RECORD_SIZE]).replace('\0', 'a'));
+      try {
+        journal.record(sad);
+        Assert.fail("Expected IOException");
+      }
+      catch (IOException e) {
+      }
+      Assert.assertEquals(0, journal.size());
+    }
+  }
+
+  private static Path segmentFile(final Path dir, final long sequence) {
+    return dir.resolve(String.format("sad-journal-%010d.seg", sequence));
+  }
+
+  private static SAD createSAD(final String jwtId) {
+    SAD sad = new SAD();
+    sad.setJwtId(jwtId);
+    sad.setSubject("196302052383");
+    sad.setAudience("https://www.sandbox.swedenconnect.se/signservice");
+    sad.setIssuer("https://idp.svelegtest.se/idp");
+    sad.setIssuedAt((int) (System.currentTimeMillis() / 1000));
+    sad.setExpiry(sad.getIssuedAt() + 300);
+    sad.setSeElnSadext(new SAD.Extension());
+    sad.getSeElnSadext().setInResponseTo("_a74a068d0548a919e503e5f9ef901851");
+    sad.getSeElnSadext().setRequestID("f6e7d061a23293b0053dc7b038a04dad");
+    return sad;
+  }
+
+}
@@ -18,16 +18,40 @@ package se.litsec.swedisheid.opensaml.saml2.signservice;
 import java.nio.charset.Charset;
 import java.security.KeyStore;
 import java.security.PublicKey;
+import java.security.Security;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Duration;
 import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.opensaml.security.x509.impl.KeyStoreX509CredentialAdapter;
 import org.springframework.core.io.ClassPathResource;
 
+import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.ECDSAVerifier;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
 import com.nimbusds.jose.crypto.factories.DefaultJWSVerifierFactory;
+import com.nimbusds.jose.jca.JCAContext;
 import com.nimbusds.jose.proc.JWSVerifierFactory;
+import com.nimbusds.jose.util.Base64URL;
+import com.nimbusds.jose.util.X509CertUtils;
 import com.nimbusds.jwt.SignedJWT;
 
 import se.litsec.opensaml.utils.KeyStoreUtils;
@@ -41,6 +65,9 @@ import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SAD;
  */
 public class SADFactoryTest {
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   @Test
   public void createSignedJwt() throws Exception {
     KeyStore keyStore = KeyStoreUtils.loadKeyStore(new ClassPathResource("Litsec_SAML_Signing.jks").getInputStream(), "secret", "JKS");
@@ -82,4 +109,252 @@ public class SADFactoryTest {
     Assert.assertTrue(verifier.verify(signedJwt.getHeader(), signedJwt.getSigningInput(), signedJwt.getSignature())); 
   }
 
+  @Test
+  public void createSignedJwtWithKeyIdentifier() throws Exception {
+    KeyStore keyStore = KeyStoreUtils.loadKeyStore(new ClassPathResource("Litsec_SAML_Signing.jks").getInputStream(), "secret", "JKS");
+    KeyStoreX509CredentialAdapter credential = new KeyStoreX509CredentialAdapter(keyStore, "litsec_saml_signing", "secret".toCharArray());
+    Base64URL thumbprint = X509CertUtils.computeSHA256Thumbprint(credential.getEntityCertificate());
+
+    SADFactory factory = new SADFactory("https://idp.svelegtest.se/idp", credential);
+
+    factory.setKeyIdentifierType(SADFactory.KeyIdentifierType.X509_SHA256_THUMBPRINT);
+    SignedJWT signedJwt = SignedJWT.parse(factory.getBuilder().subject("196302052383").buildJwt());
+    Assert.assertEquals(thumbprint, signedJwt.getHeader().getX509CertSHA256Thumbprint());
+    Assert.assertNull(signedJwt.getHeader().getKeyID());
+
+    factory.setKeyIdentifierType(SADFactory.KeyIdentifierType.KEY_ID);
+    signedJwt = SignedJWT.parse(factory.getBuilder().subject("196302052383").buildJwt());
+    Assert.assertEquals(thumbprint.toString(), signedJwt.getHeader().getKeyID());
+    Assert.assertNull(signedJwt.getHeader().getX509CertSHA256Thumbprint());
+  }
+
+  @Test
+  public void createSignedJwtWithAlgorithms() throws Exception {
+    KeyStore keyStore = KeyStoreUtils.loadKeyStore(new ClassPathResource("Litsec_SAML_Signing.jks").getInputStream(), "secret", "JKS");
+    KeyStoreX509CredentialAdapter credential = new KeyStoreX509CredentialAdapter(keyStore, "litsec_saml_signing", "secret".toCharArray());
+    SADFactory factory = new SADFactory("https://idp.svelegtest.se/idp", credential);
+
+    SignedJWT signedJwt = SignedJWT.parse(factory.getBuilder().subject("196302052383").buildJwt());
+    Assert.assertEquals(JWSAlgorithm.RS256, signedJwt.getHeader().getAlgorithm());
+    Assert.assertTrue(signedJwt.verify(new RSASSAVerifier((RSAPublicKey) credential.getEntityCertificate().getPublicKey())));
+
+    factory.setJwtSigningAlgorithm(JWSAlgorithm.PS256.getName());
+    signedJwt = SignedJWT.parse(factory.getBuilder().subject("196302052383").buildJwt());
+    Assert.assertEquals(JWSAlgorithm.PS256, signedJwt.getHeader().getAlgorithm());
+    Assert.assertTrue(signedJwt.verify(new RSASSAVerifier((RSAPublicKey) credential.getEntityCertificate().getPublicKey())));
+
+    // An algorithm that can not be used is rejected when assigned, and the current algorithm is kept ...
+    //
+    for (String algorithm : Arrays.asList("NO-SUCH-ALG", JWSAlgorithm.ES256.getName())) {
+      try {
+        factory.setJwtSigningAlgorithm(algorithm);
+        Assert.fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException e) {
+      }
+    }
+    signedJwt = SignedJWT.parse(factory.getBuilder().subject("196302052383").buildJwt());
+    Assert.assertEquals(JWSAlgorithm.PS256, signedJwt.getHeader().getAlgorithm());
+
+    // EC key (P-384) - algorithm is given by the curve ...
+    //
+    keyStore = KeyStoreUtils.loadKeyStore(new ClassPathResource("sad-signing-ec.p12").getInputStream(), "secret", "PKCS12");
+    credential = new KeyStoreX509CredentialAdapter(keyStore, "sad_signing_ec", "secret".toCharArray());
+    factory = new SADFactory("https://idp.svelegtest.se/idp", credential);
+
+    signedJwt = SignedJWT.parse(factory.getBuilder().subject("196302052383").buildJwt());
+    Assert.assertEquals(JWSAlgorithm.ES384, signedJwt.getHeader().getAlgorithm());
+    Assert.assertTrue(signedJwt.verify(new ECDSAVerifier((ECPublicKey) credential.getEntityCertificate().getPublicKey())));
+  }
+
+  @Test
+  public void createSignedJwtEdDSA() throws Exception {
+    KeyStore keyStore;
+    try {
+      keyStore = KeyStoreUtils.loadKeyStore(new ClassPathResource("sad-signing-ed25519.p12").getInputStream(), "secret", "PKCS12");
+    }
+    catch (Exception e) {
+      // EdDSA requires Java 15 or later
+      Assume.assumeNoException(e);
+      return;
+    }
+    KeyStoreX509CredentialAdapter credential = new KeyStoreX509CredentialAdapter(keyStore, "sad_signing_ed25519", "secret".toCharArray());
+    SADFactory factory = new SADFactory("https://idp.svelegtest.se/idp", credential);
+
+    SignedJWT signedJwt = SignedJWT.parse(factory.getBuilder().subject("196302052383").buildJwt());
+    Assert.assertEquals(JWSAlgorithm.EdDSA, signedJwt.getHeader().getAlgorithm());
+
+    JWSVerifier verifier = new SADJWSVerifierFactory().createJWSVerifier(signedJwt.getHeader(), credential.getEntityCertificate().getPublicKey());
+    Assert.assertTrue(signedJwt.verify(verifier));
+  }
+
+  @Test
+  public void testJwtIdGenerator() throws Exception {
+    KeyStore keyStore = KeyStoreUtils.loadKeyStore(new ClassPathResource("Litsec_SAML_Signing.jks").getInputStream(), "secret", "JKS");
+    KeyStoreX509CredentialAdapter credential = new KeyStoreX509CredentialAdapter(keyStore, "litsec_saml_signing", "secret".toCharArray());
+    SADFactory factory = new SADFactory("https://idp.svelegtest.se/idp", credential);
+
+    Set<String> ids = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      String jwtId = factory.getBuilder().subject("196302052383").buildSAD().getJwtId();
+      Assert.assertTrue(jwtId.matches("[A-Za-z0-9]{" + SADFactory.DEFAULT_JWT_ID_SIZE + "}"));
+      Assert.assertTrue(ids.add(jwtId));
+    }
+
+    factory.setJwtIdSize(12);
+    Assert.assertEquals(12, factory.getBuilder().subject("196302052383").buildSAD().getJwtId().length());
+
+    factory.setJwtIdGenerator(size -> "ID-" + size);
+    Assert.assertEquals("ID-12", factory.getBuilder().subject("196302052383").buildSAD().getJwtId());
+  }
+
+  @Test
+  public void createSignedJwtAsync() throws Exception {
+    KeyStore keyStore = KeyStoreUtils.loadKeyStore(new ClassPathResource("Litsec_SAML_Signing.jks").getInputStream(), "secret", "JKS");
+    KeyStoreX509CredentialAdapter credential = new KeyStoreX509CredentialAdapter(keyStore, "litsec_saml_signing", "secret".toCharArray());
+    SADFactory factory = new SADFactory("https://idp.svelegtest.se/idp", credential);
+
+    SADSigningExecutor executor = new SADSigningExecutor(2, 10, Duration.ofSeconds(10));
+    factory.setSigningExecutor(executor);
+    try {
+      String jwt = factory.getBuilder().subject("196302052383").buildJwtAsync().toCompletableFuture().get();
+      SignedJWT signedJwt = SignedJWT.parse(jwt);
+      Assert.assertTrue(signedJwt.verify(new RSASSAVerifier((RSAPublicKey) credential.getEntityCertificate().getPublicKey())));
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void createSignedJwtWithProvider() throws Exception {
+    KeyStore keyStore = KeyStoreUtils.loadKeyStore(new ClassPathResource("Litsec_SAML_Signing.jks").getInputStream(), "secret", "JKS");
+    KeyStoreX509CredentialAdapter credential = new KeyStoreX509CredentialAdapter(keyStore, "litsec_saml_signing", "secret".toCharArray());
+    SADFactory factory = new SADFactory("https://idp.svelegtest.se/idp", credential);
+
+    factory.setSigningProvider(Security.getProvider("SunRsaSign"));
+    SignedJWT signedJwt = SignedJWT.parse(factory.getBuilder().subject("196302052383").buildJwt());
+
+    // Verify using a verifier cache with an explicit provider ...
+    //
+    SADVerifierCache verifierCache = new SADVerifierCache(Security.getProvider("SunRsaSign"));
+    List<SADVerifierCache.CachedKey> keys = verifierCache.getKeys("https://idp.svelegtest.se/idp", credential,
+      () -> Collections.singletonList(credential.getEntityCertificate()));
+    JWSVerifier verifier = verifierCache.getVerifier(keys.get(0), signedJwt.getHeader());
+    Assert.assertEquals(Security.getProvider("SunRsaSign"), verifier.getJCAContext().getProvider());
+    Assert.assertTrue(signedJwt.verify(verifier));
+
+    // The SUN provider does not implement RSA signatures - make sure that the provider really is used, and that
+    // it is rejected when assigned (and not when the next SAD is signed) ...
+    //
+    try {
+      factory.setSigningJCAContext(new JCAContext(Security.getProvider("SUN"), null));
+      Assert.fail("Expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+    }
+    signedJwt = SignedJWT.parse(factory.getBuilder().subject("196302052383").buildJwt());
+    Assert.assertTrue(signedJwt.verify(verifier));
+
+    // Reset to the default provider ...
+    //
+    factory.setSigningProvider(null);
+    signedJwt = SignedJWT.parse(factory.getBuilder().subject("196302052383").buildJwt());
+    Assert.assertTrue(signedJwt.verify(new RSASSAVerifier((RSAPublicKey) credential.getEntityCertificate().getPublicKey())));
+  }
+
+  @Test
+  public void testRotateSigningCredential() throws Exception {
+    KeyStore keyStore = KeyStoreUtils.loadKeyStore(new ClassPathResource("Litsec_SAML_Signing.jks").getInputStream(), "secret", "JKS");
+    KeyStoreX509CredentialAdapter rsaCredential = new KeyStoreX509CredentialAdapter(keyStore, "litsec_saml_signing", "secret".toCharArray());
+    keyStore = KeyStoreUtils.loadKeyStore(new ClassPathResource("sad-signing-ec.p12").getInputStream(), "secret", "PKCS12");
+    KeyStoreX509CredentialAdapter ecCredential = new KeyStoreX509CredentialAdapter(keyStore, "sad_signing_ec", "secret".toCharArray());
+
+    SADFactory factory = new SADFactory("https://idp.svelegtest.se/idp", rsaCredential);
+    factory.setKeyIdentifierType(SADFactory.KeyIdentifierType.KEY_ID);
+
+    Map<String, JWSVerifier> verifiers = new ConcurrentHashMap<>();
+    verifiers.put(X509CertUtils.computeSHA256Thumbprint(rsaCredential.getEntityCertificate()).toString(),
+      new RSASSAVerifier((RSAPublicKey) rsaCredential.getEntityCertificate().getPublicKey()));
+    verifiers.put(X509CertUtils.computeSHA256Thumbprint(ecCredential.getEntityCertificate()).toString(),
+      new ECDSAVerifier((ECPublicKey) ecCredential.getEntityCertificate().getPublicKey()));
+
+    // Issue SAD:s while the key is rotated back and forth. Each JWT must be tagged with the key that signed it ...
+    //
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> jwts = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        jwts.add(executor.submit(() -> factory.getBuilder().subject("196302052383").buildJwt()));
+        if (i % 20 == 0) {
+          factory.rotateSigningCredential(i % 40 == 0 ? ecCredential : rsaCredential, null);
+        }
+      }
+      for (Future<String> jwt : jwts) {
+        SignedJWT signedJwt = SignedJWT.parse(jwt.get());
+        JWSVerifier verifier = verifiers.get(signedJwt.getHeader().getKeyID());
+        Assert.assertNotNull(verifier);
+        Assert.assertTrue(signedJwt.verify(verifier));
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    Assert.assertSame(rsaCredential, factory.getSigningCredential());
+
+    // A credential that can not be used is rejected, and the current credential is kept ...
+    //
+    try {
+      factory.rotateSigningCredential(ecCredential, JWSAlgorithm.RS256.getName());
+      Assert.fail("Expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+    }
+    Assert.assertSame(rsaCredential, factory.getSigningCredential());
+
+    // A key identifier type assigned while the key is being rotated is never lost ...
+    //
+    factory.setKeyIdentifierType(SADFactory.KeyIdentifierType.NONE);
+    Thread rotator = new Thread(() -> {
+      for (int i = 0; i < 50; i++) {
+        factory.rotateSigningCredential(i % 2 == 0 ? ecCredential : rsaCredential, null);
+      }
+    });
+    rotator.start();
+    factory.setKeyIdentifierType(SADFactory.KeyIdentifierType.KEY_ID);
+    rotator.join();
+    SignedJWT signedJwt = SignedJWT.parse(factory.getBuilder().subject("196302052383").buildJwt());
+    Assert.assertEquals(X509CertUtils.computeSHA256Thumbprint(rsaCredential.getEntityCertificate()).toString(),
+      signedJwt.getHeader().getKeyID());
+  }
+
+  @Test
+  public void testIssuanceJournal() throws Exception {
+    KeyStore keyStore = KeyStoreUtils.loadKeyStore(new ClassPathResource("Litsec_SAML_Signing.jks").getInputStream(), "secret", "JKS");
+    KeyStoreX509CredentialAdapter credential = new KeyStoreX509CredentialAdapter(keyStore, "litsec_saml_signing", "secret".toCharArray());
+    SADFactory factory = new SADFactory("https://idp.svelegtest.se/idp", credential);
+
+    try (MappedSADIssuanceJournal journal = new MappedSADIssuanceJournal(this.folder.newFolder().toPath())) {
+      factory.setIssuanceJournal(journal);
+      SignedJWT signedJwt = SignedJWT.parse(factory.getBuilder().subject("196302052383").audience("https://www.sandbox.swedenconnect.se/signservice").buildJwt());
+
+      SADIssuanceRecord record = journal.find(signedJwt.getJWTClaimsSet().getJWTID());
+      Assert.assertNotNull(record);
+      Assert.assertEquals("196302052383", record.getSubject());
+      Assert.assertEquals("https://www.sandbox.swedenconnect.se/signservice", record.getAudience());
+
+      // A SAD that can not be recorded should not be signed ...
+      //
+      SAD sad = new SAD();
+      sad.setSubject("196302052383");
+      try {
+        factory.createJwt(sad);
+        Assert.fail("Expected IllegalArgumentException");
+      }
+      catch (IllegalArgumentException e) {
+      }
+      Assert.assertEquals(1, journal.size());
+    }
+  }
+
 }
@@ -15,10 +15,19 @@
  */
 package se.litsec.swedisheid.opensaml.saml2.signservice;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -31,11 +40,15 @@ import org.opensaml.saml.saml2.core.AuthnRequest;
 import org.opensaml.saml.saml2.core.AuthnStatement;
 import org.opensaml.saml.saml2.core.Extensions;
 import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.credential.UsageType;
 import org.opensaml.security.x509.impl.KeyStoreX509CredentialAdapter;
 import org.springframework.core.io.ClassPathResource;
 
 import se.litsec.opensaml.saml2.attribute.AttributeBuilder;
 import se.litsec.opensaml.saml2.core.build.AuthnRequestBuilder;
+import se.litsec.opensaml.saml2.metadata.build.IdpEntityDescriptorBuilder;
+import se.litsec.opensaml.saml2.metadata.build.KeyDescriptorBuilder;
 import se.litsec.opensaml.utils.KeyStoreUtils;
 import se.litsec.opensaml.utils.X509CertificateUtils;
 import se.litsec.swedisheid.opensaml.OpenSAMLTestBase;
@@ -103,6 +116,109 @@ public class SADParserTest extends OpenSAMLTestBase {
     Assert.assertEquals(sad, sad2);
   }
 
+  /**
+   * Tests that parsing of a malformed JWT fails.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testParseMalformed() throws Exception {
+    for (String jwt : new String[] { "JWT_THAT_IS_NOT_A_JWT", "a.b", "a.b.c.d", "eyJhbGciOiJSUzI1NiJ9.e*J9.c2ln", "eyJhbGciOiJSUzI1NiJ9.eyJ9e.c2ln" }) {
+      try {
+        SADParser.parse(jwt);
+        Assert.fail("Expected IOException for " + jwt);
+      }
+      catch (IOException e) {
+      }
+    }
+  }
+
+  /**
+   * Tests the lazy SAD view and that a view can be promoted to a validated SAD.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testView() throws Exception {
+
+    SAD sad = this.getTestSAD();
+    String jwt = this.sadFactory.createJwt(sad);
+
+    SADView view = SADParser.view(jwt);
+    Assert.assertEquals(jwt, view.getJwt());
+    Assert.assertEquals(IDP_ENTITYID, view.getIssuer());
+    Assert.assertEquals(SIGNSERVICE_ENTITYID, view.getAudience());
+    Assert.assertEquals(sad.getSeElnSadext(), view.getSeElnSadext());
+    Assert.assertEquals(sad, view.toSAD());
+
+    SADValidator validator = SADParser.getValidator(this.validationCertificate);
+    SAD validatedSad = validator.validate(view, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID,
+      LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+    Assert.assertEquals(sad, validatedSad);
+
+    // The view checks the structure of the payload ...
+    //
+    for (String json : new String[] { "[]", "{\"sub\":{}}", "{\"foo\":\"bar\"}", "{\"exp\":\"abc\"}", "{\"seElnSadext\":{\"docs\":true}}",
+        "{\"seElnSadext\":{\"foo\":1}}", "{\"sub\":\"abc\"" }) {
+      String badJwt = "eyJhbGciOiJSUzI1NiJ9." + Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8)) + ".c2ln";
+      try {
+        SADParser.view(badJwt);
+        Assert.fail("Expected IOException for " + json);
+      }
+      catch (IOException e) {
+      }
+    }
+  }
+
+  /**
+   * Tests that duplicate claims are rejected by both the view and the parser, and that the size of the JWT is checked
+   * before a view is built.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testDuplicateClaims() throws Exception {
+
+    SADValidator validator = SADParser.getValidator(this.validationCertificate);
+
+    for (String json : new String[] { "{\"sub\":\"a\",\"sub\":\"b\"}", "{\"seElnSadext\":{\"irt\":\"a\",\"irt\":\"b\"}}",
+        "{\"seElnSadext\":{\"irt\":\"a\"},\"seElnSadext\":{\"ver\":\"1.0\"}}" }) {
+      String badJwt = "eyJhbGciOiJSUzI1NiJ9." + Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8)) + ".c2ln";
+      try {
+        SADParser.view(badJwt);
+        Assert.fail("Expected IOException for " + json);
+      }
+      catch (IOException e) {
+      }
+      try {
+        SADParser.parse(badJwt);
+        Assert.fail("Expected IOException for " + json);
+      }
+      catch (IOException e) {
+      }
+      try {
+        validator.view(badJwt);
+        Assert.fail("Expected SADValidationException for " + json);
+      }
+      catch (SADValidationException e) {
+        Assert.assertEquals(ErrorCode.BAD_SAD_FORMAT, e.getErrorCode());
+      }
+    }
+
+    String jwt = this.sadFactory.createJwt(this.getTestSAD());
+    validator.setMaxJwtSize(jwt.length() - 1);
+    try {
+      validator.view(jwt);
+      Assert.fail("Expected SADValidationException - JWT_SIZE_EXCEEDED");
+    }
+    catch (SADValidationException e) {
+      Assert.assertEquals(ErrorCode.JWT_SIZE_EXCEEDED, e.getErrorCode());
+    }
+  }
+
   /**
    * Tests validation of SAD by supplying expected parameters.
    * 
@@ -121,6 +237,181 @@ public class SADParserTest extends OpenSAMLTestBase {
       SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
   }
 
+  /**
+   * Tests that verifiers are cached and that the key that last verified a SAD is tried first.
+   *
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testVerifierCache() throws Exception {
+
+    SADValidator validator = SADParser.getValidator(this.wrongValidationCertificate, this.validationCertificate);
+
+    validator.validate(this.sadFactory.createJwt(this.getTestSAD()), IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID,
+      LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+
+    Assert.assertEquals(0, validator.getVerifierCache().getHits());
+    Assert.assertEquals(2, validator.getVerifierCache().getMisses());
+
+    validator.validate(this.sadFactory.createJwt(this.getTestSAD()), IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID,
+      LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+
+    // The working key should now be tried first ...
+    Assert.assertEquals(1, validator.getVerifierCache().getHits());
+    Assert.assertEquals(2, validator.getVerifierCache().getMisses());
+  }
+
+  /**
+   * Tests that the validator uses the key identified in the JWS header instead of trying all keys.
+   *
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testKeyIdentifier() throws Exception {
+    
+    for (SADFactory.KeyIdentifierType type : new SADFactory.KeyIdentifierType[] { SADFactory.KeyIdentifierType.KEY_ID,
+        SADFactory.KeyIdentifierType.X509_SHA256_THUMBPRINT }) {
+
+      this.sadFactory.setKeyIdentifierType(type);
+      try {
+        SADValidator validator = SADParser.getValidator(this.wrongValidationCertificate, this.validationCertificate);
+
+        validator.validate(this.sadFactory.createJwt(this.getTestSAD()), IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID,
+          LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+
+        // Only the matching key should have been used ...
+        Assert.assertEquals(1, validator.getVerifierCache().getMisses());
+      }
+      finally {
+        this.sadFactory.setKeyIdentifierType(SADFactory.KeyIdentifierType.NONE);
+      }
+    }
+  }
+
+  /**
+   * Tests batch validation where one of the items is invalid.
+   *
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testBatchValidation() throws Exception {
+
+    SADBatchValidator batchValidator = new SADBatchValidator(SADParser.getValidator(this.validationCertificate));
+
+    List<SADBatchValidator.Item> items = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      items.add(new SADBatchValidator.Item(this.sadFactory.createJwt(this.getTestSAD()), IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID,
+        LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID));
+    }
+    items.add(5, new SADBatchValidator.Item("JWT_THAT_IS_NOT_A_JWT", IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID,
+      LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID));
+
+    List<SADBatchValidator.Result> results = batchValidator.validate(items);
+
+    Assert.assertEquals(items.size(), results.size());
+    for (int i = 0; i < results.size(); i++) {
+      Assert.assertSame(items.get(i), results.get(i).getItem());
+      if (i == 5) {
+        Assert.assertFalse(results.get(i).isValid());
+        Assert.assertEquals(ErrorCode.JWT_PARSE_ERROR, results.get(i).getErrorCode());
+      }
+      else {
+        Assert.assertTrue(results.get(i).isValid());
+        Assert.assertNotNull(results.get(i).getSad());
+      }
+    }
+  }
+
+  /**
+   * Tests that items rejected by the executor are validated on the calling thread.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testBatchValidationRejected() throws Exception {
+
+    SADBatchValidator batchValidator = new SADBatchValidator(SADParser.getValidator(this.validationCertificate));
+    AtomicInteger submitted = new AtomicInteger();
+    batchValidator.setExecutor(r -> {
+      if (submitted.incrementAndGet() % 2 == 0) {
+        throw new RejectedExecutionException("Queue is full");
+      }
+      r.run();
+    });
+
+    List<SADBatchValidator.Item> items = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      items.add(new SADBatchValidator.Item(this.sadFactory.createJwt(this.getTestSAD()), IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID,
+        LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID));
+    }
+    List<SADBatchValidator.Result> results = batchValidator.validate(items);
+
+    Assert.assertEquals(4, submitted.get());
+    Assert.assertEquals(items.size(), results.size());
+    for (SADBatchValidator.Result result : results) {
+      Assert.assertTrue(result.isValid());
+    }
+  }
+
+  /**
+   * Tests that an unexpected error for one item is reported in that item's result and does not abort the batch.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testBatchValidationUnexpectedError() throws Exception {
+
+    SADValidator validator = new SADValidator(this.validationCertificate) {
+      @Override
+      public SAD validate(String sadJwt, String idpEntityID, String expectedRecipientEntityID, String expectedSubject,
+          String expectedLoa, String sadRequestID, int expectedNoDocs, String signRequestID) throws SADValidationException {
+        if ("BUGGY".equals(sadJwt)) {
+          throw new IllegalStateException("Simulated bug");
+        }
+        return super.validate(sadJwt, idpEntityID, expectedRecipientEntityID, expectedSubject, expectedLoa, sadRequestID,
+          expectedNoDocs, signRequestID);
+      }
+    };
+    SADBatchValidator batchValidator = new SADBatchValidator(validator);
+    AtomicInteger submitted = new AtomicInteger();
+    batchValidator.setExecutor(r -> {
+      if (submitted.incrementAndGet() % 2 == 0) {
+        throw new RejectedExecutionException("Queue is full");
+      }
+      r.run();
+    });
+
+    List<SADBatchValidator.Item> items = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      items.add(new SADBatchValidator.Item(i % 2 == 0 ? "BUGGY" : this.sadFactory.createJwt(this.getTestSAD()), IDP_ENTITYID,
+        SIGNSERVICE_ENTITYID, USER_ID, LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1,
+        SIGN_REQUEST_ID));
+    }
+    items.add(new SADBatchValidator.Item("BUGGY", IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID,
+      LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID));
+
+    List<SADBatchValidator.Result> results = batchValidator.validate(items);
+
+    Assert.assertEquals(items.size(), results.size());
+    for (int i = 0; i < results.size(); i++) {
+      Assert.assertSame(items.get(i), results.get(i).getItem());
+      if ("BUGGY".equals(items.get(i).getSadJwt())) {
+        Assert.assertFalse(results.get(i).isValid());
+        Assert.assertNull(results.get(i).getErrorCode());
+        Assert.assertTrue(results.get(i).getUnexpectedError() instanceof IllegalStateException);
+      }
+      else {
+        Assert.assertTrue(results.get(i).isValid());
+        Assert.assertNull(results.get(i).getUnexpectedError());
+      }
+    }
+  }
+
   /**
    * Tests validation of SAD by supplying an {@code AuthnRequest}.
    * 
@@ -150,6 +441,80 @@ public class SADParserTest extends OpenSAMLTestBase {
     validator.validate(authnRequest, assertion);
   }
 
+  /**
+   * Tests validation using a {@link SADRequestRecord} saved in a {@link SADRequestStore}.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testValidateSADRequestRecord() throws Exception {
+
+    SAD sad = this.getTestSAD();
+    String jwt = this.sadFactory.createJwt(sad);
+
+    SADRequest sadRequest = SADRequestBuilder.builder()
+      .id(SAD_REQUEST_ID)
+      .requesterID(SIGNSERVICE_ENTITYID)
+      .signRequestID(SIGN_REQUEST_ID)
+      .docCount(1)
+      .requestedVersion(SADVersion.VERSION_10)
+      .build();
+
+    SADRequestStore store = new InMemorySADRequestStore();
+    SADRequestRecord record = SADRequestRecord.of(buildAuthnRequest(sadRequest));
+    store.put(record);
+
+    Assertion assertion = buildAssertion(IDP_ENTITYID, LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3);
+    addAttribute(assertion, AttributeConstants.ATTRIBUTE_NAME_PERSONAL_IDENTITY_NUMBER, USER_ID);
+    addAttribute(assertion, AttributeConstants.ATTRIBUTE_NAME_SAD, jwt);
+
+    SADRequestRecord savedRecord = store.remove(SAD_REQUEST_ID);
+    Assert.assertEquals(record, savedRecord);
+    Assert.assertNull(store.get(SAD_REQUEST_ID));
+
+    SADValidator validator = SADParser.getValidator(this.validationCertificate);
+    validator.validate(savedRecord, assertion);
+  }
+
+  /**
+   * Tests that a missing {@code SADRequestRecord} is reported as an {@code IllegalArgumentException}.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testNullSADRequestRecord() throws Exception {
+    Assertion assertion = buildAssertion(IDP_ENTITYID, LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3);
+    addAttribute(assertion, AttributeConstants.ATTRIBUTE_NAME_PERSONAL_IDENTITY_NUMBER, USER_ID);
+    addAttribute(assertion, AttributeConstants.ATTRIBUTE_NAME_SAD, this.sadFactory.createJwt(this.getTestSAD()));
+
+    SADValidator validator = SADParser.getValidator(this.validationCertificate);
+    validator.validate((SADRequestRecord) null, assertion);
+  }
+
+  /**
+   * Tests that records are evicted from the {@link InMemorySADRequestStore} after their time-to-live.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testSADRequestStoreExpiry() throws Exception {
+    InMemorySADRequestStore store = new InMemorySADRequestStore(Duration.ofMillis(50));
+    store.put(new SADRequestRecord(SAD_REQUEST_ID, SIGNSERVICE_ENTITYID, SIGN_REQUEST_ID, 2,
+      Arrays.asList(LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3)));
+
+    SADRequestRecord record = store.get(SAD_REQUEST_ID);
+    Assert.assertEquals(2, record.getDocCount());
+    Assert.assertEquals(Arrays.asList(LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3), record.getRequestedLoas());
+
+    Thread.sleep(100);
+    Assert.assertNull(store.get(SAD_REQUEST_ID));
+    store.evictExpired(System.currentTimeMillis());
+    Assert.assertEquals(0, store.size());
+  }
+
   /**
    * A SADRequest needs to be present in an AuthnRequest.
    * 
@@ -392,6 +757,131 @@ public class SADParserTest extends OpenSAMLTestBase {
     }
   }
   
+  /**
+   * Verifies that a SAD can not be used twice if a replay cache is installed.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testReplay() throws Exception {
+
+    String jwt = this.sadFactory.createJwt(this.getTestSAD());
+
+    SADValidator validator = SADParser.getValidator(this.validationCertificate);
+    validator.setReplayCache(new SADReplayCache(1, SADReplayCache.DEFAULT_BUCKET_SIZE));
+
+    validator.validate(jwt, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3,
+      SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+    try {
+      validator.validate(jwt, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3,
+        SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+      Assert.fail("Expected SADValidationException - REPLAY_DETECTED");
+    }
+    catch (SADValidationException e) {
+      Assert.assertEquals("Expected error code REPLAY_DETECTED", ErrorCode.REPLAY_DETECTED, e.getErrorCode());
+    }
+
+    // A full cache is not reported as a replay ...
+    //
+    String jwt2 = this.sadFactory.createJwt(this.getTestSAD());
+    try {
+      validator.validate(jwt2, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3,
+        SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+      Assert.fail("Expected SADValidationException - REPLAY_CACHE_FULL");
+    }
+    catch (SADValidationException e) {
+      Assert.assertEquals("Expected error code REPLAY_CACHE_FULL", ErrorCode.REPLAY_CACHE_FULL, e.getErrorCode());
+    }
+  }
+  
+  /**
+   * Verifies that the cheap checks (size, algorithm and claims) are performed before the signature is verified.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testValidationOrder() throws Exception {
+
+    String jwt = this.sadFactory.createJwt(this.getTestSAD());
+
+    SADValidator validator = SADParser.getValidator(this.validationCertificate);
+    validator.setMaxJwtSize(jwt.length() - 1);
+    try {
+      validator.validate(jwt, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3,
+        SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+      Assert.fail("Expected SADValidationException - JWT_SIZE_EXCEEDED");
+    }
+    catch (SADValidationException e) {
+      Assert.assertEquals("Expected error code JWT_SIZE_EXCEEDED", ErrorCode.JWT_SIZE_EXCEEDED, e.getErrorCode());
+    }
+
+    validator = SADParser.getValidator(this.validationCertificate);
+    validator.setAllowedAlgorithms(Arrays.asList("ES256"));
+    try {
+      validator.validate(jwt, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3,
+        SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+      Assert.fail("Expected SADValidationException - ALGORITHM_NOT_ALLOWED");
+    }
+    catch (SADValidationException e) {
+      Assert.assertEquals("Expected error code ALGORITHM_NOT_ALLOWED", ErrorCode.ALGORITHM_NOT_ALLOWED, e.getErrorCode());
+    }
+
+    // An expired SAD should be rejected without verifying the signature.
+    //
+    SAD sad = this.getTestSAD();
+    sad.setIssuedAt(LocalDateTime.of(2017, 1, 1, 13, 10).toInstant(ZoneOffset.UTC));
+    sad.setExpiry(LocalDateTime.of(2017, 1, 1, 13, 11).toInstant(ZoneOffset.UTC));
+    jwt = this.sadFactory.createJwt(sad);
+
+    validator = SADParser.getValidator(this.wrongValidationCertificate);
+    try {
+      validator.validate(jwt, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3,
+        SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+      Assert.fail("Expected SADValidationException - SAD_EXPIRED");
+    }
+    catch (SADValidationException e) {
+      Assert.assertEquals("Expected error code SAD_EXPIRED", ErrorCode.SAD_EXPIRED, e.getErrorCode());
+    }
+    Assert.assertEquals(0, validator.getVerifierCache().getHits() + validator.getVerifierCache().getMisses());
+  }
+
+  /**
+   * Tests validation using validators from a {@link SADValidatorRegistry}.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testValidatorRegistry() throws Exception {
+
+    EntityDescriptor idpMetadata = new IdpEntityDescriptorBuilder()
+      .entityID(IDP_ENTITYID)
+      .keyDescriptors(KeyDescriptorBuilder.builder()
+        .use(UsageType.SIGNING)
+        .certificate(new ClassPathResource("Litsec_SAML_Signing.crt").getInputStream())
+        .build())
+      .build();
+
+    SADValidatorRegistry registry = new SADValidatorRegistry();
+    SADValidator validator = registry.getValidator(idpMetadata);
+    Assert.assertSame(validator, registry.getValidator(idpMetadata));
+
+    validator.validate(this.sadFactory.createJwt(this.getTestSAD()), IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID,
+      LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+
+    // New metadata for the IdP gives a new validator ...
+    //
+    EntityDescriptor refreshedMetadata = XMLObjectSupport.cloneXMLObject(idpMetadata);
+    SADValidator validator2 = registry.getValidator(refreshedMetadata);
+    Assert.assertNotSame(validator, validator2);
+    Assert.assertSame(registry.getVerifierCache(), validator2.getVerifierCache());
+
+    validator2.validate(this.sadFactory.createJwt(this.getTestSAD()), IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID,
+      LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+  }
+
   /**
    * Verifies that the issuer is correct.
    * 
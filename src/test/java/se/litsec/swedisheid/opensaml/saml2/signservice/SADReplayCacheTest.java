@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for {@code SADReplayCache}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SADReplayCacheTest {
+
+  private static final String ISSUER = "https://idp.svelegtest.se/idp";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testReplay() throws Exception {
+    SADReplayCache cache = new SADReplayCache();
+    long now = System.currentTimeMillis() / 1000;
+
+    Assert.assertTrue(cache.checkAndRecord(ISSUER, "jti-1", now + 300, now));
+    Assert.assertTrue(cache.checkAndRecord(ISSUER, "jti-2", now + 300, now));
+    Assert.assertTrue(cache.checkAndRecord("https://another.idp.se", "jti-1", now + 300, now));
+    Assert.assertFalse(cache.checkAndRecord(ISSUER, "jti-1", now + 300, now));
+    Assert.assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    SADReplayCache cache = new SADReplayCache(100, 10);
+    long now = 1000000;
+
+    Assert.assertTrue(cache.checkAndRecord(ISSUER, "jti-1", now + 5, now));
+    Assert.assertTrue(cache.checkAndRecord(ISSUER, "jti-2", now + 25, now));
+
+    // Bucket of jti-1 has expired, but not the one for jti-2 ...
+    cache.evictExpired(now + 10);
+    Assert.assertFalse(cache.contains(ISSUER, "jti-1"));
+    Assert.assertTrue(cache.contains(ISSUER, "jti-2"));
+    Assert.assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void testMaxEntries() throws Exception {
+    SADReplayCache cache = new SADReplayCache(2, 10);
+    long now = 1000000;
+
+    Assert.assertTrue(cache.checkAndRecord(ISSUER, "jti-1", now + 5, now));
+    Assert.assertTrue(cache.checkAndRecord(ISSUER, "jti-2", now + 5, now));
+    Assert.assertFalse(cache.checkAndRecord(ISSUER, "jti-3", now + 5, now));
+    Assert.assertEquals(SADReplayCache.Result.CACHE_FULL, cache.record(ISSUER, "jti-3", now + 5, now));
+    Assert.assertEquals(SADReplayCache.Result.REPLAY, cache.record(ISSUER, "jti-1", now + 5, now));
+    Assert.assertEquals(2, cache.size());
+
+    // Once the entries have expired there is room again ...
+    Assert.assertTrue(cache.checkAndRecord(ISSUER, "jti-3", now + 35, now + 10));
+  }
+
+  @Test
+  public void testConcurrentRecord() throws Exception {
+    final SADReplayCache cache = new SADReplayCache(1000, 10);
+    final long now = 1000000;
+    final AtomicInteger recorded = new AtomicInteger();
+
+    // Four threads record the same 2000 JWT ID:s (in different order) into a cache that only holds 1000 entries ...
+    //
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final int offset = t * 500;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 2000; i++) {
+          if (cache.record(ISSUER, "jti-" + ((i + offset) % 2000), now + 300, now) == SADReplayCache.Result.RECORDED) {
+            recorded.incrementAndGet();
+          }
+          Assert.assertTrue(cache.size() <= 1000);
+        }
+      }));
+    }
+    for (Future<?> f : futures) {
+      f.get();
+    }
+    Assert.assertEquals(1000, recorded.get());
+    Assert.assertEquals(1000, cache.size());
+
+    // Add entries to a bucket while it is being evicted. No entry may be left behind without a bucket ...
+    //
+    final SADReplayCache cache2 = new SADReplayCache(100000, 1);
+    final AtomicBoolean done = new AtomicBoolean();
+    futures.clear();
+    for (int t = 0; t < 3; t++) {
+      final int thread = t;
+      futures.add(executor.submit(() -> {
+        for (int i = 0; i < 20000; i++) {
+          cache2.record(ISSUER, "jti-" + thread + "-" + i, now + 1, now);
+        }
+      }));
+    }
+    Future<?> evictor = executor.submit(() -> {
+      while (!done.get()) {
+        cache2.evictExpired(now + 2);
+      }
+    });
+    for (Future<?> f : futures) {
+      f.get();
+    }
+    done.set(true);
+    evictor.get();
+    executor.shutdown();
+
+    cache2.evictExpired(now + 2);
+    Assert.assertEquals(0, cache2.size());
+  }
+
+  @Test
+  public void testFileStorage() throws Exception {
+    Path file = this.folder.getRoot().toPath().resolve("sad-replay.cache");
+    long now = System.currentTimeMillis() / 1000;
+
+    FileSADReplayCacheStorage storage = new FileSADReplayCacheStorage(file);
+    SADReplayCache cache = new SADReplayCache(100, 10, storage);
+    Assert.assertTrue(cache.checkAndRecord(ISSUER, "jti-1", now + 300, now));
+    Assert.assertTrue(cache.checkAndRecord(ISSUER, "jti-2", now + 300, now));
+    storage.close();
+
+    // Simulate a restart ...
+    storage = new FileSADReplayCacheStorage(file);
+    cache = new SADReplayCache(100, 10, storage);
+    Assert.assertEquals(2, cache.size());
+    Assert.assertFalse(cache.checkAndRecord(ISSUER, "jti-1", now + 300, now));
+    Assert.assertTrue(cache.checkAndRecord(ISSUER, "jti-3", now + 300, now));
+
+    // Evict everything and restart ...
+    cache.evictExpired(now + 1000);
+    storage.close();
+    cache = new SADReplayCache(100, 10, new FileSADReplayCacheStorage(file));
+    Assert.assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testFileStorageRejectsAfterClose() throws Exception {
+    Path file = this.folder.getRoot().toPath().resolve("sad-replay-closed.cache");
+    long now = System.currentTimeMillis() / 1000;
+
+    FileSADReplayCacheStorage storage = new FileSADReplayCacheStorage(file);
+    storage.store("jti-1", now + 300);
+    storage.close();
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        storage.store("jti-closed-" + i, now + 300);
+        Assert.fail("Expected IOException");
+      }
+      catch (IOException e) {
+        Assert.assertEquals("SAD replay cache storage is closed", e.getMessage());
+      }
+    }
+    try {
+      storage.evict(now);
+      Assert.fail("Expected IOException");
+    }
+    catch (IOException e) {
+      Assert.assertEquals("SAD replay cache storage is closed", e.getMessage());
+    }
+
+    List<String> keys = new ArrayList<>();
+    FileSADReplayCacheStorage storage2 = new FileSADReplayCacheStorage(file);
+    storage2.load((key, expiry) -> keys.add(key));
+    storage2.close();
+    Assert.assertEquals(1, keys.size());
+    Assert.assertEquals("jti-1", keys.get(0));
+  }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.security.SignatureException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test cases for {@code SADSigningExecutor}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SADSigningExecutorTest {
+
+  @Test
+  public void testSubmit() throws Exception {
+    SADSigningExecutor executor = new SADSigningExecutor(2, 10, null);
+    try {
+      Assert.assertEquals("jwt", executor.submit(() -> "jwt").get(5, TimeUnit.SECONDS));
+
+      CompletableFuture<String> f = executor.submit(() -> {
+        throw new SignatureException("failed");
+      });
+      try {
+        f.get(5, TimeUnit.SECONDS);
+        Assert.fail("Expected ExecutionException");
+      }
+      catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof SignatureException);
+      }
+
+      // Errors should also complete the future ...
+      CompletableFuture<String> f2 = executor.submit(() -> {
+        throw new AssertionError("failed");
+      });
+      try {
+        f2.get(5, TimeUnit.SECONDS);
+        Assert.fail("Expected ExecutionException");
+      }
+      catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof AssertionError);
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testCompletionExecutor() throws Exception {
+    ExecutorService completer = Executors.newSingleThreadExecutor(r -> new Thread(r, "completer"));
+    SADSigningExecutor executor = new SADSigningExecutor(1, 10, null, completer);
+    CountDownLatch latch = new CountDownLatch(1);
+    try {
+      // Dependent stages should not run on the signing thread ...
+      CompletableFuture<String> thread = executor.submit(() -> {
+        latch.await();
+        return "jwt";
+      }).thenApply(jwt -> Thread.currentThread().getName());
+
+      latch.countDown();
+      Assert.assertEquals("completer", thread.get(5, TimeUnit.SECONDS));
+
+      // If the completion executor is shut down, the signing thread completes the future ...
+      completer.shutdown();
+      Assert.assertEquals("jwt", executor.submit(() -> "jwt").get(5, TimeUnit.SECONDS));
+    }
+    finally {
+      latch.countDown();
+      executor.shutdown();
+      completer.shutdown();
+    }
+  }
+
+  @Test
+  public void testQueueFull() throws Exception {
+    SADSigningExecutor executor = new SADSigningExecutor(1, 1, null);
+    CountDownLatch latch = new CountDownLatch(1);
+    try {
+      CompletableFuture<String> running = executor.submit(() -> {
+        latch.await();
+        return "1";
+      });
+      // Wait until the first operation has been picked up ...
+      while (executor.getQueueSize() > 0) {
+        Thread.sleep(10);
+      }
+      CompletableFuture<String> queued = executor.submit(() -> "2");
+      CompletableFuture<String> rejected = executor.submit(() -> "3");
+
+      Assert.assertTrue(rejected.isCompletedExceptionally());
+      Assert.assertEquals(1, executor.getRejectedCount());
+      try {
+        rejected.get();
+        Assert.fail("Expected ExecutionException");
+      }
+      catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+      }
+
+      latch.countDown();
+      Assert.assertEquals("1", running.get(5, TimeUnit.SECONDS));
+      Assert.assertEquals("2", queued.get(5, TimeUnit.SECONDS));
+    }
+    finally {
+      latch.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    SADSigningExecutor executor = new SADSigningExecutor(1, 10, Duration.ofMillis(100));
+    CountDownLatch latch = new CountDownLatch(1);
+    AtomicBoolean executed = new AtomicBoolean();
+    try {
+      CompletableFuture<String> blocking = executor.submit(() -> {
+        latch.await();
+        return "1";
+      });
+      CompletableFuture<String> queued = executor.submit(() -> {
+        executed.set(true);
+        return "2";
+      });
+      try {
+        queued.get(5, TimeUnit.SECONDS);
+        Assert.fail("Expected ExecutionException");
+      }
+      catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof TimeoutException);
+      }
+      Assert.assertTrue(blocking.isCompletedExceptionally());
+
+      // The timed out operation that was waiting in the queue should never be executed.
+      latch.countDown();
+      executor.shutdown();
+      Thread.sleep(200);
+      Assert.assertFalse(executed.get());
+    }
+    finally {
+      latch.countDown();
+      executor.shutdown();
+    }
+  }
+
+}
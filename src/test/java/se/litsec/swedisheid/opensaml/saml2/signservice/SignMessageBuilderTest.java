@@ -15,10 +15,15 @@
  */
 package se.litsec.swedisheid.opensaml.saml2.signservice;
 
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.charset.StandardCharsets;
+
 import org.junit.Assert;
 import org.junit.Test;
 
 import se.litsec.swedisheid.opensaml.OpenSAMLTestBase;
+import se.litsec.swedisheid.opensaml.saml2.signservice.dss.Message;
 import se.litsec.swedisheid.opensaml.saml2.signservice.dss.SignMessage;
 import se.litsec.swedisheid.opensaml.saml2.signservice.dss.SignMessageMimeTypeEnum;
 
@@ -44,4 +49,36 @@ public class SignMessageBuilderTest extends OpenSAMLTestBase {
         
   }
   
+  @Test
+  public void testContentBuffer() throws Exception {
+    final String text = "Jag godkänner att skriva under dokumentet";
+
+    SignMessage msg = SignMessageBuilder.builder()
+      .mimeType(SignMessageMimeTypeEnum.TEXT)
+      .message(text)
+      .build();
+    Message message = msg.getMessage();
+
+    ByteBuffer buffer = message.getContentBuffer();
+    Assert.assertTrue(buffer.isReadOnly());
+    Assert.assertEquals(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), buffer);
+    Assert.assertEquals(text, message.getContent());
+
+    try {
+      buffer.put(0, (byte) 0);
+      Assert.fail("Expected ReadOnlyBufferException");
+    }
+    catch (ReadOnlyBufferException e) {
+    }
+
+    // Changing the value should invalidate the decoded content
+    message.setContent("Another message");
+    Assert.assertEquals(ByteBuffer.wrap("Another message".getBytes(StandardCharsets.UTF_8)), message.getContentBuffer());
+    Assert.assertEquals("Another message", message.getContent());
+
+    message.setValue(null);
+    Assert.assertNull(message.getContentBuffer());
+    Assert.assertNull(message.getContent());
+  }
+
 }
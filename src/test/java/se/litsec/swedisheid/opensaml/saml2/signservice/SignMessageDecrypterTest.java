@@ -16,6 +16,12 @@
 package se.litsec.swedisheid.opensaml.saml2.signservice;
 
 import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -81,4 +87,83 @@ public class SignMessageDecrypterTest extends OpenSAMLTestBase {
     // <ns:Message xmlns:ns="http://id.elegnamnden.se/csig/1.1/dss-ext/ns">WW91IGFyZSByZXF1ZXN0ZWQgdG8gc2lnbiB0aGUgZm9sbG93aW5nIGRvY3VtZW50OgoKRG9jdW1lbnQgbmFtZTogZjgzOGE3MDRjNjc3NDYyYjkxYWM4NjQ3ZTdkNmRmZjYueG1sClNpZ25lciBuYW1lOiBPc2thciBKb2hhbnNzb24KU2lnbmVyIElEOiBwZXJzb25hbElkZW50aXR5TnVtYmVyOiAxOTkwMDgyNTIzOTgK</ns:Message>    
   }
 
+  @Test
+  public void testConcurrentDecrypt() throws Exception {
+    final SignMessageDecrypter decrypter = new SignMessageDecrypter(this.credential);
+    decrypter.setMaxIdleDecrypters(2);
+
+    final Resource xml = new ClassPathResource("signmessage_rsa_1_5.xml");
+    final String expected = decrypter.decrypt(getSignMessage(xml)).getContent();
+    Assert.assertNotNull(expected);
+
+    final int threads = 8;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Callable<String>> tasks = new ArrayList<>();
+      for (int i = 0; i < threads * 10; i++) {
+        // Each task uses its own SignMessage object (the XML objects are not thread-safe)
+        final SignMessage signMessage = getSignMessage(xml);
+        tasks.add(() -> decrypter.decrypt(signMessage).getContent());
+      }
+      for (Future<String> f : executor.invokeAll(tasks)) {
+        Assert.assertEquals(expected, f.get());
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    Assert.assertTrue(decrypter.getIdleDecrypterCount() >= 1);
+    Assert.assertTrue(decrypter.getIdleDecrypterCount() <= 2);
+
+    // Changing the settings should discard the pool
+    decrypter.setBlacklistedAlgorithms(new ArrayList<>());
+    Assert.assertEquals(0, decrypter.getIdleDecrypterCount());
+    Assert.assertEquals(expected, decrypter.decrypt(getSignMessage(xml)).getContent());
+    Assert.assertEquals(1, decrypter.getIdleDecrypterCount());
+  }
+
+  @Test
+  public void testHsmConcurrencyLimit() throws Exception {
+    final SignMessageDecrypter decrypter = new SignMessageDecrypter(this.credential);
+    decrypter.setHsmConcurrencyLimit(1, 60000L);
+
+    final Resource xml = new ClassPathResource("signmessage_rsa_1_5.xml");
+    final int threads = 4;
+    final int count = threads * 5;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Callable<String>> tasks = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        final SignMessage signMessage = getSignMessage(xml);
+        tasks.add(() -> decrypter.decrypt(signMessage).getContent());
+      }
+      for (Future<String> f : executor.invokeAll(tasks)) {
+        Assert.assertNotNull(f.get());
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+    Assert.assertEquals(count, decrypter.getDecryptionCount());
+    Assert.assertTrue(decrypter.getDecryptionTimeNanos() > 0);
+    Assert.assertTrue(decrypter.getPermitWaitTimeNanos() > 0);
+    Assert.assertEquals(0, decrypter.getPermitTimeouts());
+
+    // Turn off the limit
+    decrypter.setHsmConcurrencyLimit(0, 0L);
+    Assert.assertNotNull(decrypter.decrypt(getSignMessage(xml)));
+
+    try {
+      decrypter.setHsmConcurrencyLimit(-1, 100L);
+      Assert.fail("Expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+    }
+  }
+
+  private static SignMessage getSignMessage(final Resource xml) throws Exception {
+    AuthnRequest authnRequest = ObjectUtils.unmarshall(xml.getInputStream(), AuthnRequest.class);
+    return (SignMessage) authnRequest.getExtensions().getUnknownXMLObjects(SignMessage.DEFAULT_ELEMENT_NAME).get(0);
+  }
+
 }
@@ -17,11 +17,21 @@ package se.litsec.swedisheid.opensaml.saml2.signservice;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.ext.saml2alg.DigestMethod;
 import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.Extensions;
 import org.opensaml.xmlsec.algorithm.AlgorithmDescriptor;
 import org.opensaml.xmlsec.algorithm.AlgorithmRegistry;
 import org.opensaml.xmlsec.algorithm.AlgorithmSupport;
@@ -79,6 +89,71 @@ public class SignMessageDigestIssuerTest extends OpenSAMLTestBase {
       AttributeUtils.getAttributeStringValue(attr));
   }
 
+  @Test
+  public void testRecipientPreference() throws Exception {
+
+    final SignMessageDigestIssuer issuer = new SignMessageDigestIssuer();
+
+    final SignMessage signMessage = SignMessageBuilder.builder()
+      .message(SignMessageDigestIssuerTest.CONTENTS)
+      .mimeType(SignMessageMimeTypeEnum.TEXT)
+      .build();
+
+    final EntityDescriptor metadata = this.createMetadata(SignatureConstants.ALGO_ID_DIGEST_SHA512);
+    for (int i = 0; i < 2; i++) {
+      Assert.assertEquals(
+        String.format("%s;%s", SignatureConstants.ALGO_ID_DIGEST_SHA512,
+          this.hash(CONTENTS, SignatureConstants.ALGO_ID_DIGEST_SHA512)),
+        AttributeUtils.getAttributeStringValue(issuer.create(signMessage.getMessage(), metadata)));
+    }
+
+    // Refreshed metadata (new object) - the preference should be re-read
+    final EntityDescriptor refreshed = this.createMetadata(SignatureConstants.ALGO_ID_DIGEST_SHA384);
+    Assert.assertEquals(
+      String.format("%s;%s", SignatureConstants.ALGO_ID_DIGEST_SHA384,
+        this.hash(CONTENTS, SignatureConstants.ALGO_ID_DIGEST_SHA384)),
+      AttributeUtils.getAttributeStringValue(issuer.create(signMessage.getMessage(), refreshed)));
+  }
+
+  @Test
+  public void testConcurrentCreate() throws Exception {
+
+    final SignMessageDigestIssuer issuer = new SignMessageDigestIssuer();
+    final ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      final List<Callable<Boolean>> tasks = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        final String contents = CONTENTS + i;
+        tasks.add(() -> {
+          final SignMessage signMessage = SignMessageBuilder.builder()
+            .message(contents)
+            .mimeType(SignMessageMimeTypeEnum.TEXT)
+            .build();
+          final String expected = String.format("%s;%s", SignMessageDigestIssuer.DEFAULT_DIGEST_METHOD,
+            this.hash(contents, SignMessageDigestIssuer.DEFAULT_DIGEST_METHOD));
+          return expected.equals(AttributeUtils.getAttributeStringValue(issuer.create(signMessage.getMessage())));
+        });
+      }
+      for (final Future<Boolean> f : executor.invokeAll(tasks)) {
+        Assert.assertTrue(f.get());
+      }
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private EntityDescriptor createMetadata(final String digestMethod) {
+    final EntityDescriptor metadata = (EntityDescriptor) XMLObjectSupport.buildXMLObject(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+    metadata.setEntityID("https://www.example.com/sp");
+    final Extensions extensions = (Extensions) XMLObjectSupport.buildXMLObject(Extensions.DEFAULT_ELEMENT_NAME);
+    final DigestMethod dm = (DigestMethod) XMLObjectSupport.buildXMLObject(DigestMethod.DEFAULT_ELEMENT_NAME);
+    dm.setAlgorithm(digestMethod);
+    extensions.getUnknownXMLObjects().add(dm);
+    metadata.setExtensions(extensions);
+    return metadata;
+  }
+
   private String hash(final String text, final String digestAlgorithm) throws Exception {
     final AlgorithmRegistry registry = AlgorithmSupport.getGlobalAlgorithmRegistry();
     final AlgorithmDescriptor descriptor = registry.get(digestAlgorithm);
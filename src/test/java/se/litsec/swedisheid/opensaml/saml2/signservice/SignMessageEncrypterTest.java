@@ -1,23 +1,30 @@
 package se.litsec.swedisheid.opensaml.saml2.signservice;
 
 import java.security.KeyStore;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.stream.Collectors;
 
 import org.junit.Assert;
 import org.junit.Test;
 import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.util.XMLObjectSupport;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml.saml2.metadata.KeyDescriptor;
 import org.opensaml.security.credential.Credential;
 import org.opensaml.security.credential.UsageType;
 import org.opensaml.security.x509.impl.KeyStoreX509CredentialAdapter;
+import org.opensaml.xmlsec.encryption.AgreementMethod;
+import org.opensaml.xmlsec.encryption.support.DecryptionException;
 import org.opensaml.xmlsec.encryption.support.EncryptionConstants;
 import org.opensaml.xmlsec.encryption.support.EncryptionException;
+import org.opensaml.xmlsec.impl.BasicEncryptionConfiguration;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 
 import net.shibboleth.utilities.java.support.component.ComponentInitializationException;
+import net.shibboleth.utilities.java.support.xml.SerializeSupport;
 import se.litsec.opensaml.saml2.metadata.build.IdpEntityDescriptorBuilder;
 import se.litsec.opensaml.saml2.metadata.build.KeyDescriptorBuilder;
 import se.litsec.opensaml.saml2.metadata.provider.CompositeMetadataProvider;
@@ -176,6 +183,275 @@ public class SignMessageEncrypterTest extends OpenSAMLTestBase {
     Assert.assertEquals(CONTENTS, decryptedMsg);
   }  
 
+  @Test
+  public void testParametersCache() throws Exception {
+    EntityDescriptor ed = this.createMetadata(KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("Litsec_SAML_Encryption.crt").getInputStream())
+      .build(), KeyDescriptorBuilder.builder()
+        .use(UsageType.SIGNING)
+        .certificate(new ClassPathResource("Litsec_SAML_Signing.crt").getInputStream())
+        .build());
+    MetadataProvider metadataProvider = this.createMetadataProvider(ed);
+    SignMessageEncryptionParametersCache cache = new SignMessageEncryptionParametersCache(metadataProvider);
+
+    SignMessageEncrypter encrypter = new SignMessageEncrypter(new SAMLObjectEncrypter(metadataProvider));
+    encrypter.setParametersCache(cache);
+
+    for (int i = 0; i < 3; i++) {
+      SignMessage signMessage = SignMessageBuilder.builder()
+        .displayEntity(ENTITY_ID)
+        .message(CONTENTS + i)
+        .mimeType(SignMessageMimeTypeEnum.TEXT)
+        .mustShow(true)
+        .build();
+      encrypter.encrypt(signMessage, ENTITY_ID);
+      Assert.assertNotNull(signMessage.getEncryptedMessage());
+
+      String decryptedMsg = this.decrypt(signMessage, new ClassPathResource("Litsec_SAML_Encryption.jks"), "secret",
+        "litsec_saml_encryption");
+      Assert.assertEquals(CONTENTS + i, decryptedMsg);
+    }
+    Assert.assertEquals(1, cache.getMisses());
+    Assert.assertEquals(2, cache.getHits());
+
+    cache.invalidate(ENTITY_ID);
+    Assert.assertNotNull(cache.getEncryptionParameters(ENTITY_ID, null));
+    Assert.assertEquals(2, cache.getMisses());
+
+    try {
+      cache.getEncryptionParameters("http://www.example.com/unknown", null);
+      Assert.fail("Expected EncryptionException");
+    }
+    catch (EncryptionException e) {
+    }
+  }
+
+  @Test
+  public void testParametersCacheDefaultConfiguration() throws Exception {
+    EntityDescriptor ed = this.createMetadata(KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("Litsec_SAML_Encryption.crt").getInputStream())
+      .build());
+    MetadataProvider metadataProvider = this.createMetadataProvider(ed);
+    SignMessageEncryptionParametersCache cache = new SignMessageEncryptionParametersCache(metadataProvider);
+
+    SignMessageEncrypter encrypter = new SignMessageEncrypter(new SAMLObjectEncrypter(metadataProvider));
+    encrypter.setParametersCache(cache);
+
+    // Without a default configuration for the cache, the global configuration is used ...
+    SignMessage signMessage = SignMessageBuilder.builder()
+      .displayEntity(ENTITY_ID)
+      .message(CONTENTS)
+      .mimeType(SignMessageMimeTypeEnum.TEXT)
+      .build();
+    encrypter.encrypt(signMessage, ENTITY_ID);
+    Assert.assertNotEquals(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES256,
+      signMessage.getEncryptedMessage().getEncryptedData().getEncryptionMethod().getAlgorithm());
+
+    BasicEncryptionConfiguration configuration = new BasicEncryptionConfiguration();
+    configuration.setDataEncryptionAlgorithms(Arrays.asList(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES256));
+    cache.setDefaultEncryptionConfiguration(configuration);
+
+    signMessage = SignMessageBuilder.builder()
+      .displayEntity(ENTITY_ID)
+      .message(CONTENTS)
+      .mimeType(SignMessageMimeTypeEnum.TEXT)
+      .build();
+    encrypter.encrypt(signMessage, ENTITY_ID);
+    Assert.assertEquals(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES256,
+      signMessage.getEncryptedMessage().getEncryptedData().getEncryptionMethod().getAlgorithm());
+    Assert.assertEquals(CONTENTS, this.decrypt(signMessage, new ClassPathResource("Litsec_SAML_Encryption.jks"), "secret",
+      "litsec_saml_encryption"));
+
+    // An equal configuration created for the message gets the cached parameters ...
+    BasicEncryptionConfiguration equalConfiguration = new BasicEncryptionConfiguration();
+    equalConfiguration.setDataEncryptionAlgorithms(Arrays.asList(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES256));
+    long hits = cache.getHits();
+    signMessage = SignMessageBuilder.builder()
+      .displayEntity(ENTITY_ID)
+      .message(CONTENTS)
+      .mimeType(SignMessageMimeTypeEnum.TEXT)
+      .build();
+    encrypter.encrypt(signMessage, ENTITY_ID, equalConfiguration);
+    Assert.assertEquals(hits + 1, cache.getHits());
+  }
+
+  @Test
+  public void testMultipleRecipients() throws Exception {
+    final String entityID2 = "http://www.example.com/idp2";
+
+    EntityDescriptor ed1 = this.createMetadata(ENTITY_ID, KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("Litsec_SAML_Encryption.crt").getInputStream())
+      .build());
+    EntityDescriptor ed2 = this.createMetadata(entityID2, KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("Litsec_SAML_Signing.crt").getInputStream())
+      .build());
+    MetadataProvider metadataProvider = this.createMetadataProvider(ed1, ed2);
+
+    SignMessageEncrypter encrypter = new SignMessageEncrypter(new SAMLObjectEncrypter(metadataProvider));
+    encrypter.setParametersCache(new SignMessageEncryptionParametersCache(metadataProvider));
+
+    SignMessage signMessage = SignMessageBuilder.builder()
+      .message(CONTENTS)
+      .mimeType(SignMessageMimeTypeEnum.TEXT)
+      .mustShow(true)
+      .build();
+    encrypter.encrypt(signMessage, Arrays.asList(ENTITY_ID, entityID2), null);
+
+    Assert.assertNotNull(signMessage.getEncryptedMessage());
+    Assert.assertEquals(2, signMessage.getEncryptedMessage().getEncryptedData().getKeyInfo().getEncryptedKeys().size());
+
+    // Each recipient can decrypt the message using its own key
+    Assert.assertEquals(CONTENTS, this.decrypt(signMessage, new ClassPathResource("Litsec_SAML_Encryption.jks"), "secret",
+      "litsec_saml_encryption"));
+    Assert.assertEquals(CONTENTS, this.decrypt(signMessage, new ClassPathResource("Litsec_SAML_Signing.jks"), "secret",
+      "litsec_saml_signing"));
+  }
+
+  @Test
+  public void testMultipleRecipientsLocalEntityID() throws Exception {
+    final String entityID2 = "http://www.example.com/idp2";
+
+    EntityDescriptor ed1 = this.createMetadata(ENTITY_ID, KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("Litsec_SAML_Encryption.crt").getInputStream())
+      .build());
+    EntityDescriptor ed2 = this.createMetadata(entityID2, KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("Litsec_SAML_Signing.crt").getInputStream())
+      .build());
+    MetadataProvider metadataProvider = this.createMetadataProvider(ed1, ed2);
+
+    SignMessageEncrypter encrypter = new SignMessageEncrypter(new SAMLObjectEncrypter(metadataProvider));
+
+    SignMessage signMessage = SignMessageBuilder.builder()
+      .message(CONTENTS)
+      .mimeType(SignMessageMimeTypeEnum.TEXT)
+      .mustShow(true)
+      .build();
+
+    // Multi-recipient encryption requires a cache ...
+    try {
+      encrypter.encrypt(signMessage, Arrays.asList(ENTITY_ID, entityID2), null);
+      Assert.fail("Expected EncryptionException");
+    }
+    catch (EncryptionException e) {
+    }
+
+    encrypter.setParametersCache(new SignMessageEncryptionParametersCache(metadataProvider));
+    encrypter.encrypt(signMessage, Arrays.asList(ENTITY_ID, entityID2), null);
+
+    // Each IdP only decrypts the key that was encrypted for it ...
+    Credential credential1 = this.getCredential(new ClassPathResource("Litsec_SAML_Encryption.jks"), "JKS", "secret",
+      "litsec_saml_encryption");
+    Credential credential2 = this.getCredential(new ClassPathResource("Litsec_SAML_Signing.jks"), "JKS", "secret",
+      "litsec_saml_signing");
+
+    SignMessageDecrypter decrypter1 = new SignMessageDecrypter(credential1);
+    decrypter1.setLocalEntityID(ENTITY_ID);
+    Assert.assertEquals(CONTENTS, decrypter1.decrypt(signMessage).getContent());
+
+    SignMessageDecrypter decrypter2 = new SignMessageDecrypter(credential2);
+    decrypter2.setLocalEntityID(entityID2);
+    Assert.assertEquals(CONTENTS, decrypter2.decrypt(signMessage).getContent());
+
+    // The key of the first IdP is never tried on the key encrypted for the second IdP ...
+    SignMessageDecrypter wrongRecipient = new SignMessageDecrypter(credential1);
+    wrongRecipient.setLocalEntityID(entityID2);
+    try {
+      wrongRecipient.decrypt(signMessage);
+      Assert.fail("Expected DecryptionException");
+    }
+    catch (DecryptionException e) {
+    }
+  }
+
+  @Test
+  public void testKeyAgreement() throws Exception {
+
+    SignMessage signMessage = SignMessageBuilder.builder()
+      .displayEntity(ENTITY_ID)
+      .message(CONTENTS)
+      .mimeType(SignMessageMimeTypeEnum.TEXT)
+      .mustShow(true)
+      .build();
+
+    EntityDescriptor ed = this.createMetadata(KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("Litsec_SAML_Encryption_EC.crt").getInputStream())
+      .build());
+    MetadataProvider metadataProvider = this.createMetadataProvider(ed);
+
+    SignMessageEncrypter encrypter = new SignMessageEncrypter(new SAMLObjectEncrypter(metadataProvider));
+    encrypter.setParametersCache(new SignMessageEncryptionParametersCache(metadataProvider));
+    encrypter.encrypt(signMessage, ENTITY_ID);
+
+    // The EncryptedKey should hold an AgreementMethod (ECDH-ES)
+    Assert.assertFalse(signMessage.getEncryptedMessage()
+      .getEncryptedData()
+      .getKeyInfo()
+      .getEncryptedKeys()
+      .get(0)
+      .getKeyInfo()
+      .getAgreementMethods()
+      .isEmpty());
+
+    Credential ecCredential = this.getCredential(new ClassPathResource("Litsec_SAML_Encryption_EC.p12"), "PKCS12", "secret",
+      "litsec_saml_encryption_ec");
+    Assert.assertEquals(CONTENTS, new SignMessageDecrypter(ecCredential).decrypt(signMessage).getContent());
+
+    // A decrypter holding both RSA and EC credentials
+    Credential rsaCredential = this.getCredential(new ClassPathResource("Litsec_SAML_Encryption.jks"), "JKS", "secret",
+      "litsec_saml_encryption");
+    Assert.assertEquals(CONTENTS,
+      new SignMessageDecrypter(Arrays.asList(rsaCredential, ecCredential)).decrypt(signMessage).getContent());
+  }
+
+  @Test
+  public void testKeyAgreementEphemeralKeys() throws Exception {
+    EntityDescriptor ed = this.createMetadata(KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("Litsec_SAML_Encryption_EC.crt").getInputStream())
+      .build());
+    MetadataProvider metadataProvider = this.createMetadataProvider(ed);
+
+    SignMessageEncryptionParametersCache cache = new SignMessageEncryptionParametersCache(metadataProvider);
+    SignMessageEncrypter encrypter = new SignMessageEncrypter(new SAMLObjectEncrypter(metadataProvider));
+    encrypter.setParametersCache(cache);
+
+    List<String> originatorKeys = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      SignMessage signMessage = SignMessageBuilder.builder()
+        .displayEntity(ENTITY_ID)
+        .message(CONTENTS)
+        .mimeType(SignMessageMimeTypeEnum.TEXT)
+        .mustShow(true)
+        .build();
+      encrypter.encrypt(signMessage, ENTITY_ID);
+
+      AgreementMethod agreementMethod = signMessage.getEncryptedMessage()
+        .getEncryptedData()
+        .getKeyInfo()
+        .getEncryptedKeys()
+        .get(0)
+        .getKeyInfo()
+        .getAgreementMethods()
+        .get(0);
+      originatorKeys.add(SerializeSupport.nodeToString(XMLObjectSupport.marshall(agreementMethod.getOriginatorKeyInfo())));
+    }
+    // Each message must use a new ephemeral key
+    Assert.assertNotEquals(originatorKeys.get(0), originatorKeys.get(1));
+    Assert.assertEquals(0, cache.getHits());
+  }
+
+  private Credential getCredential(Resource keyStoreResource, String type, String password, String alias) throws Exception {
+    KeyStore keyStore = KeyStoreUtils.loadKeyStore(keyStoreResource.getInputStream(), password, type);
+    return new KeyStoreX509CredentialAdapter(keyStore, alias, password.toCharArray());
+  }
+
   private String decrypt(SignMessage signMessage, Resource jks, String password, String alias) throws Exception {
     KeyStore keyStore = KeyStoreUtils.loadKeyStore(jks.getInputStream(), password, "JKS");
     Credential cred = new KeyStoreX509CredentialAdapter(keyStore, alias, password.toCharArray());
@@ -186,8 +462,12 @@ public class SignMessageEncrypterTest extends OpenSAMLTestBase {
   }
 
   private EntityDescriptor createMetadata(KeyDescriptor... descriptors) {
+    return this.createMetadata(ENTITY_ID, descriptors);
+  }
+
+  private EntityDescriptor createMetadata(String entityID, KeyDescriptor... descriptors) {
     IdpEntityDescriptorBuilder builder = new IdpEntityDescriptorBuilder();
-    return builder.entityID(ENTITY_ID).id("_id123456").keyDescriptors(descriptors).build();
+    return builder.entityID(entityID).id("_id123456").keyDescriptors(descriptors).build();
   }
 
   private MetadataProvider createMetadataProvider(EntityDescriptor... descriptors) throws MarshallingException,
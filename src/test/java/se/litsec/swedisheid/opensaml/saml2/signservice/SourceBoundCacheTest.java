@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.signservice;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test cases for {@code SourceBoundCache}.
+ *
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SourceBoundCacheTest {
+
+  @Test
+  public void testSourceChange() throws Exception {
+    SourceBoundCache<String> cache = new SourceBoundCache<>();
+    Object source1 = new Object();
+    Object source2 = new Object();
+
+    Assert.assertEquals("v1", cache.get("idp", source1, () -> "v1"));
+    Assert.assertEquals("v1", cache.get("idp", source1, () -> "not-used"));
+    Assert.assertEquals("v1", cache.get("idp", source1));
+    Assert.assertNull(cache.get("idp", source2));
+
+    // A new source object (e.g., after a metadata refresh) replaces the value ...
+    Assert.assertEquals("v2", cache.get("idp", source2, () -> "v2"));
+    Assert.assertNull(cache.get("idp", source1));
+
+    cache.put("idp", source2, "v3");
+    Assert.assertEquals("v3", cache.get("idp", source2));
+    cache.put("idp", source1, "v4");
+    Assert.assertEquals("v4", cache.get("idp", source1));
+
+    cache.remove("idp");
+    Assert.assertNull(cache.get("idp"));
+  }
+
+  @Test
+  public void testSourceNotRetained() throws Exception {
+    SourceBoundCache<String> cache = new SourceBoundCache<>();
+    Object source = new Object();
+    WeakReference<Object> ref = new WeakReference<>(source);
+    cache.get("idp", source, () -> "value");
+    source = null;
+
+    for (int i = 0; i < 20 && ref.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    Assert.assertNull(ref.get());
+  }
+
+  @Test
+  public void testMaxEntries() throws Exception {
+    SourceBoundCache<String> cache = new SourceBoundCache<>();
+    cache.setMaxEntries(10);
+    Object source = new Object();
+    for (int i = 0; i < 100; i++) {
+      cache.get("idp-" + i, source, () -> "value");
+      Assert.assertTrue(cache.size() <= 10);
+    }
+    // The entry just added is kept ...
+    Assert.assertEquals("value", cache.get("idp-99", source));
+
+    cache.setMaxEntries(2);
+    Assert.assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testConcurrentLoad() throws Exception {
+    SourceBoundCache<String> cache = new SourceBoundCache<>();
+    Object source = new Object();
+    AtomicInteger loads = new AtomicInteger();
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> values = new ArrayList<>();
+      for (int i = 0; i < 100; i++) {
+        values.add(executor.submit(() -> cache.get("idp", source, () -> "value-" + loads.incrementAndGet())));
+      }
+      for (Future<String> value : values) {
+        Assert.assertEquals("value-1", value.get());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    Assert.assertEquals(1, loads.get());
+  }
+
+}
@@ -15,6 +15,8 @@
  */
 package se.litsec.swedisheid.opensaml.saml2.signservice.sap;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
@@ -74,4 +76,106 @@ public class SADTest {
     Assert.assertEquals(sad, sad3);
   }
 
+  /**
+   * Tests that the JSON encoding is exactly as expected and that unknown claims are rejected.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testJsonFormat() throws Exception {
+
+    SAD sad = new SAD();
+    sad.setSubject("196302052383");
+    sad.setAudience("http://www.example.com/sigservice");
+    sad.setIssuer("https://idp.svelegtest.se/idp");
+    sad.setExpiry(1516199257);
+    sad.setIssuedAt(1516198957);
+    sad.setJwtId("d4073fc74b1b9199");
+    SAD.Extension ext = new SAD.Extension();
+    ext.setInResponseTo("_a74a068d0548a919e503e5f9ef901851");
+    ext.setAttributeName(AttributeConstants.ATTRIBUTE_NAME_PERSONAL_IDENTITY_NUMBER);
+    ext.setLoa(LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3);
+    ext.setRequestID("f6e7d061a23293b0053dc7b038a04dad");
+    ext.setNumberOfDocuments(1);
+    sad.setSeElnSadext(ext);
+
+    final String expected = "{\"sub\":\"196302052383\",\"aud\":\"http://www.example.com/sigservice\","
+        + "\"iss\":\"https://idp.svelegtest.se/idp\",\"exp\":1516199257,\"iat\":1516198957,\"jti\":\"d4073fc74b1b9199\","
+        + "\"seElnSadext\":{\"irt\":\"_a74a068d0548a919e503e5f9ef901851\",\"attr\":\"urn:oid:1.2.752.29.4.13\","
+        + "\"loa\":\"http://id.elegnamnden.se/loa/1.0/loa3\",\"reqid\":\"f6e7d061a23293b0053dc7b038a04dad\",\"docs\":1}}";
+
+    Assert.assertEquals(expected, sad.toJson());
+    Assert.assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), sad.toJsonBytes());
+    Assert.assertEquals(sad, SAD.fromJson(expected.getBytes(StandardCharsets.UTF_8)));
+
+    for (String json : new String[] { "{\"sub\":\"196302052383\",\"foo\":\"bar\"}", "{\"seElnSadext\":{\"foo\":1}}", "[]" }) {
+      try {
+        SAD.fromJson(json);
+        Assert.fail("Expected IOException for " + json);
+      }
+      catch (IOException e) {
+      }
+    }
+  }
+
+  /**
+   * Tests creating an immutable SAD.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testImmutable() throws Exception {
+
+    SAD sad = new SAD();
+    sad.setSubject("196302052383");
+    sad.setAudience("http://www.example.com/sigservice");
+    sad.setIssuer(new String("https://idp.svelegtest.se/idp"));
+    sad.setExpiry(1516199257);
+    sad.setIssuedAt(1516198957);
+    sad.setJwtId("d4073fc74b1b9199");
+    SAD.Extension ext = new SAD.Extension();
+    ext.setInResponseTo("_a74a068d0548a919e503e5f9ef901851");
+    ext.setAttributeName(AttributeConstants.ATTRIBUTE_NAME_PERSONAL_IDENTITY_NUMBER);
+    ext.setLoa(LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3);
+    ext.setRequestID("f6e7d061a23293b0053dc7b038a04dad");
+    ext.setNumberOfDocuments(1);
+    sad.setSeElnSadext(ext);
+
+    ImmutableSAD immutableSad = ImmutableSAD.of(sad);
+    Assert.assertEquals(1516199257L, immutableSad.getExpiry());
+    Assert.assertEquals(1, immutableSad.getNumberOfDocuments());
+    Assert.assertSame(SADVersion.VERSION_10, immutableSad.getVersion());
+    Assert.assertEquals("https://idp.svelegtest.se/idp", immutableSad.getIssuer());
+
+    ImmutableSAD immutableSad2 = ImmutableSAD.of(SAD.fromJson(sad.toJson()));
+    Assert.assertEquals(immutableSad, immutableSad2);
+    Assert.assertEquals(immutableSad.hashCode(), immutableSad2.hashCode());
+
+    // The version is set to 1.0 when converted back ...
+    ext.setVersion(SADVersion.VERSION_10.toString());
+    Assert.assertEquals(sad, immutableSad.toSAD());
+
+    // A malformed version is reported as an IllegalArgumentException ...
+    for (String version : new String[] { "1", "a.b", "1.x", "" }) {
+      ext.setVersion(version);
+      try {
+        ImmutableSAD.of(sad);
+        Assert.fail("Expected IllegalArgumentException for version " + version);
+      }
+      catch (IllegalArgumentException e) {
+      }
+    }
+    ext.setVersion(SADVersion.VERSION_10.toString());
+
+    sad.setExpiry((Integer) null);
+    try {
+      ImmutableSAD.of(sad);
+      Assert.fail("Expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+    }
+  }
+
 }
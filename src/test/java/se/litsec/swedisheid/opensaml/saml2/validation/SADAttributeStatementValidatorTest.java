@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016-2021 Litsec AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.litsec.swedisheid.opensaml.saml2.validation;
+
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.common.assertion.ValidationContext;
+import org.opensaml.saml.common.assertion.ValidationResult;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.opensaml.saml.saml2.core.AuthnContext;
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.AuthnStatement;
+import org.opensaml.saml.saml2.core.Extensions;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.security.x509.impl.KeyStoreX509CredentialAdapter;
+import org.springframework.core.io.ClassPathResource;
+
+import se.litsec.opensaml.common.validation.CoreValidatorParameters;
+import se.litsec.opensaml.saml2.attribute.AttributeBuilder;
+import se.litsec.opensaml.saml2.core.build.AuthnRequestBuilder;
+import se.litsec.opensaml.utils.KeyStoreUtils;
+import se.litsec.swedisheid.opensaml.OpenSAMLTestBase;
+import se.litsec.swedisheid.opensaml.saml2.attribute.AttributeConstants;
+import se.litsec.swedisheid.opensaml.saml2.authentication.LevelofAssuranceAuthenticationContextURI;
+import se.litsec.swedisheid.opensaml.saml2.signservice.SADFactory;
+import se.litsec.swedisheid.opensaml.saml2.signservice.SADParser;
+import se.litsec.swedisheid.opensaml.saml2.signservice.SADRequestBuilder;
+import se.litsec.swedisheid.opensaml.saml2.signservice.SADRequestRecord;
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SAD;
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SADRequest;
+import se.litsec.swedisheid.opensaml.saml2.signservice.sap.SADVersion;
+
+/**
+ * Test cases for {@code SADAttributeStatementValidator}.
+ * 
+ * @author Martin Lindström (martin.lindstrom@litsec.se)
+ */
+public class SADAttributeStatementValidatorTest extends OpenSAMLTestBase {
+
+  private static final String IDP_ENTITYID = "https://idp.svelegtest.se/idp";
+  private static final String SIGNSERVICE_ENTITYID = "http://www.example.com/sigservice";
+  private static final String USER_ID = "196302052383";
+  private static final String SAD_REQUEST_ID = "_a74a068d0548a919e503e5f9ef901851";
+  private static final String SIGN_REQUEST_ID = "f6e7d061a23293b0053dc7b038a04dad";
+
+  /** Factory for building SAD:s. */
+  private SADFactory sadFactory;
+
+  /** Validator for the SAD:s. */
+  private SADParser.SADValidator sadValidator;
+
+  /** The validator that is tested. */
+  private SADAttributeStatementValidator validator = new SADAttributeStatementValidator();
+
+  /**
+   * Constructor setting up the tests
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  public SADAttributeStatementValidatorTest() throws Exception {
+    KeyStore keyStore = KeyStoreUtils.loadKeyStore(new ClassPathResource("Litsec_SAML_Signing.jks").getInputStream(), "secret", "JKS");
+    KeyStoreX509CredentialAdapter credential = new KeyStoreX509CredentialAdapter(keyStore, "litsec_saml_signing", "secret".toCharArray());
+
+    this.sadFactory = new SADFactory(IDP_ENTITYID, credential);
+    this.sadValidator = SADParser.getValidator(credential.getEntityCertificate());
+  }
+
+  /**
+   * Tests that a matching SAD is validated and made available in the dynamic parameters.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testValidSAD() throws Exception {
+    String jwt = this.sadFactory.createJwt(this.getTestSAD());
+    Assertion assertion = buildAssertion(USER_ID, jwt);
+
+    ValidationContext context = this.buildContext(this.sadValidator, this.buildRecord(1), null);
+    Assert.assertEquals(ValidationResult.VALID, this.validate(assertion, context));
+
+    SAD sad = (SAD) context.getDynamicParameters().get(SADAttributeStatementValidator.SAD);
+    Assert.assertNotNull(sad);
+    Assert.assertEquals(SADParser.parse(jwt), sad);
+  }
+
+  /**
+   * Tests that the {@code SADRequest} is read from the {@code AuthnRequest} if no {@code SADRequestRecord} is given.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testSADRequestFromAuthnRequest() throws Exception {
+    Assertion assertion = buildAssertion(USER_ID, this.sadFactory.createJwt(this.getTestSAD()));
+
+    ValidationContext context = this.buildContext(this.sadValidator, null, buildAuthnRequest(buildSADRequest(1)));
+    Assert.assertEquals(ValidationResult.VALID, this.validate(assertion, context));
+    Assert.assertNotNull(context.getDynamicParameters().get(SADAttributeStatementValidator.SAD));
+  }
+
+  /**
+   * Tests that a SAD whose subject does not match the subject attribute of the assertion is rejected.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testMismatchingSubject() throws Exception {
+    Assertion assertion = buildAssertion("197705232382", this.sadFactory.createJwt(this.getTestSAD()));
+
+    ValidationContext context = this.buildContext(this.sadValidator, this.buildRecord(1), null);
+    Assert.assertEquals(ValidationResult.INVALID, this.validate(assertion, context));
+    Assert.assertTrue(context.getValidationFailureMessage().contains("VALIDATION_BAD_SUBJECT"));
+    Assert.assertNull(context.getDynamicParameters().get(SADAttributeStatementValidator.SAD));
+  }
+
+  /**
+   * Tests that a SAD whose document count does not match the {@code SADRequest} is rejected.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testMismatchingDocCount() throws Exception {
+    Assertion assertion = buildAssertion(USER_ID, this.sadFactory.createJwt(this.getTestSAD()));
+
+    ValidationContext context = this.buildContext(this.sadValidator, this.buildRecord(2), null);
+    Assert.assertEquals(ValidationResult.INVALID, this.validate(assertion, context));
+    Assert.assertTrue(context.getValidationFailureMessage().contains("VALIDATION_BAD_DOCS"));
+  }
+
+  /**
+   * Tests that the {@code sad} attribute is required when a SAD was requested.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testMissingSADAttribute() throws Exception {
+    Assertion assertion = buildAssertion(USER_ID, null);
+
+    ValidationContext context = this.buildContext(this.sadValidator, this.buildRecord(1), null);
+    Assert.assertEquals(ValidationResult.INVALID, this.validate(assertion, context));
+    Assert.assertTrue(context.getValidationFailureMessage().contains("NO_SAD_ATTRIBUTE"));
+  }
+
+  /**
+   * Tests that the result is indeterminate if a SAD was requested but no SAD validator is given.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testMissingValidator() throws Exception {
+    Assertion assertion = buildAssertion(USER_ID, this.sadFactory.createJwt(this.getTestSAD()));
+
+    ValidationContext context = this.buildContext(null, this.buildRecord(1), null);
+    Assert.assertEquals(ValidationResult.INDETERMINATE, this.validate(assertion, context));
+  }
+
+  /**
+   * Tests that no SAD validation is performed if no SAD was requested.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testNoSADRequest() throws Exception {
+    Assertion assertion = buildAssertion(USER_ID, null);
+
+    ValidationContext context = this.buildContext(this.sadValidator, null, null);
+    Assert.assertEquals(ValidationResult.VALID, this.validate(assertion, context));
+
+    context = this.buildContext(this.sadValidator, null, buildAuthnRequest(null));
+    Assert.assertEquals(ValidationResult.VALID, this.validate(assertion, context));
+    Assert.assertNull(context.getDynamicParameters().get(SADAttributeStatementValidator.SAD));
+  }
+
+  /**
+   * Tests that the required attributes are checked before the SAD is validated.
+   * 
+   * @throws Exception
+   *           for errors
+   */
+  @Test
+  public void testMissingRequiredAttribute() throws Exception {
+    Assertion assertion = buildAssertion(USER_ID, this.sadFactory.createJwt(this.getTestSAD()));
+
+    ValidationContext context = this.buildContext(this.sadValidator, this.buildRecord(1), null);
+    context.getStaticParameters().put(SwedishEidAttributeStatementValidator.REQUIRED_ATTRIBUTES,
+      Arrays.asList(AttributeConstants.ATTRIBUTE_NAME_DISPLAY_NAME));
+    Assert.assertEquals(ValidationResult.INVALID, this.validate(assertion, context));
+    Assert.assertNull(context.getDynamicParameters().get(SADAttributeStatementValidator.SAD));
+  }
+
+  private ValidationResult validate(Assertion assertion, ValidationContext context) {
+    AttributeStatement statement = assertion.getAttributeStatements().get(0);
+    return this.validator.validateRequiredAttributes(statement.getAttributes(), statement, assertion, context);
+  }
+
+  private ValidationContext buildContext(SADParser.SADValidator sadValidator, SADRequestRecord record, AuthnRequest authnRequest) {
+    Map<String, Object> staticParameters = new HashMap<>();
+    if (sadValidator != null) {
+      staticParameters.put(SADAttributeStatementValidator.SAD_VALIDATOR, sadValidator);
+    }
+    if (record != null) {
+      staticParameters.put(SADAttributeStatementValidator.SAD_REQUEST_RECORD, record);
+    }
+    if (authnRequest != null) {
+      staticParameters.put(CoreValidatorParameters.AUTHN_REQUEST, authnRequest);
+    }
+    return new ValidationContext(staticParameters);
+  }
+
+  private SADRequestRecord buildRecord(int docCount) {
+    return new SADRequestRecord(SAD_REQUEST_ID, SIGNSERVICE_ENTITYID, SIGN_REQUEST_ID, docCount,
+      Collections.singletonList(LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3));
+  }
+
+  private SAD getTestSAD() {
+    return this.sadFactory.getBuilder()
+      .subject(USER_ID)
+      .audience(SIGNSERVICE_ENTITYID)
+      .inResponseTo(SAD_REQUEST_ID)
+      .loa(LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3)
+      .requestID(SIGN_REQUEST_ID)
+      .numberOfDocuments(1)
+      .buildSAD();
+  }
+
+  private static SADRequest buildSADRequest(int docCount) {
+    return SADRequestBuilder.builder()
+      .id(SAD_REQUEST_ID)
+      .requesterID(SIGNSERVICE_ENTITYID)
+      .signRequestID(SIGN_REQUEST_ID)
+      .docCount(docCount)
+      .requestedVersion(SADVersion.VERSION_10)
+      .build();
+  }
+
+  private static AuthnRequest buildAuthnRequest(SADRequest sadRequest) {
+    AuthnRequestBuilder builder = AuthnRequestBuilder.builder()
+      .id("123")
+      .issuer(SIGNSERVICE_ENTITYID);
+
+    if (sadRequest != null) {
+      Extensions exts = (Extensions) XMLObjectSupport.buildXMLObject(Extensions.DEFAULT_ELEMENT_NAME);
+      exts.getUnknownXMLObjects().add(sadRequest);
+      builder = builder.extensions(exts);
+    }
+
+    return builder.build();
+  }
+
+  private static Assertion buildAssertion(String userId, String sadJwt) {
+    Assertion assertion = (Assertion) XMLObjectSupport.buildXMLObject(Assertion.DEFAULT_ELEMENT_NAME);
+    assertion.setID("123456");
+    Issuer issuer = (Issuer) XMLObjectSupport.buildXMLObject(Issuer.DEFAULT_ELEMENT_NAME);
+    issuer.setValue(IDP_ENTITYID);
+    assertion.setIssuer(issuer);
+
+    AuthnContextClassRef authnContextClassRef = (AuthnContextClassRef) XMLObjectSupport.buildXMLObject(
+      AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+    authnContextClassRef.setURI(LevelofAssuranceAuthenticationContextURI.AUTH_CONTEXT_URI_LOA3);
+    AuthnContext authnContext = (AuthnContext) XMLObjectSupport.buildXMLObject(AuthnContext.DEFAULT_ELEMENT_NAME);
+    authnContext.setAuthnContextClassRef(authnContextClassRef);
+    AuthnStatement authnStatement = (AuthnStatement) XMLObjectSupport.buildXMLObject(AuthnStatement.DEFAULT_ELEMENT_NAME);
+    authnStatement.setAuthnContext(authnContext);
+    assertion.getAuthnStatements().add(authnStatement);
+
+    AttributeStatement statement = (AttributeStatement) XMLObjectSupport.buildXMLObject(AttributeStatement.DEFAULT_ELEMENT_NAME);
+    statement.getAttributes().add(AttributeBuilder.builder(AttributeConstants.ATTRIBUTE_NAME_PERSONAL_IDENTITY_NUMBER).value(userId).build());
+    if (sadJwt != null) {
+      statement.getAttributes().add(AttributeBuilder.builder(AttributeConstants.ATTRIBUTE_NAME_SAD).value(sadJwt).build());
+    }
+    assertion.getAttributeStatements().add(statement);
+
+    return assertion;
+  }
+
+}